@@ -11,6 +11,8 @@ public class Constant {
 
     public static final String PREFERENCE_SPINNER_DELAY = "delay_control";
 
+    public static final String PREFERENCE_MULTI_SOCKET = "multi_socket";
+
     public static final String HISTORY_LIST_KEY = "history_list_key";
     public static final String USER_ID = "user_id";
 
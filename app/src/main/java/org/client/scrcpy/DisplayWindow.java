@@ -20,6 +20,7 @@ public class DisplayWindow extends FrameLayout {
     OnMoveCallback moveCallback;
     OnActionCallback actionCallback;
     OnTouchListener onDisplayTouchListener;
+    OnViewportChangedListener viewportChangedListener;
 
     private float oldX;
     private float oldY;
@@ -130,6 +131,18 @@ public class DisplayWindow extends FrameLayout {
                 return false;
             }
         });
+        container.addOnLayoutChangeListener(new OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                int width = right - left;
+                int height = bottom - top;
+                if (viewportChangedListener != null && width > 0 && height > 0
+                        && (width != oldRight - oldLeft || height != oldBottom - oldTop)) {
+                    viewportChangedListener.onViewportChanged(width, height);
+                }
+            }
+        });
         container.setOnTouchListener(new OnTouchListener() {
             @Override
             public boolean onTouch(View view, MotionEvent motionEvent) {
@@ -154,6 +167,10 @@ public class DisplayWindow extends FrameLayout {
         this.onDisplayTouchListener = onDisplayTouchListener;
     }
 
+    public void setViewportChangedListener(OnViewportChangedListener viewportChangedListener) {
+        this.viewportChangedListener = viewportChangedListener;
+    }
+
     public SurfaceView getSurfaceView() {
         return surfaceView;
     }
@@ -206,6 +223,10 @@ public class DisplayWindow extends FrameLayout {
     public interface OnMoveCallback {
         void onMove(float x,float y);
     }
+    public interface OnViewportChangedListener {
+        // 画面显示区域大小变化
+        void onViewportChanged(int width, int height);
+    }
     public interface OnActionCallback{
         void onAction(int actionType);
     }
@@ -13,6 +13,8 @@ import android.view.WindowManager;
 
 public class FloatService extends Service {
     private static final String TAG = "FloatService";
+    // 悬浮窗画面较小，限制帧率以降低编码、传输和解码开销
+    private static final int VIEWPORT_MAX_FPS = 30;
 
     DisplayWindow displayWindow;
     WindowManager windowManager;
@@ -124,6 +126,15 @@ public class FloatService extends Service {
                 }
             }
         });
+        displayWindow.setViewportChangedListener(new DisplayWindow.OnViewportChangedListener() {
+            @Override
+            public void onViewportChanged(int width, int height) {
+                if (scrcpyHost != null) {
+                    // 服务端按悬浮窗大小编码，无需传输全分辨率画面
+                    scrcpyHost.setViewport(width, height, VIEWPORT_MAX_FPS);
+                }
+            }
+        });
         displayWindow.setOnDisplayTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View view, MotionEvent motionEvent) {
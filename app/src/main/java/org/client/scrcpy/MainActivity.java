@@ -24,6 +24,7 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.SurfaceView;
 import android.view.View;
@@ -39,6 +40,8 @@ import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import org.client.scrcpy.decoder.AudioCodec;
+import org.client.scrcpy.decoder.VideoCodec;
 import org.client.scrcpy.utils.HttpRequest;
 import org.client.scrcpy.utils.PreUtils;
 import org.client.scrcpy.utils.Progress;
@@ -74,6 +77,7 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
     private SendCommands sendCommands;
     private int videoBitrate;
     private int delayControl;
+    private boolean multiSocket;
     private Context context;
     private String serverAdr = null;
     private SurfaceView surfaceView;
@@ -97,7 +101,7 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
                     Progress.showDialog(MainActivity.this, getString(R.string.please_wait));
                 }
                 scrcpy.start(surface, Scrcpy.LOCAL_IP + ":" + Scrcpy.LOCAL_FORWART_PORT,
-                        screenHeight, screenWidth, delayControl);
+                        screenHeight, screenWidth, delayControl, multiSocket);
                 ThreadUtils.workPost(() -> {
                     int count = 50;
                     while (count > 0 && !scrcpy.check_socket_connection()) {
@@ -325,6 +329,7 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         final EditText editTextServerHost = findViewById(R.id.editText_server_host);
         final Switch aSwitch0 = findViewById(R.id.switch0);
         final Switch aSwitch1 = findViewById(R.id.switch1);
+        final Switch aSwitch2 = findViewById(R.id.switch2);
         String historySpServerAdr = PreUtils.get(context, Constant.CONTROL_REMOTE_ADDR, "");
         if (TextUtils.isEmpty(historySpServerAdr)) {
             String[] historyList = getHistoryList();
@@ -336,6 +341,7 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         }
         aSwitch0.setChecked(PreUtils.get(context, Constant.CONTROL_NO, false));
         aSwitch1.setChecked(PreUtils.get(context, Constant.CONTROL_NAV, false));
+        aSwitch2.setChecked(PreUtils.get(context, Constant.PREFERENCE_MULTI_SOCKET, false));
         setSpinner(R.array.options_resolution_values, R.id.spinner_video_resolution, Constant.PREFERENCE_SPINNER_RESOLUTION);
         setSpinner(R.array.options_bitrate_keys, R.id.spinner_video_bitrate, Constant.PREFERENCE_SPINNER_BITRATE);
         setSpinner(R.array.options_delay_keys, R.id.delay_control_spinner, Constant.PREFERENCE_SPINNER_DELAY);
@@ -412,6 +418,9 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         if (!PreUtils.get(context, Constant.CONTROL_NO, false)) {
             // Log.i("Screen", "setOnTouchListener: " + surfaceView.getWidth() + "x" + surfaceView.getHeight());
             surfaceView.setOnTouchListener((view, event) -> scrcpy.touchevent(event, landscape, surfaceView.getWidth(), surfaceView.getHeight()));
+            // 鼠标滚轮
+            surfaceView.setOnGenericMotionListener((view, event) -> event.getActionMasked() == MotionEvent.ACTION_SCROLL
+                    && scrcpy.touchevent(event, landscape, surfaceView.getWidth(), surfaceView.getHeight()));
         }
 
         if (PreUtils.get(context, Constant.CONTROL_NAV, false) &&
@@ -476,6 +485,9 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         boolean nav = a_Switch1.isChecked();
         PreUtils.put(context, Constant.CONTROL_NO, no_control);
         PreUtils.put(context, Constant.CONTROL_NAV, nav);
+        final Switch a_Switch2 = findViewById(R.id.switch2);
+        multiSocket = a_Switch2.isChecked();
+        PreUtils.put(context, Constant.PREFERENCE_MULTI_SOCKET, multiSocket);
 
         final String[] videoResolutions = getResources().getStringArray(R.array.options_resolution_values)[videoResolutionSpinner.getSelectedItemPosition()].split("x");
         screenHeight = Integer.parseInt(videoResolutions[0]);
@@ -719,12 +731,12 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
                 if (serviceBound) {
                     // 该事件会使远程手机 按下电源键，触发方式：按住距离传感器，然后点击屏幕即可锁屏
                     // 发送横竖屏会导致抬起事件无效
-                    // scrcpy.sendKeyevent(28);
+                    // scrcpy.sendCommand(ControlMessage.COMMAND_PROXIMITY_NEAR);
                 }
             } else {
                 if (serviceBound) {
                     // 发送横竖屏会导致抬起事件无效
-                    // scrcpy.sendKeyevent(29);
+                    // scrcpy.sendCommand(ControlMessage.COMMAND_PROXIMITY_FAR);
                 }
             }
         }
@@ -770,7 +782,21 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
                         serverPort,
                         localForwardPort,
                         Scrcpy.LOCAL_IP,
-                        videoBitrate, Math.max(screenHeight, screenWidth)) == 0) {
+                        videoBitrate, Math.max(screenHeight, screenWidth),
+                        "multi_socket=" + multiSocket,
+                        // 网络拥塞时服务端降低码率（最低为设置码率的 1/8），拥塞消失后逐步恢复
+                        "abr=true",
+                        // 延迟设置由服务端执行：待发送的视频帧超过该延迟时整体丢弃并请求关键帧
+                        "video_latency_budget=" + delayControl,
+                        // 连接短暂断开时服务端保留会话，客户端重连后无需重启服务端
+                        "resume_grace=" + Scrcpy.SESSION_RESUME_GRACE_MS,
+                        // 本机可以硬件解码的视频编码，由服务端选择双方都支持的编码
+                        "video_codecs=" + VideoCodec.getSupportedNames(),
+                        // 本机可以解码的音频编码，由服务端选择设备可以编码的第一个
+                        "audio_codecs=" + AudioCodec.getSupportedNames(),
+                        "audio_frame_ms=" + Scrcpy.AUDIO_FRAME_MS,
+                        // 静音时服务端不发送音频帧，节省带宽和两端的 CPU
+                        "audio_dtx_hold=" + Scrcpy.AUDIO_DTX_HOLD_MS) == 0) {
                     ThreadUtils.post(() -> {
                         if (!MainActivity.this.isFinishing()) {
                             // 进入主线程
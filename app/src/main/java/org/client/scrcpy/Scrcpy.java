@@ -4,12 +4,18 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.Surface;
 
+import org.client.scrcpy.control.ControlMessage;
 import org.client.scrcpy.decoder.AudioDecoder;
+import org.client.scrcpy.decoder.AudioCodec;
+import org.client.scrcpy.decoder.MediaClock;
+import org.client.scrcpy.decoder.VideoCodec;
 import org.client.scrcpy.decoder.VideoDecoder;
 import org.client.scrcpy.model.AudioPacket;
 import org.client.scrcpy.model.ByteUtils;
@@ -24,8 +30,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -36,24 +45,58 @@ public class Scrcpy extends Service {
     public static final int LOCAL_FORWART_PORT = 7008;
 
     public static final int DEFAULT_ADB_PORT = 5555;
+
+    private static final long CONTROL_POLL_TIMEOUT_MS = 100;
+    // 连接断开后服务端保留会话的时间（服务端参数 resume_grace），在此时间内重新连接可以直接恢复画面
+    public static final long SESSION_RESUME_GRACE_MS = 5000;
+    // 每次从采集读取的音频时长（毫秒），越短延迟越低，但包数越多
+    public static final int AUDIO_FRAME_MS = 10;
+    // 持续静音超过该时长（毫秒）后服务端停止发送音频帧
+    public static final int AUDIO_DTX_HOLD_MS = 1000;
+    // 恢复会话的重连次数，每次最多等待约一秒（读取服务端数据的超时时间）
+    private static final int RESUME_ATTEMPTS = 5;
     private String serverHost;
     private int serverPort = DEFAULT_ADB_PORT;
     private Surface surface;
     private int screenWidth;
     private int screenHeight;
 
-    private final Queue<byte[]> event = new LinkedList<byte[]>();
+    private final BlockingQueue<byte[]> event = new LinkedBlockingQueue<byte[]>();
     // private byte[] event = null;
     private VideoDecoder videoDecoder;
     private AudioDecoder audioDecoder;
     private final AtomicBoolean updateAvailable = new AtomicBoolean(false);
+    // 旋转时等待界面重建 surface（setParms / resume 时通知），超时后继续使用当前 surface，避免界面未响应时一直黑屏
+    private static final long SURFACE_WAIT_TIMEOUT_MS = 2000;
+    private final Object surfaceLock = new Object();
+    private boolean waitingSurface = false;
+    // 服务端开始重新配置编码器的时间，用于统计旋转时的黑屏时长
+    private long reconfigureTime = 0;
     private final IBinder mBinder = new MyServiceBinder();
     private boolean first_time = true;
 
     private final AtomicBoolean LetServceRunning = new AtomicBoolean(true);
+    // 连接异常断开（网络切换、wifi 短暂断开等），需要重新连接以恢复会话
+    private final AtomicBoolean connectionLost = new AtomicBoolean(false);
     private ServiceCallbacks serviceCallbacks;
     private final int[] remote_dev_resolution = new int[2];
+    // 连接时服务端发送的分辨率，取消裁剪时恢复
+    private final int[] initial_resolution = new int[2];
     private boolean socket_status = false;
+    // 视频、音频、控制是否使用独立的连接
+    private boolean multiSocket = false;
+
+    private VideoPacket.StreamSettings streamSettings;
+    // 服务端选择的视频编码，连接时随分辨率一起发送
+    private VideoCodec videoCodec = VideoCodec.H264;
+    // 当前视频是否为横屏，用于区分旋转（需要调整界面方向）和分辨率变化（只需要重新配置解码器）
+    private boolean videoLandscape = false;
+    // 当前使用的视频编码配置（sps/pps），服务端响应关键帧请求时会重发相同的配置
+    private byte[] videoConfig;
+    // 解码器丢帧后正在等待关键帧
+    private boolean waitingKeyFrame = false;
+    // 音视频共用的时钟，由服务端 PTS 推算呈现时间，用于音画同步
+    private final MediaClock mediaClock = new MediaClock();
 
 
     @Override
@@ -74,15 +117,30 @@ public class Scrcpy extends Service {
         audioDecoder.start();
 
 
-        updateAvailable.set(true);
+        onSurfaceUpdated();
+        // 新的 surface 需要关键帧才能显示完整画面
+        requestKeyFrame();
 
     }
 
     public void start(Surface surface, String serverAdr, int screenHeight, int screenWidth, int delay) {
+        start(surface, serverAdr, screenHeight, screenWidth, delay, false);
+    }
+
+    /**
+     * @param multiSocket 视频、音频、控制是否使用独立的连接（需要与服务端参数 multi_socket 一致）
+     */
+    public void start(Surface surface, String serverAdr, int screenHeight, int screenWidth, int delay, boolean multiSocket) {
+        this.multiSocket = multiSocket;
+        this.videoConfig = null;
+        this.streamSettings = null;
+        this.videoLandscape = false;
         this.videoDecoder = new VideoDecoder();
+        videoDecoder.setClock(mediaClock);
         videoDecoder.start();
 
         this.audioDecoder = new AudioDecoder();
+        audioDecoder.setClock(mediaClock);
         audioDecoder.start();
 
         String[] serverInfo = Util.getServerHostAndPort(serverAdr);
@@ -118,11 +176,17 @@ public class Scrcpy extends Service {
         if (audioDecoder != null) {
             audioDecoder.start();
         }
-        updateAvailable.set(true);
+        onSurfaceUpdated();
+        // 解码器重新创建，需要关键帧才能显示完整画面
+        requestKeyFrame();
     }
 
     public void StopService() {
         LetServceRunning.set(false);
+        synchronized (surfaceLock) {
+            // 唤醒等待 surface 的读取线程
+            surfaceLock.notifyAll();
+        }
         if (videoDecoder != null) {
             videoDecoder.stop();
         }
@@ -158,15 +222,8 @@ public class Scrcpy extends Service {
 
         switch (actionMasked) {
             case MotionEvent.ACTION_MOVE: // 所有手指移动
-                // 遍历所有触摸点，使用 pointerId 来区分手指
-                for (int i = 0; i < touch_event.getPointerCount(); i++) {
-                    int pointerId = touch_event.getPointerId(i);
-                    int x = (int) touch_event.getX(i);
-                    int y = (int) touch_event.getY(i);
-                    // 发送纯净的 ACTION_MOVE 和对应的 pointerId
-                    sendTouchEvent(MotionEvent.ACTION_MOVE, touch_event.getButtonState(), 
-                            (int) (x * realW / displayW), (int) (y * realH / displayH), pointerId);
-                }
+                // 所有手指以及历史采样点合并为一条消息，服务端注入为一个多点 MotionEvent
+                sendControlMessage(ControlMessage.createMotion(touch_event, realW / displayW, realH / displayH));
                 break;
 
             case MotionEvent.ACTION_DOWN:          // 第一个手指按下
@@ -179,16 +236,22 @@ public class Scrcpy extends Service {
                 int y = (int) touch_event.getY(actionIndex);
                 
                 // 发送纯净的 Action (例如 5 或 6) 给服务端
-                sendTouchEvent(actionMasked, touch_event.getButtonState(), 
-                        (int) (x * realW / displayW), (int) (y * realH / displayH), pointerId);
+                sendTouchEvent(actionMasked, touch_event.getButtonState(),
+                        (int) (x * realW / displayW), (int) (y * realH / displayH), touch_event.getPressure(actionIndex), pointerId);
+                break;
+
+            case MotionEvent.ACTION_SCROLL:        // 鼠标滚轮
+                sendScrollEvent((int) (touch_event.getX() * realW / displayW), (int) (touch_event.getY() * realH / displayH),
+                        touch_event.getAxisValue(MotionEvent.AXIS_HSCROLL), touch_event.getAxisValue(MotionEvent.AXIS_VSCROLL),
+                        touch_event.getButtonState());
                 break;
 
             default:
                 // 处理 Cancel 等其他事件
                 int defaultId = touch_event.getPointerId(actionIndex);
-                sendTouchEvent(actionMasked, touch_event.getButtonState(), 
-                        (int) (touch_event.getX(actionIndex) * realW / displayW), 
-                        (int) (touch_event.getY(actionIndex) * realH / displayH), defaultId);
+                sendTouchEvent(actionMasked, touch_event.getButtonState(),
+                        (int) (touch_event.getX(actionIndex) * realW / displayW),
+                        (int) (touch_event.getY(actionIndex) * realH / displayH), touch_event.getPressure(actionIndex), defaultId);
                 break;
         }
         // --- 多点触控修改结束 ---
@@ -196,22 +259,18 @@ public class Scrcpy extends Service {
         return true;
     }
 
-    private void sendTouchEvent(int action, int buttonState, int x, int y, int pointerId){
-        // 为支持多点触控，将 pointid 添加到最末尾
-        // TODO : 后续需要改造 event 传输方式
-        int[] buf = new int[]{action, buttonState, x, y, pointerId};
-        final byte[] array = new byte[buf.length * 4]; // https://stackoverflow.com/questions/2183240/java-integer-to-byte-array
-        for (int j = 0; j < buf.length; j++) {
-            final int c = buf[j];
-            array[j * 4] = (byte) ((c & 0xFF000000) >> 24);
-            array[j * 4 + 1] = (byte) ((c & 0xFF0000) >> 16);
-            array[j * 4 + 2] = (byte) ((c & 0xFF00) >> 8);
-            array[j * 4 + 3] = (byte) (c & 0xFF);
-        }
+    private void sendTouchEvent(int action, int buttonState, int x, int y, float pressure, int pointerId) {
+        sendControlMessage(ControlMessage.createTouch(action, pointerId, x, y, pressure, buttonState));
+    }
+
+    private void sendScrollEvent(int x, int y, float hScroll, float vScroll, int buttonState) {
+        sendControlMessage(ControlMessage.createScroll(x, y, hScroll, vScroll, buttonState));
+    }
+
+    private void sendControlMessage(byte[] msg) {
         if (LetServceRunning.get()) {
-            event.offer(array);
+            event.offer(msg);
         }
-        // event = array;
     }
 
     public int[] get_remote_device_resolution() {
@@ -222,33 +281,84 @@ public class Scrcpy extends Service {
         return socket_status;
     }
 
+    /**
+     * 模拟按键：按下并抬起
+     */
     public void sendKeyevent(int keycode) {
-        int[] buf = new int[]{keycode};
-
-        final byte[] array = new byte[buf.length * 4];   // https://stackoverflow.com/questions/2183240/java-integer-to-byte-array
-        for (int j = 0; j < buf.length; j++) {
-            final int c = buf[j];
-            array[j * 4] = (byte) ((c & 0xFF000000) >> 24);
-            array[j * 4 + 1] = (byte) ((c & 0xFF0000) >> 16);
-            array[j * 4 + 2] = (byte) ((c & 0xFF00) >> 8);
-            array[j * 4 + 3] = (byte) (c & 0xFF);
+        sendControlMessage(ControlMessage.createKey(KeyEvent.ACTION_DOWN, keycode, 0, 0));
+        sendControlMessage(ControlMessage.createKey(KeyEvent.ACTION_UP, keycode, 0, 0));
+    }
+
+    /**
+     * 输入文本，过长的文本会按字符拆分为多条消息
+     */
+    public void sendText(String text) {
+        int start = 0;
+        while (start < text.length()) {
+            // UTF-8 每个字符最多 4 字节（代理对按两个 char 计算，同样不会超过）
+            int end = Math.min(text.length(), start + ControlMessage.MAX_TEXT_LENGTH / 4);
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            sendControlMessage(ControlMessage.createText(text.substring(start, end)));
+            start = end;
         }
-        if (LetServceRunning.get()) {
-            event.offer(array);
-            // event = array;
+    }
+
+    /**
+     * 请求服务端立即发送关键帧（服务端有频率限制）
+     */
+    public void requestKeyFrame() {
+        sendCommand(ControlMessage.COMMAND_REQUEST_KEY_FRAME);
+    }
+
+    /**
+     * 上报显示区域大小（例如悬浮窗），服务端按此降低编码分辨率和帧率，无需重新连接
+     *
+     * @param width  显示区域宽度，0 表示恢复初始分辨率
+     * @param maxFps 最大帧率，0 表示不限制
+     */
+    public void setViewport(int width, int height, int maxFps) {
+        sendControlMessage(ControlMessage.createViewport(width, height, maxFps));
+    }
+
+    /**
+     * 只传输屏幕的一个矩形区域，编码和传输的像素随区域面积减少，之后的触摸坐标相对于该区域
+     *
+     * @param width 区域宽度（设备自然方向），0 表示恢复传输整个屏幕
+     */
+    public void setCrop(int width, int height, int x, int y) {
+        if (width > 0 && height > 0) {
+            // 触摸坐标按画面比例换算，与连接时一样竖屏保存
+            remote_dev_resolution[0] = Math.min(width, height);
+            remote_dev_resolution[1] = Math.max(width, height);
+        } else {
+            System.arraycopy(initial_resolution, 0, remote_dev_resolution, 0, remote_dev_resolution.length);
         }
+        sendControlMessage(ControlMessage.createCrop(width, height, x, y));
+    }
+
+    /**
+     * 发送控制命令，例如 {@link ControlMessage#COMMAND_PROXIMITY_NEAR}
+     */
+    public void sendCommand(int command) {
+        sendControlMessage(ControlMessage.createCommand(command));
     }
 
     private void startConnection(String ip, int port, int delay) {
 
         videoDecoder = new VideoDecoder();
+        videoDecoder.setClock(mediaClock);
         videoDecoder.start();
         audioDecoder = new AudioDecoder();
+        audioDecoder.setClock(mediaClock);
         audioDecoder.start();
 
         DataInputStream dataInputStream = null;
         DataOutputStream dataOutputStream = null;
         Socket socket = null;
+        Socket audioSocket = null;
+        Socket controlSocket = null;
         boolean firstConnect = true;
         int attempts = 50;
         while (attempts > 0) {
@@ -270,39 +380,86 @@ public class Scrcpy extends Service {
                     // waitResolutionCount 为 10，等待100ms 也就是共计一秒钟，设置attempts 为 5，也就是 5秒后则退出
                     attempts = 5;
                 }
-                dataInputStream = new DataInputStream(socket.getInputStream());
-                int waitResolutionCount = 10;
-                while (dataInputStream.available() <= 0 && waitResolutionCount > 0) {
-                    waitResolutionCount--;
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ignore) {
-                    }
+                if (multiSocket) {
+                    // 多路连接：服务端按 video、audio、control 的顺序接受连接，每个连接接受后会先发送一个字节
+                    readDummyByte(socket);
+                    audioSocket = connectAndReadDummyByte(ip, port);
+                    controlSocket = connectAndReadDummyByte(ip, port);
                 }
-                if (dataInputStream.available() <= 0) {
-                    throw new IOException("can't read socket Resolution : " + attempts);
+                dataInputStream = new DataInputStream(socket.getInputStream());
+                dataOutputStream = new DataOutputStream((multiSocket ? controlSocket : socket).getOutputStream());
+                // 等待服务端发送分辨率、视频编码 id、音频编码 id 和音频格式，最多等待一秒钟
+                byte[] buf = new byte[20];
+                socket.setSoTimeout(1000);
+                try {
+                    dataInputStream.readFully(buf, 0, buf.length);
+                } catch (IOException e) {
+                    throw new IOException("can't read socket Resolution : " + attempts, e);
                 }
-
-
-                dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                socket.setSoTimeout(0);
                 attempts = 0;
-                byte[] buf = new byte[16];
-                dataInputStream.read(buf, 0, 16);
                 for (int i = 0; i < remote_dev_resolution.length; i++) {
                     remote_dev_resolution[i] = (((int) (buf[i * 4]) << 24) & 0xFF000000) |
                             (((int) (buf[i * 4 + 1]) << 16) & 0xFF0000) |
                             (((int) (buf[i * 4 + 2]) << 8) & 0xFF00) |
                             ((int) (buf[i * 4 + 3]) & 0xFF);
                 }
+                VideoCodec codec = VideoCodec.findById(ByteUtils.bytesToInt(Arrays.copyOfRange(buf, 8, 12)));
+                if (codec == null) {
+                    throw new IOException("Unknown video codec");
+                }
+                videoCodec = codec;
+                Log.i("Scrcpy", "Video codec: " + codec.getName());
+                int audioId = ByteUtils.bytesToInt(Arrays.copyOfRange(buf, 12, 16));
+                if (audioId == 0) {
+                    // 服务端关闭了音频（或设备不支持采集），不会收到音频数据
+                    Log.i("Scrcpy", "Audio disabled");
+                } else {
+                    AudioCodec audio = AudioCodec.findById(audioId);
+                    if (audio == null) {
+                        throw new IOException("Unknown audio codec");
+                    }
+                    // 高 24 位为采样率，低 8 位为声道数
+                    int audioFormat = ByteUtils.bytesToInt(Arrays.copyOfRange(buf, 16, 20));
+                    int sampleRate = audioFormat >>> 8;
+                    int channels = audioFormat & 0xFF;
+                    // 配置帧紧跟在 header 之后，先设置编码
+                    audioDecoder.setCodec(audio, sampleRate, channels);
+                    Log.i("Scrcpy", "Audio codec: " + audio.getName() + ", " + sampleRate + " Hz, " + channels + " channels");
+                }
                 if (remote_dev_resolution[0] > remote_dev_resolution[1]) {
                     first_time = false;
                     int i = remote_dev_resolution[0];
                     remote_dev_resolution[0] = remote_dev_resolution[1];
                     remote_dev_resolution[1] = i;
                 }
+                System.arraycopy(remote_dev_resolution, 0, initial_resolution, 0, initial_resolution.length);
                 socket_status = true;
-
-                loop(dataInputStream, dataOutputStream, delay);
+                connectionLost.set(false);
+                resetStreams();
+
+                // 数据在独立线程中阻塞读取，收到即交给解码器；控制消息在当前线程发送
+                Thread videoThread = startReader("scrcpy-video", dataInputStream, delay);
+                Thread audioThread = null;
+                if (multiSocket) {
+                    audioThread = startReader("scrcpy-audio", new DataInputStream(audioSocket.getInputStream()), delay);
+                }
+                try {
+                    controlLoop(dataOutputStream);
+                } finally {
+                    // 关闭连接，使读取线程退出
+                    closeQuietly(socket);
+                    closeQuietly(audioSocket);
+                    videoThread.join();
+                    if (audioThread != null) {
+                        audioThread.join();
+                    }
+                }
+                if (connectionLost.get() && LetServceRunning.get()) {
+                    // 服务端在 SESSION_RESUME_GRACE_MS 内保留会话，重新连接后会重发分辨率、编码配置和关键帧
+                    Log.e("Scrcpy", "Connection lost, resuming session");
+                    attempts = RESUME_ATTEMPTS;
+                }
 
             } catch (Exception e) {
                 e.printStackTrace();
@@ -324,13 +481,9 @@ public class Scrcpy extends Service {
                 Log.e("Scrcpy", e.getMessage());
                 Log.e("Scrcpy", "attempts--");
             } finally {
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+                closeQuietly(socket);
+                closeQuietly(audioSocket);
+                closeQuietly(controlSocket);
                 if (dataOutputStream != null) {
                     try {
                         dataOutputStream.close();
@@ -354,133 +507,258 @@ public class Scrcpy extends Service {
 
     }
 
-    private void loop(DataInputStream dataInputStream, DataOutputStream dataOutputStream, int delay) throws InterruptedException {
-        VideoPacket.StreamSettings streamSettings = null;
-        byte[] packetSize = new byte[4];
+    private static Socket connectAndReadDummyByte(String ip, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), 5000);
+            readDummyByte(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        return socket;
+    }
 
-        // 由于网络传输存在延迟，丢弃数据包计数
-        long lastVideoOffset = 0;
-        long lastAudioOffset = 0;
-        int videoPassCount = 0;
-        int audioPassCount = 0;
+    private static void readDummyByte(Socket socket) throws IOException {
+        // 通过 adb forward 连接时，即使服务端还未监听，连接也会成功，所以需要读取服务端发送的一个字节来确认
+        socket.setSoTimeout(1000);
+        try {
+            if (socket.getInputStream().read() == -1) {
+                throw new IOException("Connection not accepted by the server");
+            }
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Connection not accepted by the server", e);
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
 
-        while (LetServceRunning.get()) {
-            boolean waitEvent = true;
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
             try {
-                byte[] sendevent = event.poll();
-                if (sendevent != null) {
-                    waitEvent = false;
-                    try {
-                        dataOutputStream.write(sendevent, 0, sendevent.length);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        if (serviceCallbacks != null) {
-                            serviceCallbacks.errorDisconnect();
-                        }
-                        LetServceRunning.set(false);
-                    } finally {
-                        // event = null;
-                    }
-                }
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                if (dataInputStream.available() > 0) {
-                    waitEvent = false;
-                    dataInputStream.readFully(packetSize, 0, 4);
-                    int size = ByteUtils.bytesToInt(packetSize);
-                    if (size > 4 * 1024 * 1024) {  // 如果单个数据包大于 4m ，直接断开连接
-                        if (serviceCallbacks != null) {
-                            serviceCallbacks.errorDisconnect();
+    private void resetStreams() {
+        // 不清除 videoConfig 与 streamSettings：恢复会话时服务端重发的配置与之前相同，解码器不需要重新配置
+        waitingKeyFrame = false;
+        mediaClock.reset();
+    }
+
+    private Thread startReader(String name, DataInputStream dataInputStream, int delay) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] packetSize = new byte[4];
+                try {
+                    while (LetServceRunning.get()) {
+                        byte[] packet = readPacket(dataInputStream, packetSize);
+                        if (packet == null) {
+                            return;
                         }
-                        LetServceRunning.set(false);
-                        return;
+                        handlePacket(packet, delay);
                     }
-                    byte[] packet = new byte[size];
-                    dataInputStream.readFully(packet, 0, size);
-                    if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.VIDEO) {
-                        VideoPacket videoPacket = VideoPacket.readHead(packet);
-                        // byte[] data = videoPacket.data;
-                        if (videoPacket.flag == VideoPacket.Flag.CONFIG || updateAvailable.get()) {
-                            if (!updateAvailable.get()) {
-                                int dataLength = packet.length - VideoPacket.getHeadLen();
-                                byte[] data = new byte[dataLength];
-                                System.arraycopy(packet, VideoPacket.getHeadLen(), data, 0, dataLength);
-                                streamSettings = VideoPacket.getStreamSettings(data);
-                                if (!first_time) {
-                                    if (serviceCallbacks != null) {
-                                        serviceCallbacks.loadNewRotation();
-                                    }
-                                    while (!updateAvailable.get()) {
-                                        // Waiting for new surface
-                                        try {
-                                            Thread.sleep(100);
-                                        } catch (InterruptedException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
-
-                                }
-                            }
-                            updateAvailable.set(false);
-                            if (streamSettings != null) {
-                                videoDecoder.configure(surface, screenWidth, screenHeight, streamSettings.sps, streamSettings.pps);
-                            }
-                        } else if (videoPacket.flag == VideoPacket.Flag.END) {
-                            // need close stream
-                            Log.e("Scrcpy", "END ... ");
-                        } else {
-                            // Log.e("Scrcpy", "videoPacket presentationTimeStamp ... " + videoPacket.presentationTimeStamp);
-                            // 帧在 100 ms 以内
-                            if (lastVideoOffset == 0) {
-                                lastVideoOffset = System.currentTimeMillis() - (videoPacket.presentationTimeStamp / 1000);
-                            }
-                            if (videoPacket.flag == VideoPacket.Flag.KEY_FRAME) {
-                                videoDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - VideoPacket.getHeadLen(),
-                                        0, videoPacket.flag.getFlag());
-                            } else {
-                                if (System.currentTimeMillis() - (lastVideoOffset + (videoPacket.presentationTimeStamp / 1000)) < delay) {
-                                    videoPassCount = 0;
-                                    videoDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - VideoPacket.getHeadLen(),
-                                            0, videoPacket.flag.getFlag());
-                                } else {
-                                    videoPassCount++;
-                                }
-                            }
-                        }
-                        first_time = false;
-                    } else if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.AUDIO) {
-                        AudioPacket audioPacket = AudioPacket.readHead(packet);
-                        // byte[] data = audioPacket.data;
-                        if (audioPacket.flag == AudioPacket.Flag.CONFIG) {
-                            int dataLength = packet.length - AudioPacket.getHeadLen();
-                            byte[] data = new byte[dataLength];
-                            System.arraycopy(packet, AudioPacket.getHeadLen(), data, 0, dataLength);
-                            audioDecoder.configure(data);
-                        } else if (audioPacket.flag == AudioPacket.Flag.END) {
-                            // need close stream
-                            Log.e("Scrcpy", "Audio END ... ");
-                        } else {
-                            if (lastAudioOffset == 0) {
-                                lastAudioOffset = System.currentTimeMillis() - (audioPacket.presentationTimeStamp / 1000);
-                            }
-                            if (System.currentTimeMillis() - (lastAudioOffset + (audioPacket.presentationTimeStamp / 1000)) < delay) {
-                                audioPassCount = 0;
-                                audioDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - AudioPacket.getHeadLen(),
-                                        0, audioPacket.flag.getFlag());
-                            } else {
-                                audioPassCount++;
-                            }
-                        }
+                } catch (IOException e) {
+                    if (LetServceRunning.get()) {
+                        Log.e("Scrcpy", name + " IOException: " + e.getMessage());
+                        // 由连接线程重新连接，重连失败后才提示断开
+                        connectionLost.set(true);
                     }
-
                 }
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private void controlLoop(DataOutputStream dataOutputStream) throws InterruptedException {
+        try {
+            // 控制协议版本，服务端读取第一个字节进行校验
+            dataOutputStream.writeByte(ControlMessage.VERSION);
+        } catch (IOException e) {
+            e.printStackTrace();
+            connectionLost.set(true);
+            return;
+        }
+        while (LetServceRunning.get() && !connectionLost.get()) {
+            // 有事件时立即返回，超时只用于检查服务是否已停止
+            byte[] sendevent = event.poll(CONTROL_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (sendevent == null) {
+                continue;
+            }
+            try {
+                dataOutputStream.write(sendevent, 0, sendevent.length);
             } catch (IOException e) {
-                Log.e("Scrcpy", "IOException: " + e.getMessage());
                 e.printStackTrace();
-            } finally {
-                if (waitEvent) {
-                    Thread.sleep(5);
+                connectionLost.set(true);
+            }
+        }
+    }
+
+    /**
+     * 读取一个完整的数据包
+     *
+     * @return 数据包内容，如果数据包过大（大于 4m）则返回 null，需要断开连接
+     */
+    private byte[] readPacket(DataInputStream dataInputStream, byte[] packetSize) throws IOException {
+        dataInputStream.readFully(packetSize, 0, 4);
+        int size = ByteUtils.bytesToInt(packetSize);
+        if (size > 4 * 1024 * 1024) {  // 如果单个数据包大于 4m ，直接断开连接
+            if (serviceCallbacks != null) {
+                serviceCallbacks.errorDisconnect();
+            }
+            LetServceRunning.set(false);
+            return null;
+        }
+        byte[] packet = new byte[size];
+        dataInputStream.readFully(packet, 0, size);
+        return packet;
+    }
+
+    private void handlePacket(byte[] packet, int delay) {
+        if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.VIDEO) {
+            handleVideoPacket(packet, delay);
+        } else if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.AUDIO) {
+            handleAudioPacket(packet, delay);
+        }
+    }
+
+    private void handleVideoPacket(byte[] packet, int delay) {
+        VideoPacket videoPacket = VideoPacket.readHead(packet);
+        // byte[] data = videoPacket.data;
+        if (videoPacket.flag == VideoPacket.Flag.RECONFIGURE) {
+            // 服务端重启编码器之前先通知新的视频尺寸，旋转界面与服务端重启编码器同时进行
+            reconfigureTime = SystemClock.uptimeMillis();
+            Boolean landscape = VideoPacket.isLandscape(videoPacket.presentationTimeStamp);
+            if (landscape != null && landscape != videoLandscape) {
+                videoLandscape = landscape;
+                requestNewSurface();
+            }
+            return;
+        }
+        if (videoPacket.flag == VideoPacket.Flag.CONFIG) {
+            // 配置总是要解析：RECONFIGURE 之后界面可能先于新配置返回 surface，不能用旧的 sps/pps 配置解码器
+            int dataLength = packet.length - VideoPacket.getHeadLen();
+            byte[] data = new byte[dataLength];
+            System.arraycopy(packet, VideoPacket.getHeadLen(), data, 0, dataLength);
+            boolean changed = !Arrays.equals(data, videoConfig);
+            if (!changed && !updateAvailable.get()) {
+                // 响应关键帧请求重发的配置，与当前配置相同，解码器不需要重新配置
+                return;
+            }
+            if (changed) {
+                videoConfig = data;
+                streamSettings = VideoPacket.getStreamSettings(videoCodec.getMimeType(), data);
+                Boolean landscape = VideoPacket.isLandscape(videoPacket.presentationTimeStamp);
+                // 旧版本服务端没有视频尺寸，配置变化只可能是旋转
+                boolean rotated = landscape == null || landscape != videoLandscape;
+                if (landscape != null) {
+                    videoLandscape = landscape;
+                }
+                if (!first_time && rotated) {
+                    requestNewSurface();
+                }
+                // 旋转已由 RECONFIGURE 提前通知时，界面通常已经准备好，不需要等待
+                awaitSurface();
+            }
+            updateAvailable.set(false);
+            if (streamSettings != null) {
+                videoDecoder.configure(surface, streamSettings.mimeType, screenWidth, screenHeight, streamSettings.sps, streamSettings.pps);
+            }
+        } else if (updateAvailable.get()) {
+            // 只有 surface 变化（配置没有变化）：沿用当前的 streamSettings
+            updateAvailable.set(false);
+            if (streamSettings != null) {
+                videoDecoder.configure(surface, streamSettings.mimeType, screenWidth, screenHeight, streamSettings.sps, streamSettings.pps);
+            }
+        } else if (videoPacket.flag == VideoPacket.Flag.END) {
+            // need close stream
+            Log.e("Scrcpy", "END ... ");
+        } else {
+            // 延迟过大时由服务端丢弃整帧并立即请求关键帧，客户端丢弃 P 帧会导致花屏直到下一个关键帧
+            mediaClock.onPacket(MediaClock.STREAM_VIDEO, videoPacket.presentationTimeStamp, System.nanoTime());
+            boolean decoded = videoDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - VideoPacket.getHeadLen(),
+                    videoPacket.presentationTimeStamp, videoPacket.flag.getFlag());
+            if (decoded && reconfigureTime != 0) {
+                Log.i("Scrcpy", "Video reconfigured, first frame after " + (SystemClock.uptimeMillis() - reconfigureTime) + " ms");
+                reconfigureTime = 0;
+            }
+            if (!decoded && !waitingKeyFrame) {
+                // 解码器跟不上而丢帧，之后的帧需要等待关键帧
+                requestKeyFrame();
+            }
+            waitingKeyFrame = !decoded;
+        }
+        first_time = false;
+    }
+
+    /**
+     * 通知界面按新的方向重建 surface，新的 surface 通过 {@link #setParms} 传入
+     */
+    private void requestNewSurface() {
+        if (serviceCallbacks == null) {
+            return;
+        }
+        synchronized (surfaceLock) {
+            waitingSurface = true;
+        }
+        serviceCallbacks.loadNewRotation();
+    }
+
+    private void onSurfaceUpdated() {
+        synchronized (surfaceLock) {
+            waitingSurface = false;
+            updateAvailable.set(true);
+            surfaceLock.notifyAll();
+        }
+    }
+
+    private void awaitSurface() {
+        synchronized (surfaceLock) {
+            long deadline = SystemClock.uptimeMillis() + SURFACE_WAIT_TIMEOUT_MS;
+            long remaining;
+            while (waitingSurface && LetServceRunning.get() && (remaining = deadline - SystemClock.uptimeMillis()) > 0) {
+                try {
+                    surfaceLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
+            if (waitingSurface) {
+                Log.w("Scrcpy", "New surface not ready, keep the current one");
+                waitingSurface = false;
+            }
+        }
+    }
+
+    private void handleAudioPacket(byte[] packet, int delay) {
+        AudioPacket audioPacket = AudioPacket.readHead(packet);
+        // byte[] data = audioPacket.data;
+        if (audioPacket.flag == AudioPacket.Flag.CONFIG) {
+            int dataLength = packet.length - AudioPacket.getHeadLen();
+            byte[] data = new byte[dataLength];
+            System.arraycopy(packet, AudioPacket.getHeadLen(), data, 0, dataLength);
+            audioDecoder.configure(data);
+        } else if (audioPacket.flag == AudioPacket.Flag.SILENCE) {
+            // 服务端停止发送音频帧，直到声音恢复
+            audioDecoder.onSilence();
+        } else if (audioPacket.flag == AudioPacket.Flag.END) {
+            // need close stream
+            Log.e("Scrcpy", "Audio END ... ");
+        } else {
+            long now = System.nanoTime();
+            mediaClock.onPacket(MediaClock.STREAM_AUDIO, audioPacket.presentationTimeStamp, now);
+            long presentationTimeNs = mediaClock.getPresentationTimeNs(audioPacket.presentationTimeStamp);
+            // 已经超过呈现时间 delay 毫秒的声音不再播放
+            if (presentationTimeNs == MediaClock.UNKNOWN || now - presentationTimeNs < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                audioDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - AudioPacket.getHeadLen(),
+                        audioPacket.presentationTimeStamp, audioPacket.flag.getFlag());
+            }
         }
     }
 
@@ -211,6 +211,12 @@ public class ScrcpyHost implements Scrcpy.ServiceCallbacks {
         return scrcpy.touchevent(motionEvent, false, surfaceW, surfaceH);
     }
 
+    public void setViewport(int width, int height, int maxFps) {
+        if (scrcpy != null) {
+            scrcpy.setViewport(width, height, maxFps);
+        }
+    }
+
     public void keyEvent(int keyCode) {
         scrcpy.sendKeyevent(keyCode);
     }
@@ -16,6 +16,9 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class SendCommands {
 
@@ -27,14 +30,19 @@ public class SendCommands {
 
     }
 
-    public int SendAdbCommands(Context context, final String ip, int port, int forwardport, String localip, int bitrate, int size) {
-        return this.SendAdbCommands(context, null, ip, port, forwardport, localip, bitrate, size);
+    /**
+     * @param serverOptions 额外的服务端参数，格式为 key=value
+     */
+    public int SendAdbCommands(Context context, final String ip, int port, int forwardport, String localip, int bitrate, int size,
+                               String... serverOptions) {
+        return this.SendAdbCommands(context, null, ip, port, forwardport, localip, bitrate, size, serverOptions);
     }
 
-    public int SendAdbCommands(Context context, final byte[] fileBase64, final String ip, int port, int forwardport, String localip, int bitrate, int size) {
+    public int SendAdbCommands(Context context, final byte[] fileBase64, final String ip, int port, int forwardport, String localip, int bitrate, int size,
+                               String... serverOptions) {
         this.context = context;
         status = 1;
-        String[] commands = new String[]{
+        List<String> commandList = new ArrayList<>(Arrays.asList(
                 "-s", ip + ":" + port,
                 "shell",
                 " CLASSPATH=/data/local/tmp/scrcpy-server.jar",
@@ -43,8 +51,12 @@ public class SendCommands {
                 "org.server.scrcpy.Server",
                 "/" + localip,
                 Long.toString(size),
-                Long.toString(bitrate) + ";"
-        };
+                Long.toString(bitrate)
+        ));
+        commandList.addAll(Arrays.asList(serverOptions));
+        // 命令以 ; 结尾
+        commandList.set(commandList.size() - 1, commandList.get(commandList.size() - 1) + ";");
+        String[] commands = commandList.toArray(new String[0]);
         ThreadUtils.execute(() -> {
             try {
                 // 新版的复制方式
@@ -0,0 +1,190 @@
+package org.client.scrcpy.control;
+
+import android.view.MotionEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 控制消息编码，与服务端 org.server.scrcpy.control.ControlMessageReader 对应
+ * <p>
+ * 控制连接建立后先发送一个字节的协议版本 {@link #VERSION}，之后每条消息为（大端序）：
+ * 1 字节类型 | 2 字节负载长度 | 负载
+ * <p>
+ * 有长度前缀，TCP 分包、粘包都能正确解析，每条消息只占用实际需要的字节
+ */
+public final class ControlMessage {
+
+    public static final byte VERSION = 2;
+
+    public static final int TYPE_TOUCH = 0;
+    public static final int TYPE_KEY = 1;
+    public static final int TYPE_TEXT = 2;
+    public static final int TYPE_SCROLL = 3;
+    public static final int TYPE_COMMAND = 4;
+    // 所有手指的一次移动，附带历史采样点（历史点坐标为相对当前坐标的差值）
+    public static final int TYPE_MOTION = 5;
+    // 客户端显示区域大小，服务端按此降低编码分辨率和帧率
+    public static final int TYPE_VIEWPORT = 6;
+    // 只传输屏幕的一个矩形区域（设备自然方向的坐标）
+    public static final int TYPE_CROP = 7;
+
+    // 本机距离传感器被遮挡 / 离开
+    public static final int COMMAND_PROXIMITY_NEAR = 0;
+    public static final int COMMAND_PROXIMITY_FAR = 1;
+    // 请求关键帧（服务端会先重发编码配置），解码器重置后无需等待下一个周期性关键帧
+    public static final int COMMAND_REQUEST_KEY_FRAME = 2;
+
+    private static final int HEADER_LENGTH = 3;
+    // 与服务端 PointersState.MAX_POINTERS 一致
+    private static final int MAX_POINTERS = 10;
+    private static final int MAX_HISTORY_SIZE = 0xff;
+    // 文本消息最大字节数，过长的文本需要分多条发送
+    public static final int MAX_TEXT_LENGTH = 300;
+
+    private ControlMessage() {
+        // not instantiable
+    }
+
+    private static ByteBuffer allocate(int type, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        buffer.put((byte) type);
+        buffer.putShort((short) payloadLength);
+        return buffer;
+    }
+
+    /**
+     * @param pressure 压力值 0 ~ 1
+     */
+    public static byte[] createTouch(int action, long pointerId, int x, int y, float pressure, int buttons) {
+        ByteBuffer buffer = allocate(TYPE_TOUCH, 23);
+        buffer.put((byte) action);
+        buffer.putLong(pointerId);
+        buffer.putInt(x);
+        buffer.putInt(y);
+        buffer.putShort(toFixedPoint16(pressure));
+        buffer.putInt(buttons);
+        return buffer.array();
+    }
+
+    public static byte[] createKey(int action, int keycode, int repeat, int metaState) {
+        ByteBuffer buffer = allocate(TYPE_KEY, 13);
+        buffer.put((byte) action);
+        buffer.putInt(keycode);
+        buffer.putInt(repeat);
+        buffer.putInt(metaState);
+        return buffer.array();
+    }
+
+    public static byte[] createText(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        if (raw.length > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException("Text too long: " + raw.length + " bytes");
+        }
+        ByteBuffer buffer = allocate(TYPE_TEXT, raw.length);
+        buffer.put(raw);
+        return buffer.array();
+    }
+
+    public static byte[] createScroll(int x, int y, float hScroll, float vScroll, int buttons) {
+        ByteBuffer buffer = allocate(TYPE_SCROLL, 20);
+        buffer.putInt(x);
+        buffer.putInt(y);
+        buffer.putFloat(hScroll);
+        buffer.putFloat(vScroll);
+        buffer.putInt(buttons);
+        return buffer.array();
+    }
+
+    /**
+     * 将多指 ACTION_MOVE 编码为一条消息，包含所有手指以及 {@link MotionEvent#getHistorySize()} 个历史采样点
+     * <p>
+     * 格式：4 buttons | 1 手指数 n | 1 历史点数 h
+     * | n * (8 pointerId | 4 x | 4 y | 2 pressure)
+     * | h * (2 相对当前事件的毫秒数 | n * (2 dx | 2 dy | 2 pressure))，历史点从旧到新
+     *
+     * @param scaleX 本地坐标到远程坐标的缩放
+     * @param scaleY 本地坐标到远程坐标的缩放
+     */
+    public static byte[] createMotion(MotionEvent event, float scaleX, float scaleY) {
+        int pointerCount = Math.min(event.getPointerCount(), MAX_POINTERS);
+        int historySize = Math.min(event.getHistorySize(), MAX_HISTORY_SIZE);
+        // 历史点过多时只保留最新的
+        int firstHistory = event.getHistorySize() - historySize;
+        ByteBuffer buffer = allocate(TYPE_MOTION, 6 + pointerCount * 18 + historySize * (2 + pointerCount * 6));
+        buffer.putInt(event.getButtonState());
+        buffer.put((byte) pointerCount);
+        buffer.put((byte) historySize);
+
+        int[] xs = new int[pointerCount];
+        int[] ys = new int[pointerCount];
+        for (int i = 0; i < pointerCount; ++i) {
+            xs[i] = (int) (event.getX(i) * scaleX);
+            ys[i] = (int) (event.getY(i) * scaleY);
+            // 与 TOUCH 消息的 pointerId 一致，8 字节
+            buffer.putLong(event.getPointerId(i));
+            buffer.putInt(xs[i]);
+            buffer.putInt(ys[i]);
+            buffer.putShort(toFixedPoint16(event.getPressure(i)));
+        }
+        long eventTime = event.getEventTime();
+        for (int h = firstHistory; h < event.getHistorySize(); ++h) {
+            buffer.putShort(toUnsigned16(eventTime - event.getHistoricalEventTime(h)));
+            for (int i = 0; i < pointerCount; ++i) {
+                buffer.putShort(toSigned16((int) (event.getHistoricalX(i, h) * scaleX) - xs[i]));
+                buffer.putShort(toSigned16((int) (event.getHistoricalY(i, h) * scaleY) - ys[i]));
+                buffer.putShort(toFixedPoint16(event.getHistoricalPressure(i, h)));
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param width  显示区域宽度，0 表示恢复初始分辨率
+     * @param height 显示区域高度
+     * @param maxFps 最大帧率，0 表示不限制
+     */
+    public static byte[] createViewport(int width, int height, int maxFps) {
+        ByteBuffer buffer = allocate(TYPE_VIEWPORT, 5);
+        buffer.putShort(toUnsigned16(width));
+        buffer.putShort(toUnsigned16(height));
+        buffer.put((byte) Math.max(0, Math.min(0xff, maxFps)));
+        return buffer.array();
+    }
+
+    /**
+     * 宽或高为 0 表示恢复传输整个屏幕
+     */
+    public static byte[] createCrop(int width, int height, int x, int y) {
+        ByteBuffer buffer = allocate(TYPE_CROP, 8);
+        buffer.putShort(toUnsigned16(width));
+        buffer.putShort(toUnsigned16(height));
+        buffer.putShort(toUnsigned16(x));
+        buffer.putShort(toUnsigned16(y));
+        return buffer.array();
+    }
+
+    public static byte[] createCommand(int command) {
+        ByteBuffer buffer = allocate(TYPE_COMMAND, 1);
+        buffer.put((byte) command);
+        return buffer.array();
+    }
+
+    private static short toSigned16(int value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    private static short toUnsigned16(long value) {
+        return (short) Math.max(0, Math.min(0xffff, value));
+    }
+
+    private static short toFixedPoint16(float value) {
+        if (value < 0f) {
+            value = 0f;
+        } else if (value > 1f) {
+            value = 1f;
+        }
+        // 定点数，0xffff 表示 1.0
+        return (short) Math.round(value * 0xffff);
+    }
+}
@@ -0,0 +1,138 @@
+package org.client.scrcpy.decoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 音频编码类型，与服务端 org.server.scrcpy.AudioCodec 对应
+ * <p>
+ * 客户端通过服务端参数 audio_codecs 上报本机可以解码的编码类型（按优先级排序），服务端选择设备可以编码的第一个，
+ * 并在视频编码 id 之后发送音频编码 id
+ */
+public enum AudioCodec {
+    // Opus 的编码延迟（约 6.5ms）远小于 AAC（1024 个采样加上前瞻，约 40ms），优先使用；服务端需要 Android 10 以上
+    OPUS(0x6f_70_75_73, "opus", "audio/opus"),
+    AAC(0x00_61_61_63, "aac", "audio/mp4a-latm"),
+    // 不压缩的 PCM（16 位，采样率和声道数见服务端参数 audio_sample_rate、audio_channels），默认约 1.5Mbps，只适合 USB 等带宽足够的连接，不自动上报，需要时通过 audio_codecs=raw 指定
+    RAW(0x00_72_61_77, "raw", "audio/raw");
+
+    // Android Opus 编码器输出的配置数据由多段组成，每段为 8 字节标记 + 8 字节小端长度 + 数据
+    private static final int OPUS_MARKER_SIZE = 8;
+    private static final String OPUS_HEADER_MARKER = "AOPUSHDR";
+    private static final String OPUS_DELAY_MARKER = "AOPUSDLY";
+    private static final String OPUS_PREROLL_MARKER = "AOPUSPRL";
+    // 没有对应配置时的默认值（纳秒）：解码器延迟 0，seek 预滚 80ms
+    private static final long OPUS_DEFAULT_PREROLL_NS = 80_000_000L;
+
+    private final int id;
+    private final String name;
+    private final String mimeType;
+
+    AudioCodec(int id, String name, String mimeType) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return 对应的编码类型，未知 id 返回 null
+     */
+    public static AudioCodec findById(int id) {
+        for (AudioCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 本机支持的编码类型，用逗号分隔，按优先级排序，作为服务端参数 audio_codecs 的值
+     * <p>
+     * AAC 总是支持；Opus 只有存在解码器时才上报（音频数据量小，软件解码即可）
+     */
+    public static String getSupportedNames() {
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        if (hasDecoder(infos, OPUS.mimeType)) {
+            return OPUS.name + "," + AAC.name;
+        }
+        return AAC.name;
+    }
+
+    private static boolean hasDecoder(MediaCodecInfo[] infos, String mimeType) {
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 将服务端发送的 Opus 配置数据拆分为解码器需要的 csd-0（OpusHead）、csd-1（解码器延迟）、csd-2（seek 预滚）
+     * <p>
+     * 不是分段格式时，整个数据作为 csd-0
+     *
+     * @return 长度为 3 的数组
+     */
+    static ByteBuffer[] splitOpusConfig(byte[] data) {
+        ByteBuffer header = null;
+        ByteBuffer delay = null;
+        ByteBuffer preroll = null;
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= OPUS_MARKER_SIZE + 8) {
+            String marker = new String(data, buffer.position(), OPUS_MARKER_SIZE);
+            buffer.position(buffer.position() + OPUS_MARKER_SIZE);
+            long length = buffer.getLong();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer value = ByteBuffer.wrap(data, buffer.position(), (int) length).slice();
+            buffer.position(buffer.position() + (int) length);
+            if (OPUS_HEADER_MARKER.equals(marker)) {
+                header = value;
+            } else if (OPUS_DELAY_MARKER.equals(marker)) {
+                delay = value;
+            } else if (OPUS_PREROLL_MARKER.equals(marker)) {
+                preroll = value;
+            }
+        }
+        if (header == null) {
+            header = ByteBuffer.wrap(data);
+        }
+        if (delay == null) {
+            delay = nanosBuffer(0);
+        }
+        if (preroll == null) {
+            preroll = nanosBuffer(OPUS_DEFAULT_PREROLL_NS);
+        }
+        return new ByteBuffer[]{header, delay, preroll};
+    }
+
+    private static ByteBuffer nanosBuffer(long nanos) {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(nanos);
+        buffer.flip();
+        return buffer;
+    }
+}
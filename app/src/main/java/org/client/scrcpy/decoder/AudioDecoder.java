@@ -1,8 +1,5 @@
 package org.client.scrcpy.decoder;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
@@ -12,40 +9,114 @@ import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class AudioDecoder {
 
     public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
 
-    private MediaCodec mCodec;
+    private static final int RING_CAPACITY = 32;
+    private static final int RING_SLOT_SIZE = 4 * 1024;
+
+    private static final long WAIT_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+    // ring 中的静音标记，不是 MediaCodec 的标志
+    private static final int SLOT_FLAG_SILENCE = 1 << 16;
+
+    // 旧版本服务端的音频格式
+    private static final int DEFAULT_SAMPLE_RATE = 48000;
+    private static final int DEFAULT_CHANNELS = 2;
+
+    // 网络线程写入，feeder 线程读取送入解码器
+    private final PacketRing mRing = new PacketRing(RING_CAPACITY, RING_SLOT_SIZE);
+    private final AtomicReference<Configuration> mPendingConfiguration = new AtomicReference<>();
+
+    private volatile MediaCodec mCodec;
+    // 服务端选择的编码，在下一次配置时生效
+    private volatile AudioCodec mAudioCodec = AudioCodec.AAC;
+    private volatile int mSampleRate = DEFAULT_SAMPLE_RATE;
+    private volatile int mChannels = DEFAULT_CHANNELS;
+    // 音画同步，为 null 时收到即播放
+    private volatile MediaClock mClock;
     private Worker mWorker;
+    private Feeder mFeeder;
     private AtomicBoolean mIsConfigured = new AtomicBoolean(false);
+    // feeder 已经送入静音之前的所有帧，worker 输出完之后暂停播放
+    private volatile boolean mSilencePending;
+
+    // 每次配置时重新创建，worker（或 RAW 时的 feeder）线程写入
+    private volatile AudioPlayer mPlayer;
+    // worker 按解码器输出格式替换播放器时，与重新配置互斥
+    private final Object mPlayerLock = new Object();
 
-    private AudioTrack audioTrack;
-    private final int SAMPLE_RATE = 48000;
+    /**
+     * 音频帧入队，不阻塞网络线程
+     *
+     * @return 解码跟不上时丢帧，返回 {@code false}
+     */
+    public boolean decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
+        if (mFeeder == null) {
+            return true;
+        }
+        if (!mRing.offer(data, offset, size, presentationTimeUs, flags)) {
+            Log.w("Scrcpy", "Audio decoder too slow, frame dropped: " + mRing);
+            return false;
+        }
+        return true;
+    }
 
-    private void initAudioTrack() {
-        int bufferSizeInBytes = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT,
-                bufferSizeInBytes, AudioTrack.MODE_STREAM);
+    public void setClock(MediaClock clock) {
+        mClock = clock;
     }
 
-    public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-        if (mWorker != null) {
-            mWorker.decodeSample(data, offset, size, presentationTimeUs, flags);
+    /**
+     * 设置服务端选择的音频编码和格式（见连接时的 header），需要在收到配置帧之前调用
+     */
+    public void setCodec(AudioCodec audioCodec, int sampleRate, int channels) {
+        mAudioCodec = audioCodec;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+    }
+
+    /**
+     * 服务端检测到静音，不再发送音频帧：之前的帧播放完之后暂停播放
+     */
+    public void onSilence() {
+        if (mFeeder != null) {
+            // 通过 ring 传递，保证在之前的帧之后处理
+            mRing.offer(new byte[0], 0, 0, 0, SLOT_FLAG_SILENCE);
         }
     }
 
     public void configure(byte[] data) {
-        if (mWorker != null) {
-            mWorker.configure(data);
+        Feeder feeder = mFeeder;
+        if (feeder != null) {
+            // 之前入队的帧属于旧的配置，直接丢弃
+            mPendingConfiguration.set(new Configuration(mAudioCodec, mSampleRate, mChannels, data, mRing.getWritePosition()));
+            feeder.wakeUp();
         }
     }
 
+    /**
+     * 等待解码的音频帧数量
+     */
+    public int getQueuedSamples() {
+        return mRing.getOccupancy();
+    }
+
+    public PacketRing getRing() {
+        return mRing;
+    }
 
     public void start() {
         if (mWorker == null) {
+            mFeeder = new Feeder();
+            mFeeder.setRunning(true);
+            mFeeder.start();
             mWorker = new Worker();
             mWorker.setRunning(true);
             mWorker.start();
@@ -54,90 +125,275 @@ public class AudioDecoder {
 
     public void stop() {
         if (mWorker != null) {
-            mWorker.setRunning(false);
+            Worker worker = mWorker;
+            Feeder feeder = mFeeder;
+            worker.setRunning(false);
+            worker.wakeUp();
             mWorker = null;
+            feeder.setRunning(false);
+            feeder.wakeUp();
+            mFeeder = null;
+            // ring 只能有一个消费者：等待旧的 feeder 退出，之后 start() 创建的 feeder 才能访问 ring
+            joinUninterruptibly(feeder);
+            joinUninterruptibly(worker);
             mIsConfigured.set(false);
             if (mCodec != null) {
                 mCodec.stop();
             }
-            if (audioTrack != null) {
-                audioTrack.stop();
+            if (mPlayer != null) {
+                mPlayer.stop();
             }
         }
     }
 
-    private class Worker extends Thread {
+    /**
+     * 等待线程退出，中断不会提前返回（保留中断状态）
+     */
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long getPresentationTimeNs(long presentationTimeUs) {
+        MediaClock clock = mClock;
+        return clock != null ? clock.getPresentationTimeNs(presentationTimeUs) : MediaClock.UNKNOWN;
+    }
+
+    private static final class Configuration {
+        private final AudioCodec audioCodec;
+        private final int sampleRate;
+        private final int channels;
+        private final byte[] data;
+        private final long ringPosition;
+
+        private Configuration(AudioCodec audioCodec, int sampleRate, int channels, byte[] data, long ringPosition) {
+            this.audioCodec = audioCodec;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.data = data;
+            this.ringPosition = ringPosition;
+        }
+    }
+
+    /**
+     * 从 ring 中取出音频帧，送入解码器
+     */
+    private class Feeder extends Thread {
 
         private AtomicBoolean mIsRunning = new AtomicBoolean(false);
+        // 当前配置的编码，RAW 时没有解码器，数据直接写入 AudioTrack
+        private AudioCodec mConfiguredCodec;
+        private byte[] mConfiguredData;
+        private int mConfiguredSampleRate;
+        private int mConfiguredChannels;
 
-        Worker() {
+        Feeder() {
+            super("audio-feeder");
         }
 
         private void setRunning(boolean isRunning) {
             mIsRunning.set(isRunning);
         }
 
-        private void configure(byte[] data) {
+        private void wakeUp() {
+            LockSupport.unpark(this);
+        }
+
+        private void configure(Configuration configuration) {
+            mRing.skipTo(configuration.ringPosition);
+            if (mIsConfigured.get() && configuration.audioCodec == mConfiguredCodec && Arrays.equals(configuration.data, mConfiguredData)
+                    && configuration.sampleRate == mConfiguredSampleRate && configuration.channels == mConfiguredChannels) {
+                // 静音之后恢复：服务端重发相同的配置，只需要清空解码器状态，AudioTrack 在写入时恢复播放
+                try {
+                    if (mCodec != null) {
+                        mCodec.flush();
+                    }
+                    return;
+                } catch (IllegalStateException e) {
+                    // 重新创建
+                }
+            }
             if (mIsConfigured.get()) {
                 mIsConfigured.set(false);
                 if (mCodec != null) {
                     mCodec.stop();
+                    mCodec.release();
+                    mCodec = null;
                 }
-                if (audioTrack != null) {
-                    audioTrack.stop();
+                synchronized (mPlayerLock) {
+                    if (mPlayer != null) {
+                        mPlayer.release();
+                        mPlayer = null;
+                    }
                 }
             }
-            MediaFormat format = MediaFormat.createAudioFormat(MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 2);
-            // 设置比特率
-            format.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
-            // adts 0
-            // format.setInteger(MediaFormat.KEY_IS_ADTS, 1);
-            format.setByteBuffer("csd-0", ByteBuffer.wrap(data));
+            AudioCodec audioCodec = configuration.audioCodec;
+            MediaCodec codec = null;
+            if (audioCodec != AudioCodec.RAW) {
+                MediaFormat format = MediaFormat.createAudioFormat(audioCodec.getMimeType(), configuration.sampleRate, configuration.channels);
+                if (audioCodec == AudioCodec.OPUS) {
+                    ByteBuffer[] csd = AudioCodec.splitOpusConfig(configuration.data);
+                    format.setByteBuffer("csd-0", csd[0]);
+                    format.setByteBuffer("csd-1", csd[1]);
+                    format.setByteBuffer("csd-2", csd[2]);
+                } else {
+                    // 设置比特率
+                    format.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
+                    // adts 0
+                    // format.setInteger(MediaFormat.KEY_IS_ADTS, 1);
+                    format.setByteBuffer("csd-0", ByteBuffer.wrap(configuration.data));
+                }
 
-            try {
-                mCodec = MediaCodec.createDecoderByType(MIMETYPE_AUDIO_AAC);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to create codec", e);
+                try {
+                    codec = MediaCodec.createDecoderByType(audioCodec.getMimeType());
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to create codec", e);
+                }
+                codec.configure(format, null, null, 0);
+                codec.start();
             }
-            mCodec.configure(format, null, null, 0);
-            mCodec.start();
-            mIsConfigured.set(true);
 
-            // 初始化音频播放器
-            initAudioTrack();
-            // audio track 启动
-            audioTrack.play();
-        }
+            // 初始化音频播放器并启动
+            AudioPlayer player = new AudioPlayer(configuration.sampleRate, configuration.channels, AudioPlayer.DEFAULT_TARGET_DEPTH_MS);
+            player.start();
 
+            mConfiguredCodec = audioCodec;
+            mConfiguredData = configuration.data;
+            mConfiguredSampleRate = configuration.sampleRate;
+            mConfiguredChannels = configuration.channels;
+            mPlayer = player;
+            mCodec = codec;
+            mIsConfigured.set(true);
+            Worker worker = mWorker;
+            if (worker != null) {
+                // 唤醒等待配置的 worker
+                worker.wakeUp();
+            }
+        }
 
         @SuppressWarnings("deprecation")
-        public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-            if (mIsConfigured.get() && mIsRunning.get()) {
-                int index = mCodec.dequeueInputBuffer(-1);
-                if (index >= 0) {
-                    ByteBuffer buffer;
-
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                        buffer = mCodec.getInputBuffers()[index];
-                        buffer.clear();
+        private boolean queueSample(MediaCodec codec, PacketRing.Slot slot) {
+            int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (index < 0) {
+                // 解码器暂时没有空闲的输入缓冲，下次再送
+                return false;
+            }
+            ByteBuffer buffer;
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                buffer = codec.getInputBuffers()[index];
+                buffer.clear();
+            } else {
+                buffer = codec.getInputBuffer(index);
+            }
+            if (buffer != null) {
+                buffer.put(slot.getData(), 0, slot.getSize());
+                codec.queueInputBuffer(index, 0, slot.getSize(), slot.getPresentationTimeUs(), slot.getFlags());
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // 丢弃解码器未运行期间收到的帧
+            mRing.skipTo(mRing.getWritePosition());
+            while (mIsRunning.get()) {
+                Configuration configuration = mPendingConfiguration.getAndSet(null);
+                if (configuration != null) {
+                    configure(configuration);
+                }
+                if (!mIsConfigured.get()) {
+                    // just waiting to be configured
+                    LockSupport.parkNanos(this, WAIT_TIMEOUT_NS);
+                    continue;
+                }
+                PacketRing.Slot slot = mRing.take(WAIT_TIMEOUT_NS);
+                if (slot == null || !mIsRunning.get()) {
+                    continue;
+                }
+                if ((slot.getFlags() & SLOT_FLAG_SILENCE) != 0) {
+                    mRing.release();
+                    if (mConfiguredCodec == AudioCodec.RAW) {
+                        mPlayer.pause();
                     } else {
-                        buffer = mCodec.getInputBuffer(index);
+                        mSilencePending = true;
                     }
-                    if (buffer != null) {
-                        buffer.put(data, offset, size);
-                        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+                    continue;
+                }
+                mSilencePending = false;
+                try {
+                    if (mConfiguredCodec == AudioCodec.RAW) {
+                        // 不压缩的 PCM 直接播放
+                        mPlayer.write(slot.getData(), 0, slot.getSize(), getPresentationTimeNs(slot.getPresentationTimeUs()));
+                        mRing.release();
+                    } else if (queueSample(mCodec, slot)) {
+                        mRing.release();
                     }
+                } catch (IllegalStateException e) {
+                    // 解码器已停止或正在重新配置
+                    mRing.release();
                 }
             }
         }
+    }
+
+    /**
+     * 解码器的输出格式可能与流的格式不同（例如 Opus 解码器总是输出 48kHz），按实际输出重新创建播放器
+     */
+    private void onOutputFormatChanged(MediaFormat format, AudioPlayer player) {
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (sampleRate == player.getSampleRate() && channels == player.getChannels()) {
+            return;
+        }
+        Log.i("Scrcpy", "Audio decoder output: " + sampleRate + " Hz, " + channels + " channels");
+        synchronized (mPlayerLock) {
+            if (mPlayer != player) {
+                // 正在重新配置
+                return;
+            }
+            AudioPlayer newPlayer = new AudioPlayer(sampleRate, channels, AudioPlayer.DEFAULT_TARGET_DEPTH_MS);
+            newPlayer.start();
+            mPlayer = newPlayer;
+            player.release();
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private AtomicBoolean mIsRunning = new AtomicBoolean(false);
+
+        Worker() {
+            super("audio-worker");
+        }
+
+        private void setRunning(boolean isRunning) {
+            mIsRunning.set(isRunning);
+        }
+
+        private void wakeUp() {
+            LockSupport.unpark(this);
+        }
 
         @Override
         public void run() {
-            try {
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                while (mIsRunning.get()) {
-                    if (mIsConfigured.get()) {
-                        int index = mCodec.dequeueOutputBuffer(info, 0);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (mIsRunning.get()) {
+                MediaCodec codec = mCodec;
+                AudioPlayer player = mPlayer;
+                if (mIsConfigured.get() && codec != null && player != null) {
+                    try {
+                        // 阻塞等待解码输出（带超时），避免空转
+                        int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
                         // Log.e("Scrcpy", "Audio Decoder: " + index);
                         if (index >= 0) {
                             if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
@@ -145,28 +401,30 @@ public class AudioDecoder {
                             }
                             // Log.e("Scrcpy", "Audio success get frame: " + index);
 
-                            // 读取 pcm 数据，写入 audiotrack 播放
-                            ByteBuffer outputBuffer = mCodec.getOutputBuffer(index);
-                            if (outputBuffer != null) {
-                                byte[] data = new byte[info.size];
-                                outputBuffer.get(data);
-                                outputBuffer.clear();
-                                audioTrack.write(data, 0, info.size);
+                            // pcm 数据直接从解码器的输出缓冲写入 AudioTrack，不复制
+                            ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+                            if (outputBuffer != null && info.size > 0) {
+                                outputBuffer.position(info.offset);
+                                outputBuffer.limit(info.offset + info.size);
+                                player.write(outputBuffer, info.size, getPresentationTimeNs(info.presentationTimeUs));
                             }
                             // release
-                            mCodec.releaseOutputBuffer(index, true);
-                        }
-                    } else {
-                        // just waiting to be configured, then decode and render
-                        try {
-                            Thread.sleep(5);
-                        } catch (InterruptedException ignore) {
+                            codec.releaseOutputBuffer(index, false);
+                        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            onOutputFormatChanged(codec.getOutputFormat(), player);
+                        } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER && mSilencePending) {
+                            // 静音之前的帧已经全部输出
+                            mSilencePending = false;
+                            player.pause();
                         }
+                    } catch (IllegalStateException e) {
+                        // 解码器已停止或正在重新配置
                     }
+                } else {
+                    // just waiting to be configured (or RAW audio, played by the feeder), woken up on configuration
+                    LockSupport.parkNanos(this, WAIT_TIMEOUT_NS);
                 }
-            } catch (IllegalStateException e) {
             }
-
         }
     }
-}
\ No newline at end of file
+}
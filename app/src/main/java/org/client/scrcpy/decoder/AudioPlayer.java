@@ -0,0 +1,339 @@
+package org.client.scrcpy.decoder;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 音频播放：将解码后的 PCM（16 位，单声道或双声道）写入 AudioTrack
+ * <p>
+ * 写入不阻塞：AudioTrack 中缓存的数据保持在目标深度附近
+ * <ul>
+ * <li>开始、静音恢复以及 underrun（缓存耗尽）之后，先缓存到目标深度再开始播放，吸收网络抖动</li>
+ * <li>网络抖动后积累的数据超过目标深度时，逐步丢弃整块数据（每次最多一块，间隔几次写入），避免一直拖慢声音</li>
+ * <li>超过上限（目标深度的两倍）时直接丢弃新数据（overrun）</li>
+ * </ul>
+ * underrun、overrun 和逐步丢弃都计数，用于调整目标深度
+ * <p>
+ * 有 {@link MediaClock} 给出的呈现时间时，比较数据实际播放的时间与呈现时间，微调播放采样率（最多 ±0.5%，听不出音调变化）
+ * 让声音对齐时间线；落后太多时丢弃数据追赶
+ */
+public final class AudioPlayer {
+
+    private static final String TAG = "Scrcpy";
+
+    public static final int DEFAULT_TARGET_DEPTH_MS = 40;
+
+    private static final long STATS_INTERVAL_MS = 10_000;
+
+    // 误差在该范围内不调整
+    private static final long SYNC_DEADBAND_NS = 2_000_000;
+    private static final double MAX_RATE_CORRECTION = 0.005;
+    // 误差 10ms 时达到最大调整
+    private static final double RATE_CORRECTION_PER_NS = MAX_RATE_CORRECTION / 10_000_000;
+    private static final double SYNC_ERROR_SMOOTHING = 0.1;
+    // 落后超过该值且 AudioTrack 中还有数据时，丢弃新数据
+    private static final long SYNC_DROP_THRESHOLD_NS = 100_000_000;
+    // 恢复播放后 AudioTrack 的时间戳需要一段时间才有效，期间不同步
+    private static final long SYNC_RESUME_HOLD_NS = 100_000_000;
+    // 超过目标深度时，每隔几次写入才丢弃一块数据，逐步回到目标深度
+    private static final int TRIM_INTERVAL_WRITES = 4;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int channelMask;
+    private final int bytesPerFrame;
+    private final int targetDepthFrames;
+    // 超过该深度的数据直接丢弃
+    private final int maxDepthFrames;
+
+    private AudioTrack audioTrack;
+    // 写入 AudioTrack 的总帧数，减去播放位置即为缓存深度
+    private long writtenFrames;
+    // 静音期间暂停，下一次写入时恢复
+    private boolean paused;
+    // AudioTrack 是否在播放；否则正在缓存数据（priming），达到目标深度后才开始播放
+    private boolean playing;
+    // stop() 之后不再开始播放
+    private boolean stopped;
+    private long syncHoldUntilNs;
+    private int writesSinceTrim;
+
+    private int underrunCount;
+    private int overrunCount;
+    private int trimCount;
+    private int lateCount;
+    private long lastStatsTime;
+
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+    // 实际播放时间减去呈现时间（平滑后），正数表示声音落后
+    private double syncErrorNs;
+    private int playbackRate;
+
+    public AudioPlayer(int sampleRate, int channels, int targetDepthMs) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        bytesPerFrame = channels * 2;
+        targetDepthFrames = sampleRate * targetDepthMs / 1000;
+        maxDepthFrames = 2 * targetDepthFrames;
+    }
+
+    public void start() {
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        // 至少能容纳最大深度，写入时才不会被 AudioTrack 截断
+        int bufferSize = Math.max(minBufferSize, maxDepthFrames * bytesPerFrame);
+        audioTrack = createAudioTrack(bufferSize);
+        writtenFrames = 0;
+        paused = false;
+        // 达到目标深度后才开始播放，见 onWritten()
+        playing = false;
+        syncHoldUntilNs = 0;
+        writesSinceTrim = 0;
+        underrunCount = 0;
+        overrunCount = 0;
+        trimCount = 0;
+        lateCount = 0;
+        syncErrorNs = 0;
+        playbackRate = sampleRate;
+        lastStatsTime = SystemClock.uptimeMillis();
+    }
+
+    @SuppressWarnings("deprecation")
+    private AudioTrack createAudioTrack(int bufferSize) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT,
+                    bufferSize, AudioTrack.MODE_STREAM);
+        }
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setBufferSizeInBytes(bufferSize);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // 走 fast mixer，输出延迟更低
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        }
+        return builder.build();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * 写入解码器输出的数据（直接缓冲，不复制）
+     *
+     * @param presentationTimeNs 第一个采样的呈现时间，见 {@link MediaClock#getPresentationTimeNs(long)}
+     */
+    public void write(ByteBuffer buffer, int size, long presentationTimeNs) {
+        resumeIfPaused();
+        int frames = size / bytesPerFrame;
+        if (!synchronize(presentationTimeNs) || !accept(frames)) {
+            return;
+        }
+        int written = audioTrack.write(buffer, size, AudioTrack.WRITE_NON_BLOCKING);
+        onWritten(frames, written);
+    }
+
+    /**
+     * 写入不压缩的音频数据
+     */
+    public void write(byte[] data, int offset, int size, long presentationTimeNs) {
+        resumeIfPaused();
+        int frames = size / bytesPerFrame;
+        if (!synchronize(presentationTimeNs) || !accept(frames)) {
+            return;
+        }
+        int written;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            written = audioTrack.write(data, offset, size, AudioTrack.WRITE_NON_BLOCKING);
+        } else {
+            // 缓冲区足够容纳最大深度，实际不会阻塞
+            written = audioTrack.write(data, offset, size);
+        }
+        onWritten(frames, written);
+    }
+
+    /**
+     * 根据同步误差调整播放采样率
+     *
+     * @return 声音落后太多，需要丢弃这些数据时返回 {@code false}
+     */
+    private boolean synchronize(long presentationTimeNs) {
+        // 缓存期间没有播放，不能估计播放时间
+        if (presentationTimeNs == MediaClock.UNKNOWN || !playing || System.nanoTime() < syncHoldUntilNs) {
+            return true;
+        }
+        long errorNs = estimatePlayoutTimeNs() - presentationTimeNs;
+        if (errorNs > SYNC_DROP_THRESHOLD_NS && getDepthFrames() > 0) {
+            // 丢弃后 AudioTrack 中的数据减少，之后的数据更早播放
+            ++lateCount;
+            return false;
+        }
+        syncErrorNs += (errorNs - syncErrorNs) * SYNC_ERROR_SMOOTHING;
+        double correction = 0;
+        if (Math.abs(syncErrorNs) > SYNC_DEADBAND_NS) {
+            // 落后时加快播放，超前时放慢
+            correction = Math.max(-MAX_RATE_CORRECTION, Math.min(MAX_RATE_CORRECTION, syncErrorNs * RATE_CORRECTION_PER_NS));
+        }
+        int rate = (int) Math.round(sampleRate * (1 + correction));
+        if (rate != playbackRate) {
+            audioTrack.setPlaybackRate(rate);
+            playbackRate = rate;
+        }
+        return true;
+    }
+
+    /**
+     * 下一个写入的采样实际播放（从扬声器输出）的时间
+     */
+    private long estimatePlayoutTimeNs() {
+        if (audioTrack.getTimestamp(timestamp)) {
+            // 包含硬件输出延迟
+            return timestamp.nanoTime + (writtenFrames - timestamp.framePosition) * 1_000_000_000L / sampleRate;
+        }
+        return System.nanoTime() + getDepthFrames() * 1_000_000_000L / sampleRate;
+    }
+
+    private boolean accept(int frames) {
+        long depth = getDepthFrames();
+        if (depth == 0 && playing) {
+            // 缓存耗尽：暂停，重新缓存到目标深度再播放，而不是每来一块数据就播放一块
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+                // 没有 getUnderrunCount() 时，以缓存耗尽作为 underrun
+                ++underrunCount;
+            }
+            audioTrack.pause();
+            playing = false;
+        }
+        if (depth + frames > maxDepthFrames) {
+            ++overrunCount;
+            logStats();
+            return false;
+        }
+        if (playing && depth - targetDepthFrames >= frames) {
+            // 丢弃整块数据后仍不低于目标深度
+            if (++writesSinceTrim >= TRIM_INTERVAL_WRITES) {
+                writesSinceTrim = 0;
+                ++trimCount;
+                logStats();
+                return false;
+            }
+        } else {
+            writesSinceTrim = 0;
+        }
+        return true;
+    }
+
+    private void onWritten(int frames, int written) {
+        if (written > 0) {
+            writtenFrames += written / bytesPerFrame;
+        }
+        if (written < frames * bytesPerFrame) {
+            // AudioTrack 已满，剩下的数据丢弃
+            ++overrunCount;
+        }
+        if (!playing && !stopped && getDepthFrames() >= targetDepthFrames) {
+            audioTrack.play();
+            playing = true;
+            // 开始播放后 AudioTrack 的时间戳需要一段时间才有效
+            syncErrorNs = 0;
+            syncHoldUntilNs = System.nanoTime() + SYNC_RESUME_HOLD_NS;
+        }
+        logStats();
+    }
+
+    /**
+     * AudioTrack 中等待播放的帧数
+     */
+    private long getDepthFrames() {
+        // 播放位置是 32 位无符号数，回绕前可以播放约 24 小时
+        long played = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        return Math.max(0, writtenFrames - played);
+    }
+
+    public int getUnderrunCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && audioTrack != null) {
+            return audioTrack.getUnderrunCount();
+        }
+        return underrunCount;
+    }
+
+    public int getOverrunCount() {
+        return overrunCount;
+    }
+
+    public int getTrimCount() {
+        return trimCount;
+    }
+
+    private void logStats() {
+        long now = SystemClock.uptimeMillis();
+        if (now - lastStatsTime >= STATS_INTERVAL_MS) {
+            lastStatsTime = now;
+            Log.i(TAG, "Audio playback: depth " + getDepthFrames() * 1000 / sampleRate + " ms (target "
+                    + targetDepthFrames * 1000 / sampleRate + " ms), underruns " + getUnderrunCount() + ", overruns " + overrunCount
+                    + ", trims " + trimCount + ", sync error " + Math.round(syncErrorNs / 1_000_000) + " ms, rate " + playbackRate + " Hz, late drops " + lateCount);
+        }
+    }
+
+    /**
+     * 静音期间暂停播放，不让 AudioTrack 在没有数据时 underrun（可能产生杂音，也会干扰 underrun 计数）
+     * <p>
+     * 服务端只在持续静音一段时间后才停止发送，缓存中剩下的都是静音，直接丢弃；下一次写入时自动恢复
+     */
+    public void pause() {
+        if (audioTrack != null && !paused) {
+            audioTrack.pause();
+            audioTrack.flush();
+            paused = true;
+            playing = false;
+        }
+    }
+
+    private void resumeIfPaused() {
+        if (paused) {
+            paused = false;
+            // 缓存已清空，以当前播放位置作为写入位置；重新缓存到目标深度后才播放，见 onWritten()
+            writtenFrames = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            writesSinceTrim = 0;
+        }
+    }
+
+    /**
+     * 停止播放，之后仍然可以写入（数据不会播放）
+     */
+    public void stop() {
+        if (audioTrack != null) {
+            stopped = true;
+            playing = false;
+            audioTrack.stop();
+        }
+    }
+
+    public void release() {
+        if (audioTrack != null) {
+            audioTrack.stop();
+            audioTrack.release();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.client.scrcpy.decoder;
+
+import android.util.Log;
+
+/**
+ * 音视频共用的媒体时钟：把服务端的 PTS（服务端单调时钟，微秒）换算为本机 {@link System#nanoTime()} 的呈现时间
+ * <p>
+ * 每个包的到达时间减去 PTS 得到一个偏移，其中包含两台设备的时钟差、编码延迟和网络延迟。网络抖动只会让偏移变大，
+ * 所以每个时间窗口内取最小值。音频和视频各取最小值，较慢的流（偏移较大，通常是音频，编码延迟更大）决定时间线，较快的流等待它，
+ * 实现音画同步；两者的差值单独平滑，音频暂时没有数据包（静音）时时间线不会跳变。
+ * <p>
+ * 两台设备的晶振频率有差异（通常几十 ppm，一小时可以累积上百毫秒），对最近的窗口最小值做线性回归，估计漂移。
+ * <p>
+ * 网络线程调用 {@link #onPacket}，解码线程调用 {@link #getPresentationTimeNs}，所有方法都是同步的
+ */
+public final class MediaClock {
+
+    public static final int STREAM_VIDEO = 0;
+    public static final int STREAM_AUDIO = 1;
+
+    // 还没有收到数据包时的呈现时间，调用方立即呈现
+    public static final long UNKNOWN = -1;
+
+    // 在估计的时间线之后留出的抖动余量
+    public static final long DEFAULT_PLAYOUT_DELAY_US = 30_000;
+
+    private static final String TAG = "Scrcpy";
+
+    private static final long WINDOW_US = 2_000_000;
+    // 约一分钟的窗口用于回归
+    private static final int HISTORY_SIZE = 32;
+    private static final int MIN_HISTORY_FOR_DRIFT = 4;
+    private static final double MAX_DRIFT = 500e-6;
+    // 新窗口与模型的偏差超过该值时（例如网络路径变化），丢弃历史重新开始
+    private static final long RESET_THRESHOLD_US = 20_000;
+    private static final int LOG_INTERVAL_WINDOWS = 30;
+    private static final double AUDIO_EXTRA_SMOOTHING = 0.25;
+
+    private final long playoutDelayUs;
+
+    // 当前窗口，按本机时间划分
+    private long windowStartUs;
+    private final long[] windowMinOffsetUs = new long[2];
+    private final long[] windowMinPtsUs = new long[2];
+
+    // 历史窗口的 (pts, 偏移)，环形存储
+    private final long[] historyPtsUs = new long[HISTORY_SIZE];
+    private final long[] historyOffsetUs = new long[HISTORY_SIZE];
+    private int historyCount;
+    private int historyIndex;
+    private int windowCount;
+
+    // 音频偏移减去视频偏移（平滑后），即音频比视频多出的延迟
+    private boolean hasAudioExtra;
+    private double audioExtraUs;
+
+    // 模型：offset(pts) = baseOffsetUs + drift * (pts - basePtsUs)
+    private boolean valid;
+    private long basePtsUs;
+    private double baseOffsetUs;
+    private double drift;
+
+    public MediaClock() {
+        this(DEFAULT_PLAYOUT_DELAY_US);
+    }
+
+    public MediaClock(long playoutDelayUs) {
+        this.playoutDelayUs = playoutDelayUs;
+        reset();
+    }
+
+    /**
+     * 重新连接后网络路径可能不同，重新估计
+     */
+    public synchronized void reset() {
+        windowStartUs = 0;
+        resetWindow();
+        historyCount = 0;
+        historyIndex = 0;
+        windowCount = 0;
+        hasAudioExtra = false;
+        audioExtraUs = 0;
+        valid = false;
+        drift = 0;
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < windowMinOffsetUs.length; ++i) {
+            windowMinOffsetUs[i] = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @param stream    {@link #STREAM_VIDEO} 或 {@link #STREAM_AUDIO}
+     * @param ptsUs     数据包的 PTS
+     * @param arrivalNs 数据包的到达时间（{@link System#nanoTime()}）
+     */
+    public synchronized void onPacket(int stream, long ptsUs, long arrivalNs) {
+        long nowUs = arrivalNs / 1000;
+        long offsetUs = nowUs - ptsUs;
+        if (windowStartUs == 0) {
+            windowStartUs = nowUs;
+        }
+        if (offsetUs < windowMinOffsetUs[stream]) {
+            windowMinOffsetUs[stream] = offsetUs;
+            windowMinPtsUs[stream] = ptsUs;
+        }
+        if (!valid) {
+            // 第一个窗口结束之前，使用当前窗口的估计
+            updateProvisional();
+        }
+        if (nowUs - windowStartUs >= WINDOW_US) {
+            closeWindow();
+            windowStartUs = nowUs;
+        }
+    }
+
+    private void updateProvisional() {
+        long video = windowMinOffsetUs[STREAM_VIDEO];
+        long audio = windowMinOffsetUs[STREAM_AUDIO];
+        if (video == Long.MAX_VALUE && audio == Long.MAX_VALUE) {
+            return;
+        }
+        // 较慢（偏移较大）的流决定时间线
+        int stream = video == Long.MAX_VALUE || (audio != Long.MAX_VALUE && audio > video) ? STREAM_AUDIO : STREAM_VIDEO;
+        basePtsUs = windowMinPtsUs[stream];
+        baseOffsetUs = windowMinOffsetUs[stream];
+        drift = 0;
+        valid = true;
+    }
+
+    private void closeWindow() {
+        long video = windowMinOffsetUs[STREAM_VIDEO];
+        long audio = windowMinOffsetUs[STREAM_AUDIO];
+        if (video == Long.MAX_VALUE && audio == Long.MAX_VALUE) {
+            return;
+        }
+        if (video != Long.MAX_VALUE && audio != Long.MAX_VALUE) {
+            double extra = audio - video;
+            audioExtraUs = hasAudioExtra ? audioExtraUs + (extra - audioExtraUs) * AUDIO_EXTRA_SMOOTHING : extra;
+            hasAudioExtra = true;
+        }
+        // 以视频的偏移为基准，缺少视频时由音频推算
+        long ptsUs;
+        double videoOffsetUs;
+        if (video != Long.MAX_VALUE) {
+            ptsUs = windowMinPtsUs[STREAM_VIDEO];
+            videoOffsetUs = video;
+        } else {
+            ptsUs = windowMinPtsUs[STREAM_AUDIO];
+            videoOffsetUs = audio - audioExtraUs;
+        }
+        long offsetUs = Math.round(videoOffsetUs + Math.max(0, audioExtraUs));
+        resetWindow();
+
+        if (historyCount > 0 && Math.abs(offsetUs - getOffsetUs(ptsUs)) > RESET_THRESHOLD_US) {
+            Log.i(TAG, "Media clock reset: offset changed by " + (offsetUs - getOffsetUs(ptsUs)) / 1000 + " ms");
+            historyCount = 0;
+            historyIndex = 0;
+        }
+        historyPtsUs[historyIndex] = ptsUs;
+        historyOffsetUs[historyIndex] = offsetUs;
+        historyIndex = (historyIndex + 1) % HISTORY_SIZE;
+        if (historyCount < HISTORY_SIZE) {
+            ++historyCount;
+        }
+        fit();
+
+        if (++windowCount % LOG_INTERVAL_WINDOWS == 0) {
+            Log.i(TAG, "Media clock: offset " + (long) baseOffsetUs / 1000 + " ms, drift " + Math.round(drift * 1e6) + " ppm, audio "
+                    + Math.round(audioExtraUs / 1000) + " ms behind video");
+        }
+    }
+
+    /**
+     * 最小二乘拟合历史窗口，点数太少时不估计漂移
+     */
+    private void fit() {
+        int newest = (historyIndex + HISTORY_SIZE - 1) % HISTORY_SIZE;
+        long x0 = historyPtsUs[newest];
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 0; i < historyCount; ++i) {
+            sumX += historyPtsUs[i] - x0;
+            sumY += historyOffsetUs[i];
+        }
+        double meanX = sumX / historyCount;
+        double meanY = sumY / historyCount;
+        double slope = 0;
+        if (historyCount >= MIN_HISTORY_FOR_DRIFT) {
+            double sxx = 0;
+            double sxy = 0;
+            for (int i = 0; i < historyCount; ++i) {
+                double dx = historyPtsUs[i] - x0 - meanX;
+                sxx += dx * dx;
+                sxy += dx * (historyOffsetUs[i] - meanY);
+            }
+            if (sxx > 0) {
+                slope = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sxy / sxx));
+            }
+        }
+        basePtsUs = x0;
+        baseOffsetUs = meanY - slope * meanX;
+        drift = slope;
+        valid = true;
+    }
+
+    private long getOffsetUs(long ptsUs) {
+        return Math.round(baseOffsetUs + drift * (ptsUs - basePtsUs));
+    }
+
+    /**
+     * @return PTS 对应的本机呈现时间（{@link System#nanoTime()}），还没有估计时返回 {@link #UNKNOWN}
+     */
+    public synchronized long getPresentationTimeNs(long ptsUs) {
+        if (!valid) {
+            return UNKNOWN;
+        }
+        return (ptsUs + getOffsetUs(ptsUs) + playoutDelayUs) * 1000;
+    }
+}
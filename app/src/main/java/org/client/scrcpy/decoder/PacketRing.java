@@ -0,0 +1,195 @@
+package org.client.scrcpy.decoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring of access units, between the network reader and a decoder.
+ * <p/>
+ * The producer (network thread) copies each packet into a pooled slot and never blocks: if the ring is full, the packet is rejected, so that
+ * a slow decoder cannot stall the network thread (and the other streams read by it). The consumer (decoder thread) parks while the ring is
+ * empty and is woken up as soon as a packet is published.
+ * <p/>
+ * The occupancy tells whether the decoder (ring often full) or the network (ring always empty) is the bottleneck.
+ */
+public final class PacketRing {
+
+    public static final class Slot {
+        private byte[] data;
+        private int size;
+        private long presentationTimeUs;
+        private int flags;
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getPresentationTimeUs() {
+            return presentationTimeUs;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final int initialSlotSize;
+
+    // index of the next slot to read, written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // index of the next slot to write, written only by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waiter;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile int highWaterMark;
+
+    /**
+     * @param capacity        the number of slots, must be a power of 2
+     * @param initialSlotSize the initial size of each slot buffer (it grows if a packet is bigger)
+     */
+    public PacketRing(int capacity, int initialSlotSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+        this.initialSlotSize = initialSlotSize;
+    }
+
+    /**
+     * Copy a packet into the ring (producer only).
+     *
+     * @return {@code false} if the ring is full (the packet is dropped)
+     */
+    public boolean offer(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
+        long t = tail.get();
+        int occupancy = (int) (t - head.get());
+        if (occupancy == slots.length) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        Slot slot = slots[(int) t & mask];
+        if (slot.data == null || slot.data.length < size) {
+            // pooled buffers only grow, so in steady state nothing is allocated
+            slot.data = new byte[Math.max(size, initialSlotSize)];
+        }
+        System.arraycopy(data, offset, slot.data, 0, size);
+        slot.size = size;
+        slot.presentationTimeUs = presentationTimeUs;
+        slot.flags = flags;
+
+        // volatile write: publish the slot, and order it before reading the waiter
+        tail.set(t + 1);
+        if (occupancy + 1 > highWaterMark) {
+            highWaterMark = occupancy + 1;
+        }
+
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Return the next slot without removing it, or {@code null} if the ring is empty (consumer only).
+     */
+    public Slot peek() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Return the next slot, waiting at most {@code timeoutNs} for a packet (consumer only).
+     */
+    public Slot take(long timeoutNs) {
+        Slot slot = peek();
+        if (slot != null) {
+            return slot;
+        }
+        waiter = Thread.currentThread();
+        try {
+            // check again after publishing the waiter, the producer may have written a slot in between
+            slot = peek();
+            if (slot == null) {
+                LockSupport.parkNanos(this, timeoutNs);
+                slot = peek();
+            }
+        } finally {
+            waiter = null;
+        }
+        return slot;
+    }
+
+    /**
+     * Release the slot returned by {@link #peek()} or {@link #take(long)} (consumer only).
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * Drop all the packets written before the given position (consumer only).
+     *
+     * @param position a value returned by {@link #getWritePosition()}
+     */
+    public void skipTo(long position) {
+        long h = head.get();
+        if (position > h) {
+            head.lazySet(Math.min(position, tail.get()));
+        }
+    }
+
+    /**
+     * Return the position of the next packet to be written.
+     */
+    public long getWritePosition() {
+        return tail.get();
+    }
+
+    /**
+     * Return the number of packets waiting to be decoded.
+     */
+    public int getOccupancy() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Return the maximum occupancy observed since the ring was created.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Return the number of packets rejected because the ring was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PacketRing{occupancy=" + getOccupancy() + "/" + slots.length
+                + ", highWaterMark=" + highWaterMark
+                + ", dropped=" + droppedCount.get() + '}';
+    }
+}
@@ -0,0 +1,95 @@
+package org.client.scrcpy.decoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * 视频编码类型，与服务端 org.server.scrcpy.VideoCodec 对应
+ * <p>
+ * 客户端通过服务端参数 video_codecs 上报本机可以解码的编码类型（按优先级排序），服务端选择双方都支持的编码，
+ * 并在分辨率之后发送编码 id
+ */
+public enum VideoCodec {
+    // 同样码率下 H.265 的画质明显好于 H.264，优先使用
+    H265(0x68_32_36_35, "h265", MediaFormat.MIMETYPE_VIDEO_HEVC),
+    AV1(0x00_61_76_31, "av1", "video/av01"),
+    H264(0x68_32_36_34, "h264", MediaFormat.MIMETYPE_VIDEO_AVC);
+
+    private final int id;
+    private final String name;
+    private final String mimeType;
+
+    VideoCodec(int id, String name, String mimeType) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return 对应的编码类型，未知 id 返回 null
+     */
+    public static VideoCodec findById(int id) {
+        for (VideoCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 本机支持的编码类型，用逗号分隔，按优先级排序，作为服务端参数 video_codecs 的值
+     * <p>
+     * H.264 总是支持；其它编码只有存在硬件解码器时才上报（软件解码高分辨率视频延迟过大）
+     */
+    public static String getSupportedNames() {
+        StringBuilder builder = new StringBuilder();
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (VideoCodec codec : values()) {
+            if (codec == H264 || hasHardwareDecoder(infos, codec.mimeType)) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(codec.name);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean hasHardwareDecoder(MediaCodecInfo[] infos, String mimeType) {
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder() || !isHardware(info)) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        // 系统自带的软件解码器
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+}
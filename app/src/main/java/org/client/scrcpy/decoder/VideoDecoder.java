@@ -3,33 +3,96 @@ package org.client.scrcpy.decoder;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.util.Log;
 import android.view.Surface;
 
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class VideoDecoder {
-    private MediaCodec mCodec;
+
+    private static final int RING_CAPACITY = 16;
+    private static final int RING_SLOT_SIZE = 128 * 1024;
+
+    private static final long WAIT_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+    // beyond this delay, lip-sync is given up in favor of interactivity: the frame is rendered at most this late
+    private static final long MAX_RENDER_DELAY_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // access units parsed by the network thread, drained by the feeder thread
+    private final PacketRing mRing = new PacketRing(RING_CAPACITY, RING_SLOT_SIZE);
+    private final AtomicReference<Configuration> mPendingConfiguration = new AtomicReference<>();
+    // written by the network thread only: after a drop, the next frames are useless until a key frame
+    private boolean mWaitKeyFrame;
+
+    private volatile MediaCodec mCodec;
+    // schedules the frames on the timeline shared with the audio, null to render them as soon as they are decoded
+    private volatile MediaClock mClock;
     private Worker mWorker;
+    private Feeder mFeeder;
     private AtomicBoolean mIsConfigured = new AtomicBoolean(false);
 
-    public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-        if (mWorker != null) {
-            mWorker.decodeSample(data, offset, size, presentationTimeUs, flags);
+    /**
+     * Enqueue an access unit, without blocking.
+     *
+     * @return {@code false} if the packet has been dropped because the decoder cannot keep up
+     */
+    public boolean decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
+        if (mFeeder == null) {
+            return true;
+        }
+        boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mWaitKeyFrame && !keyFrame) {
+            return false;
         }
+        if (!mRing.offer(data, offset, size, presentationTimeUs, flags)) {
+            mWaitKeyFrame = true;
+            Log.w("Scrcpy", "Video decoder too slow, dropping frames until the next key frame: " + mRing);
+            return false;
+        }
+        mWaitKeyFrame = false;
+        return true;
     }
 
-    public void configure(Surface surface, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
-        if (mWorker != null) {
-            mWorker.configure(surface, width, height, csd0, csd1);
+    public void setClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param mimeType 视频编码类型，见 {@link VideoCodec}
+     * @param csd1     H.264 的 pps，其它编码为 null（配置数据都在 csd0 中）
+     */
+    public void configure(Surface surface, String mimeType, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        Feeder feeder = mFeeder;
+        if (feeder != null) {
+            // the packets already in the ring belong to the previous configuration
+            mPendingConfiguration.set(new Configuration(surface, mimeType, width, height, csd0, csd1, mRing.getWritePosition()));
+            mWaitKeyFrame = false;
+            feeder.wakeUp();
         }
     }
 
+    /**
+     * Return the number of access units waiting to be decoded.
+     */
+    public int getQueuedSamples() {
+        return mRing.getOccupancy();
+    }
+
+    public PacketRing getRing() {
+        return mRing;
+    }
 
     public void start() {
         if (mWorker == null) {
+            mFeeder = new Feeder();
+            mFeeder.setRunning(true);
+            mFeeder.start();
             mWorker = new Worker();
             mWorker.setRunning(true);
             mWorker.start();
@@ -38,8 +101,16 @@ public class VideoDecoder {
 
     public void stop() {
         if (mWorker != null) {
-            mWorker.setRunning(false);
+            Worker worker = mWorker;
+            Feeder feeder = mFeeder;
+            worker.setRunning(false);
             mWorker = null;
+            feeder.setRunning(false);
+            feeder.wakeUp();
+            mFeeder = null;
+            // the ring has a single consumer: the feeder created by the next start() must not touch it before this one has returned
+            joinUninterruptibly(feeder);
+            joinUninterruptibly(worker);
             mIsConfigured.set(false);
             if (mCodec != null) {
                 mCodec.stop();
@@ -47,85 +118,195 @@ public class VideoDecoder {
         }
     }
 
-    private class Worker extends Thread {
+    /**
+     * Wait for the thread to terminate, even if interrupted (the interrupt status is kept).
+     */
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Configuration {
+        private final Surface surface;
+        private final String mimeType;
+        private final int width;
+        private final int height;
+        private final ByteBuffer csd0;
+        private final ByteBuffer csd1;
+        private final long ringPosition;
+
+        private Configuration(Surface surface, String mimeType, int width, int height, ByteBuffer csd0, ByteBuffer csd1,
+                              long ringPosition) {
+            this.surface = surface;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.csd0 = csd0;
+            this.csd1 = csd1;
+            this.ringPosition = ringPosition;
+        }
+    }
+
+    /**
+     * Drain the ring into the codec input buffers.
+     */
+    private class Feeder extends Thread {
 
         private AtomicBoolean mIsRunning = new AtomicBoolean(false);
 
-        Worker() {
+        Feeder() {
+            super("video-feeder");
         }
 
         private void setRunning(boolean isRunning) {
             mIsRunning.set(isRunning);
         }
 
-        private void configure(Surface surface, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        private void wakeUp() {
+            LockSupport.unpark(this);
+        }
+
+        private void configure(Configuration configuration) {
+            mRing.skipTo(configuration.ringPosition);
             if (mIsConfigured.get()) {
                 mIsConfigured.set(false);
                 if (mCodec != null) {
                     mCodec.stop();
+                    mCodec.release();
                 }
 
             }
-            MediaFormat format = MediaFormat.createVideoFormat("video/avc", width, height);
-            format.setByteBuffer("csd-0", csd0);
-            format.setByteBuffer("csd-1", csd1);
+            MediaFormat format = MediaFormat.createVideoFormat(configuration.mimeType, configuration.width, configuration.height);
+            format.setByteBuffer("csd-0", configuration.csd0);
+            if (configuration.csd1 != null) {
+                format.setByteBuffer("csd-1", configuration.csd1);
+            }
+            MediaCodec codec;
             try {
-                mCodec = MediaCodec.createDecoderByType("video/avc");
+                codec = MediaCodec.createDecoderByType(configuration.mimeType);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to create codec", e);
             }
-            mCodec.configure(format, surface, null, 0);
-            mCodec.start();
+            codec.configure(format, configuration.surface, null, 0);
+            codec.start();
+            mCodec = codec;
             mIsConfigured.set(true);
         }
 
-
         @SuppressWarnings("deprecation")
-        public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-            if (mIsConfigured.get() && mIsRunning.get()) {
-                int index = mCodec.dequeueInputBuffer(-1);
-                if (index >= 0) {
-                    ByteBuffer buffer;
-
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                        buffer = mCodec.getInputBuffers()[index];
-                        buffer.clear();
-                    } else {
-                        buffer = mCodec.getInputBuffer(index);
-                    }
-                    if (buffer != null) {
-                        buffer.put(data, offset, size);
-                        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        private boolean queueSample(MediaCodec codec, PacketRing.Slot slot) {
+            int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (index < 0) {
+                // the decoder is the bottleneck, keep the sample for the next iteration
+                return false;
+            }
+            ByteBuffer buffer;
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                buffer = codec.getInputBuffers()[index];
+                buffer.clear();
+            } else {
+                buffer = codec.getInputBuffer(index);
+            }
+            if (buffer != null) {
+                buffer.put(slot.getData(), 0, slot.getSize());
+                codec.queueInputBuffer(index, 0, slot.getSize(), slot.getPresentationTimeUs(), slot.getFlags());
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // ignore the packets received while no decoder was running
+            mRing.skipTo(mRing.getWritePosition());
+            while (mIsRunning.get()) {
+                Configuration configuration = mPendingConfiguration.getAndSet(null);
+                if (configuration != null) {
+                    configure(configuration);
+                }
+                if (!mIsConfigured.get()) {
+                    // just waiting to be configured
+                    LockSupport.parkNanos(this, WAIT_TIMEOUT_NS);
+                    continue;
+                }
+                PacketRing.Slot slot = mRing.take(WAIT_TIMEOUT_NS);
+                if (slot == null || !mIsRunning.get()) {
+                    continue;
+                }
+                try {
+                    if (queueSample(mCodec, slot)) {
+                        mRing.release();
                     }
+                } catch (IllegalStateException e) {
+                    // the codec has been stopped or reconfigured meanwhile
+                    mRing.release();
                 }
             }
         }
+    }
+
+    /**
+     * Render the decoded frames.
+     */
+    private class Worker extends Thread {
+
+        private AtomicBoolean mIsRunning = new AtomicBoolean(false);
+
+        Worker() {
+        }
+
+        private void setRunning(boolean isRunning) {
+            mIsRunning.set(isRunning);
+        }
+
+        private void render(MediaCodec codec, int index, long presentationTimeUs) {
+            MediaClock clock = mClock;
+            long renderTimeNs = clock != null ? clock.getPresentationTimeNs(presentationTimeUs) : MediaClock.UNKNOWN;
+            long now = System.nanoTime();
+            if (renderTimeNs == MediaClock.UNKNOWN || renderTimeNs <= now) {
+                // late (or no clock yet): render now rather than drop it, the screen must stay responsive
+                codec.releaseOutputBuffer(index, true);
+            } else {
+                // the surface presents the frame at this time (on the display vsync)
+                codec.releaseOutputBuffer(index, Math.min(renderTimeNs, now + MAX_RENDER_DELAY_NS));
+            }
+        }
 
         @Override
         public void run() {
-            try {
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                while (mIsRunning.get()) {
-                    if (mIsConfigured.get()) {
-                        int index = mCodec.dequeueOutputBuffer(info, 0);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (mIsRunning.get()) {
+                MediaCodec codec = mCodec;
+                if (mIsConfigured.get() && codec != null) {
+                    try {
+                        // blocks until a frame is decoded (or the timeout expires), no busy loop
+                        int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
                         if (index >= 0) {
-                            // setting true is telling system to render frame onto Surface
-                            mCodec.releaseOutputBuffer(index, true);
+                            render(codec, index, info.presentationTimeUs);
                             if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
                                 break;
                             }
                         }
-                    } else {
-                        // just waiting to be configured, then decode and render
-                        try {
-                            Thread.sleep(5);
-                        } catch (InterruptedException ignore) {
-                        }
+                    } catch (IllegalStateException e) {
+                        // the codec has been stopped or reconfigured meanwhile
+                    }
+                } else {
+                    // just waiting to be configured, then decode and render
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ignore) {
                     }
                 }
-            } catch (IllegalStateException e) {
             }
-
         }
     }
-}
\ No newline at end of file
+}
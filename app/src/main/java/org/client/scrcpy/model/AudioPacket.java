@@ -142,7 +142,8 @@ public class AudioPacket extends MediaPacket {
 
     public enum Flag {
 
-        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4);
+        // SILENCE：服务端检测到静音，之后不再发送音频帧，直到声音恢复（恢复时先重发 CONFIG）
+        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4), SILENCE((byte) 8);
 
         private byte type;
 
@@ -1,5 +1,7 @@
 package org.client.scrcpy.model;
 
+import android.media.MediaFormat;
+
 import java.nio.ByteBuffer;
 
 /**
@@ -103,7 +105,20 @@ public class VideoPacket extends MediaPacket {
         return values[0] == Type.VIDEO.getType();
     }
 
-    public static StreamSettings getStreamSettings(byte[] buffer) {
+    /**
+     * 解析编码配置数据
+     * <p>
+     * H.264 的配置为 sps、pps 两个 NAL 单元，分别作为 csd-0、csd-1；H.265（vps/sps/pps）和 AV1 的配置整体作为 csd-0
+     *
+     * @param mimeType 视频编码类型
+     */
+    public static StreamSettings getStreamSettings(String mimeType, byte[] buffer) {
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            StreamSettings streamSettings = new StreamSettings();
+            streamSettings.mimeType = mimeType;
+            streamSettings.sps = ByteBuffer.wrap(buffer);
+            return streamSettings;
+        }
         byte[] sps, pps;
 
         ByteBuffer spsPpsBuffer = ByteBuffer.wrap(buffer);
@@ -130,6 +145,7 @@ public class VideoPacket extends MediaPacket {
         ByteBuffer ppsBuffer = ByteBuffer.wrap(pps, 0, pps.length);
 
         StreamSettings streamSettings = new StreamSettings();
+        streamSettings.mimeType = mimeType;
         streamSettings.sps = spsBuffer;
         streamSettings.pps = ppsBuffer;
 
@@ -140,9 +156,22 @@ public class VideoPacket extends MediaPacket {
         return toArray(type, flag, presentationTimeStamp, data);
     }
 
+    /**
+     * {@link Flag#RECONFIGURE} 没有数据，表示服务端即将以时间戳中的尺寸重启编码器（例如旋转），随后发送新的编码配置；
+     * 编码配置（{@link Flag#CONFIG}）没有时间戳，服务端用时间戳字段传递视频尺寸：宽 << 32 | 高，旧版本服务端为 0
+     *
+     * @return 视频是否为横屏，未知时返回 null
+     */
+    public static Boolean isLandscape(long configTimestamp) {
+        if (configTimestamp == 0) {
+            return null;
+        }
+        return (configTimestamp >>> 32) > (configTimestamp & 0xffffffffL);
+    }
+
     public enum Flag {
 
-        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4);
+        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4), RECONFIGURE((byte) 8);
 
         private byte type;
 
@@ -166,6 +195,8 @@ public class VideoPacket extends MediaPacket {
     }
 
     public static class StreamSettings {
+        public String mimeType;
+        // H.264 以外的编码，sps 为完整的配置数据，pps 为 null
         public ByteBuffer pps;
         public ByteBuffer sps;
     }
@@ -0,0 +1,71 @@
+package org.server.scrcpy;
+
+import android.hardware.display.VirtualDisplay;
+import android.os.Build;
+import android.view.Surface;
+
+import org.server.scrcpy.wrappers.DisplayManager;
+
+/**
+ * A virtual display owned by the server, to run an app at a chosen size while the main screen of the device stays free.
+ * <p/>
+ * Unlike a mirror display, it has its own content: the apps launched into it are laid out for its size, and the events are routed to it by
+ * display id. The display survives the encoder restarts, only its surface is replaced (so the app is not restarted).
+ */
+public final class AppDisplay {
+
+    public static final int DEFAULT_DPI = 160;
+
+    // hidden flags of android.hardware.display.DisplayManager
+    private static final int VIRTUAL_DISPLAY_FLAG_SUPPORTS_TOUCH = 1 << 6;
+    private static final int VIRTUAL_DISPLAY_FLAG_ROTATES_WITH_CONTENT = 1 << 7;
+    private static final int VIRTUAL_DISPLAY_FLAG_DESTROY_CONTENT_ON_REMOVAL = 1 << 8;
+    private static final int VIRTUAL_DISPLAY_FLAG_TRUSTED = 1 << 10;
+    private static final int VIRTUAL_DISPLAY_FLAG_OWN_DISPLAY_GROUP = 1 << 11;
+    private static final int VIRTUAL_DISPLAY_FLAG_ALWAYS_UNLOCKED = 1 << 12;
+
+    private final VirtualDisplay virtualDisplay;
+
+    private AppDisplay(VirtualDisplay virtualDisplay) {
+        this.virtualDisplay = virtualDisplay;
+    }
+
+    /**
+     * Create the display without surface: it is attached by {@link #setSurface(Surface)} once the encoder is started, but its id is needed
+     * before, to launch the app and to route the events.
+     *
+     * @param dpi the density of the display, or 0 for {@link #DEFAULT_DPI}
+     */
+    public static AppDisplay create(Size size, int dpi) {
+        int flags = android.hardware.display.DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC
+                | android.hardware.display.DisplayManager.VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY
+                | VIRTUAL_DISPLAY_FLAG_SUPPORTS_TOUCH
+                | VIRTUAL_DISPLAY_FLAG_ROTATES_WITH_CONTENT
+                | VIRTUAL_DISPLAY_FLAG_DESTROY_CONTENT_ON_REMOVAL;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            // focus and input independent of the main screen, usable while the device is locked
+            flags |= VIRTUAL_DISPLAY_FLAG_TRUSTED | VIRTUAL_DISPLAY_FLAG_OWN_DISPLAY_GROUP | VIRTUAL_DISPLAY_FLAG_ALWAYS_UNLOCKED;
+        }
+        try {
+            VirtualDisplay virtualDisplay = DisplayManager.createNewVirtualDisplay("scrcpy-app", size.getWidth(), size.getHeight(),
+                    dpi > 0 ? dpi : DEFAULT_DPI, null, flags);
+            AppDisplay appDisplay = new AppDisplay(virtualDisplay);
+            Ln.i("New display " + size + " created: display id " + appDisplay.getDisplayId());
+            return appDisplay;
+        } catch (Exception e) {
+            throw new AssertionError("Could not create the app display", e);
+        }
+    }
+
+    public int getDisplayId() {
+        return virtualDisplay.getDisplay().getDisplayId();
+    }
+
+    public void setSurface(Surface surface) {
+        virtualDisplay.setSurface(surface);
+    }
+
+    public void release() {
+        virtualDisplay.release();
+    }
+}
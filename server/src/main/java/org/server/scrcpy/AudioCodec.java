@@ -0,0 +1,84 @@
+package org.server.scrcpy;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+
+import java.util.List;
+
+/**
+ * The audio codecs which may be negotiated with the client.
+ * <p/>
+ * The id is sent to the client in the stream header, after the video codec id.
+ */
+public enum AudioCodec {
+    OPUS(0x6f_70_75_73, "opus", "audio/opus"), // "opus" in ASCII (MediaFormat.MIMETYPE_AUDIO_OPUS)
+    AAC(0x00_61_61_63, "aac", "audio/mp4a-latm"), // "aac" in ASCII
+    // uncompressed 16-bit PCM, in the negotiated format (audio_sample_rate, audio_channels), for links with enough bandwidth (USB,
+    // loopback): no encoder delay at all
+    RAW(0x00_72_61_77, "raw", "audio/raw"); // "raw" in ASCII
+
+    private final int id;
+    private final String name;
+    private final String mimeType;
+
+    AudioCodec(int id, String name, String mimeType) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return the codec, or {@code null} if the name is unknown
+     */
+    public static AudioCodec findByName(String name) {
+        for (AudioCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Select the first codec of the client (by order of preference) which can be encoded on the device at this sample rate (the Opus encoder
+     * is available since Android 10, and only supports 8, 12, 16, 24 and 48 kHz). AAC is the fallback.
+     */
+    public static AudioCodec select(List<AudioCodec> clientCodecs, int sampleRate) {
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (AudioCodec codec : clientCodecs) {
+            if (codec == RAW || hasEncoder(infos, codec.mimeType, sampleRate)) {
+                return codec;
+            }
+        }
+        return AAC;
+    }
+
+    private static boolean hasEncoder(MediaCodecInfo[] infos, String mimeType, int sampleRate) {
+        for (MediaCodecInfo info : infos) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    MediaCodecInfo.AudioCapabilities capabilities = info.getCapabilitiesForType(type).getAudioCapabilities();
+                    if (capabilities == null || capabilities.isSampleRateSupported(sampleRate)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
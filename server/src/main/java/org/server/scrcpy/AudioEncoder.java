@@ -12,43 +12,112 @@ import android.util.Log;
 
 import org.server.scrcpy.audio.AudioCapture;
 import org.server.scrcpy.audio.AudioCaptureException;
+import org.server.scrcpy.audio.AudioConfig;
 import org.server.scrcpy.audio.AudioDirectCapture;
-import org.server.scrcpy.audio.AudioSource;
+import org.server.scrcpy.audio.SilenceDetector;
 import org.server.scrcpy.model.AudioPacket;
-import org.server.scrcpy.model.MediaPacket;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 public class AudioEncoder {
     public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
 
+    // MediaFormat.KEY_ENCODER_DELAY, public since Android 11 (in samples)
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+
+    private static final long LATENCY_REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    // the default (and, through MediaFormat, not configurable) frame duration of the Android Opus encoders
+    private static final long OPUS_FRAME_DURATION_US = 20_000;
+
+    private final AudioCodec audioCodec;
+    private final AudioConfig audioConfig;
     private int bitRate;
+    private final int readSize;
 
     private HandlerThread mediaCodecThread;
 
-    private final AudioCapture capture = new AudioDirectCapture(AudioSource.OUTPUT);
+    private final AudioCapture capture;
+
+    // discontinuous transmission: no frames are sent while the capture is silent (null to always send them)
+    private final SilenceDetector silenceDetector;
+    private boolean suppressed;
+    // sent again when the sound returns, so that the client starts from a clean decoder state
+    private ByteBuffer config;
+
+    // time between the capture of the samples and their output by the encoder, averaged over the report interval
+    private long latencySumUs;
+    private int latencyCount;
+    private long lastLatencyReport;
 
     private volatile int runStatus = 1;
 
     private final Object lock = new Object();
 
     public AudioEncoder(int bitRate) {
+        this(AudioCodec.AAC, AudioConfig.DEFAULT, bitRate, 0, null);
+    }
+
+    /**
+     * @param readSize        the number of bytes read from the capture at once (see {@link AudioConfig#getReadSize(int)}), 0 for
+     *                        {@link AudioConfig#getMaxReadSize()}
+     * @param silenceDetector if not {@code null}, suppress the frames while the capture is silent
+     */
+    public AudioEncoder(AudioCodec audioCodec, AudioConfig audioConfig, int bitRate, int readSize, SilenceDetector silenceDetector) {
+        this.audioCodec = audioCodec;
+        this.audioConfig = audioConfig;
         this.bitRate = bitRate;
+        this.readSize = readSize > 0 ? readSize : audioConfig.getMaxReadSize();
+        this.silenceDetector = silenceDetector;
+        if (silenceDetector != null) {
+            silenceDetector.setResumeMargin(getFrameDurationUs());
+        }
+        capture = new AudioDirectCapture(audioConfig, this.readSize, silenceDetector);
+    }
+
+    /**
+     * @return the duration of the samples encoded in a frame, 0 for raw PCM (each packet holds exactly the captured samples)
+     */
+    private long getFrameDurationUs() {
+        switch (audioCodec) {
+            case AAC:
+                return AAC_FRAME_SAMPLES * 1_000_000L / audioConfig.getSampleRate();
+            case OPUS:
+                return OPUS_FRAME_DURATION_US;
+            default:
+                return 0;
+        }
+    }
+
+    public AudioConfig getAudioConfig() {
+        return audioConfig;
     }
 
-    private static MediaCodec createCodec() throws IOException {
-        return MediaCodec.createEncoderByType(MIMETYPE_AUDIO_AAC);
+    /**
+     * Check that the capture is possible on this device, before announcing the audio stream to the client.
+     */
+    public void checkCompatibility() throws AudioCaptureException {
+        capture.checkCompatibility();
     }
 
-    private static MediaFormat createFormat(int bitRate) throws IOException {
+    public AudioCodec getAudioCodec() {
+        return audioCodec;
+    }
+
+    private MediaCodec createCodec() throws IOException {
+        return MediaCodec.createEncoderByType(audioCodec.getMimeType());
+    }
+
+    private MediaFormat createFormat(int bitRate) throws IOException {
 
         MediaFormat format = new MediaFormat();
-        format.setString(MediaFormat.KEY_MIME, MIMETYPE_AUDIO_AAC);
+        format.setString(MediaFormat.KEY_MIME, audioCodec.getMimeType());
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 2);  // 通道数固定
-        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, 48000);  // 采样率固定
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, audioConfig.getChannels());
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, audioConfig.getSampleRate());
 
         // display the very first frame, and recover from bad quality when no new frames
 //        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, MICROSECONDS_IN_ONE_SECOND * REPEAT_FRAME_DELAY / frameRate); // µs
@@ -59,8 +128,12 @@ public class AudioEncoder {
         codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     }
 
-    public void streamScreen(OutputStream outputStream) throws IOException, AudioCaptureException {
+    public void streamScreen(PacketMuxer muxer) throws IOException, AudioCaptureException {
         Log.d("ScreenCapture", "audio stream screen");
+        if (audioCodec == AudioCodec.RAW) {
+            streamRaw(muxer);
+            return;
+        }
 
         MediaFormat format = createFormat(bitRate);
 
@@ -75,7 +148,7 @@ public class AudioEncoder {
             do {
                 MediaCodec codec = createCodec();
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    codec.setCallback(new EncoderCallback(codec, outputStream), new Handler(mediaCodecThread.getLooper()));
+                    codec.setCallback(new EncoderCallback(codec, muxer), new Handler(mediaCodecThread.getLooper()));
                 }
                 configure(codec, format);
 
@@ -120,6 +193,87 @@ public class AudioEncoder {
         }
     }
 
+    /**
+     * Send the captured samples as is, without encoder.
+     */
+    private void streamRaw(PacketMuxer muxer) throws IOException, AudioCaptureException {
+        // AudioRecord only reads into direct buffers
+        ByteBuffer buffer = ByteBuffer.allocateDirect(readSize);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        capture.start();
+        try {
+            // the client initializes its audio output on the configuration packet (empty for raw audio)
+            config = ByteBuffer.allocate(0);
+            muxer.offerAudio(AudioPacket.Flag.CONFIG, 0, config);
+            while (true) {
+                buffer.clear();
+                int r = capture.read(buffer, bufferInfo);
+                if (r <= 0) {
+                    Ln.w("Could not read audio: " + r);
+                    return;
+                }
+                // the position of the buffer is not updated by the read
+                buffer.limit(r);
+                if (!applyDtx(muxer, bufferInfo.presentationTimeUs)) {
+                    continue;
+                }
+                measureLatency(bufferInfo.presentationTimeUs);
+                muxer.offerAudio(AudioPacket.Flag.FRAME, bufferInfo.presentationTimeUs, buffer);
+            }
+        } finally {
+            capture.stop();
+        }
+    }
+
+    /**
+     * Apply the discontinuous transmission to the frame having this timestamp.
+     * <p/>
+     * When the frames start being suppressed, a single {@link AudioPacket.Flag#SILENCE} packet tells the client to stop its playback
+     * (instead of playing an underrun); when the sound returns, the configuration is sent again before the first frame.
+     *
+     * @return {@code true} if the frame must be sent
+     */
+    private boolean applyDtx(PacketMuxer muxer, long presentationTimeUs) throws IOException {
+        if (silenceDetector == null) {
+            return true;
+        }
+        boolean send = silenceDetector.shouldSend(presentationTimeUs);
+        if (!send && !suppressed) {
+            suppressed = true;
+            Ln.d("Audio silent, frames suppressed");
+            muxer.offerAudio(AudioPacket.Flag.SILENCE, presentationTimeUs, ByteBuffer.allocate(0));
+        } else if (send && suppressed) {
+            suppressed = false;
+            Ln.d("Audio resumed");
+            if (config != null) {
+                muxer.offerAudio(AudioPacket.Flag.CONFIG, 0, config.duplicate());
+            }
+        }
+        return send;
+    }
+
+    private void measureLatency(long presentationTimeUs) {
+        // the capture timestamps use the monotonic clock of System.nanoTime()
+        long now = System.nanoTime();
+        latencySumUs += now / 1000 - presentationTimeUs;
+        ++latencyCount;
+        if (lastLatencyReport == 0) {
+            lastLatencyReport = now;
+        } else if (now - lastLatencyReport >= LATENCY_REPORT_INTERVAL_NS) {
+            Ln.i("Audio latency (" + audioCodec.getName() + ", capture to output): " + latencySumUs / latencyCount / 1000 + " ms");
+            latencySumUs = 0;
+            latencyCount = 0;
+            lastLatencyReport = now;
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        return copy;
+    }
+
     @SuppressLint("NewApi")
     private boolean waitEnd() throws IOException {
 
@@ -163,11 +317,11 @@ public class AudioEncoder {
 
         private MediaCodec mediaCodec;
 
-        private OutputStream outputStream;
+        private PacketMuxer muxer;
 
-        private EncoderCallback(MediaCodec mediaCodec, OutputStream outputStream) {
+        private EncoderCallback(MediaCodec mediaCodec, PacketMuxer muxer) {
             this.mediaCodec = mediaCodec;
-            this.outputStream = outputStream;
+            this.muxer = muxer;
         }
 
         final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
@@ -203,8 +357,6 @@ public class AudioEncoder {
                     if (outputBuffer != null) {
                         outputBuffer.position(bufferInfo.offset);
                         outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
-                        byte[] b = new byte[outputBuffer.remaining()];
-                        outputBuffer.get(b);
 
                         AudioPacket.Flag flag = AudioPacket.Flag.CONFIG;
 
@@ -215,9 +367,15 @@ public class AudioEncoder {
                         } else if (bufferInfo.flags == 0) {
                             flag = AudioPacket.Flag.FRAME;
                         }
-                        AudioPacket packet = new AudioPacket(MediaPacket.Type.AUDIO, flag, bufferInfo.presentationTimeUs, b);
                         try {
-                            outputStream.write(packet.toByteArray());
+                            if (flag == AudioPacket.Flag.CONFIG) {
+                                config = copy(outputBuffer);
+                            } else if (flag != AudioPacket.Flag.END && !applyDtx(muxer, bufferInfo.presentationTimeUs)) {
+                                return;
+                            } else {
+                                measureLatency(bufferInfo.presentationTimeUs);
+                            }
+                            muxer.offerAudio(flag, bufferInfo.presentationTimeUs, outputBuffer);
                         } catch (IOException e) {
                             Ln.e("output stream write faild");
                             end();
@@ -240,7 +398,11 @@ public class AudioEncoder {
 
         @Override
         public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
-            // ignore
+            // the encoder delay (the look-ahead, e.g. the Opus pre-skip), if reported: the frames before the sound may contain it too
+            if (silenceDetector != null && format.containsKey(KEY_ENCODER_DELAY)) {
+                long delayUs = format.getInteger(KEY_ENCODER_DELAY) * 1_000_000L / audioConfig.getSampleRate();
+                silenceDetector.setResumeMargin(getFrameDurationUs() + delayUs);
+            }
         }
     }
 }
@@ -0,0 +1,205 @@
+package org.server.scrcpy;
+
+/**
+ * Adaptive bitrate controller, driven by the congestion observed at the socket writer.
+ * <p/>
+ * Every {@link #EVALUATION_INTERVAL_MS}, it compares the {@link LinkStats} counters with their values at the previous evaluation:
+ * <ul>
+ * <li>the stall ratio: the fraction of the interval spent blocked in socket writes;</li>
+ * <li>the queue delay: the time needed to flush the bytes waiting in the muxer at the measured throughput;</li>
+ * <li>the dropped frames.</li>
+ * </ul>
+ * On congestion, the bitrate is decreased multiplicatively (never above the measured throughput), then kept for a while. When the link has
+ * been clean for several intervals, it is increased additively, up to the maximum (AIMD).
+ * <p/>
+ * The counters are only read when an evaluation is due (see {@link #isDue(long)}), and copied into primitive fields: feeding the controller
+ * on each encoded frame does not allocate anything.
+ * <p/>
+ * This class does not depend on Android, so that it can be driven by a simulated link on the JVM.
+ */
+public final class BitrateController {
+
+    public static final long EVALUATION_INTERVAL_MS = 500;
+
+    // congestion thresholds
+    private static final float CONGESTED_STALL_RATIO = 0.5f;
+    private static final long CONGESTED_QUEUE_DELAY_MS = 200;
+
+    // clean link thresholds
+    private static final float CLEAN_STALL_RATIO = 0.1f;
+    private static final long CLEAN_QUEUE_DELAY_MS = 50;
+    private static final int CLEAN_INTERVALS_BEFORE_INCREASE = 2;
+
+    private static final float DECREASE_FACTOR = 0.7f;
+    private static final float THROUGHPUT_MARGIN = 0.9f;
+    private static final float INCREASE_RATIO = 0.05f;
+    private static final int MIN_INCREASE_STEP = 100_000;
+
+    // do not increase just after a decrease, the queues take some time to drain
+    private static final long HOLD_AFTER_DECREASE_MS = 2000;
+
+    private final int minBitRate;
+    private final int maxBitRate;
+    private int bitRate;
+
+    // the counters at the previous evaluation
+    private boolean hasBaseline;
+    private long lastWriteStallNanos;
+    private long lastWrittenBytes;
+    private long lastQueuedBytes;
+    private long lastDroppedTotal;
+    private long lastTimeMs;
+    private long holdUntilMs;
+    private int cleanIntervals;
+
+    // metrics
+    private int decreaseCount;
+    private int increaseCount;
+    private float lastStallRatio;
+    private long lastThroughput;
+    private long lastQueueDelayMs;
+    private long lastDroppedPackets;
+    private String lastDecision = "initial";
+
+    public BitrateController(int minBitRate, int maxBitRate, int initialBitRate) {
+        if (minBitRate <= 0 || minBitRate > maxBitRate) {
+            throw new IllegalArgumentException("Invalid bitrate bounds: [" + minBitRate + ", " + maxBitRate + "]");
+        }
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.bitRate = clamp(initialBitRate);
+    }
+
+    private int clamp(long value) {
+        return (int) Math.max(minBitRate, Math.min(maxBitRate, value));
+    }
+
+    /**
+     * Tell whether {@link #update(long, LinkStats)} would evaluate the link, so that the caller can skip it cheaply on most frames.
+     *
+     * @param nowMs a monotonic time in milliseconds
+     */
+    public boolean isDue(long nowMs) {
+        return !hasBaseline || nowMs - lastTimeMs >= EVALUATION_INTERVAL_MS;
+    }
+
+    /**
+     * Evaluate the link, if the evaluation interval has elapsed.
+     *
+     * @param nowMs a monotonic time in milliseconds
+     * @return the bitrate to use (unchanged if the evaluation interval has not elapsed)
+     */
+    public int update(long nowMs, LinkStats link) {
+        if (!isDue(nowMs)) {
+            return bitRate;
+        }
+        long writeStallNanos = link.getWriteStallNanos();
+        long writtenBytes = link.getWrittenBytes();
+        long queuedBytes = link.getQueuedBytes();
+        long droppedTotal = link.getDroppedPackets();
+        if (!hasBaseline) {
+            hasBaseline = true;
+            saveBaseline(nowMs, writeStallNanos, writtenBytes, queuedBytes, droppedTotal);
+            return bitRate;
+        }
+        long elapsedMs = nowMs - lastTimeMs;
+
+        lastStallRatio = (writeStallNanos - lastWriteStallNanos) / (elapsedMs * 1_000_000f);
+        lastThroughput = (writtenBytes - lastWrittenBytes) * 8 * 1000 / elapsedMs;
+        lastDroppedPackets = droppedTotal - lastDroppedTotal;
+        if (lastThroughput > 0) {
+            lastQueueDelayMs = queuedBytes * 8 * 1000 / lastThroughput;
+        } else {
+            // nothing could be written during the whole interval
+            lastQueueDelayMs = queuedBytes > 0 ? Long.MAX_VALUE : 0;
+        }
+        boolean draining = queuedBytes < lastQueuedBytes;
+        saveBaseline(nowMs, writeStallNanos, writtenBytes, queuedBytes, droppedTotal);
+
+        boolean congested = lastDroppedPackets > 0 || lastStallRatio > CONGESTED_STALL_RATIO || lastQueueDelayMs > CONGESTED_QUEUE_DELAY_MS;
+        if (congested && nowMs < holdUntilMs && draining && lastDroppedPackets == 0) {
+            // the previous decrease is taking effect, give the queue the time to drain
+            lastDecision = "draining";
+            return bitRate;
+        }
+        if (congested) {
+            cleanIntervals = 0;
+            holdUntilMs = nowMs + HOLD_AFTER_DECREASE_MS;
+            long target = (long) (bitRate * DECREASE_FACTOR);
+            if (lastThroughput > 0) {
+                // the link cannot carry more than what has just been measured
+                target = Math.min(target, (long) (lastThroughput * THROUGHPUT_MARGIN));
+            }
+            return apply(clamp(target), "congested");
+        }
+
+        boolean clean = lastStallRatio < CLEAN_STALL_RATIO && lastQueueDelayMs < CLEAN_QUEUE_DELAY_MS;
+        if (!clean || nowMs < holdUntilMs) {
+            cleanIntervals = 0;
+            lastDecision = clean ? "hold" : "steady";
+            return bitRate;
+        }
+        if (++cleanIntervals < CLEAN_INTERVALS_BEFORE_INCREASE) {
+            lastDecision = "clean";
+            return bitRate;
+        }
+        cleanIntervals = 0;
+        int step = Math.max((int) (bitRate * INCREASE_RATIO), MIN_INCREASE_STEP);
+        return apply(clamp((long) bitRate + step), "probe");
+    }
+
+    private void saveBaseline(long nowMs, long writeStallNanos, long writtenBytes, long queuedBytes, long droppedTotal) {
+        lastTimeMs = nowMs;
+        lastWriteStallNanos = writeStallNanos;
+        lastWrittenBytes = writtenBytes;
+        lastQueuedBytes = queuedBytes;
+        lastDroppedTotal = droppedTotal;
+    }
+
+    private int apply(int newBitRate, String reason) {
+        if (newBitRate < bitRate) {
+            ++decreaseCount;
+        } else if (newBitRate > bitRate) {
+            ++increaseCount;
+        }
+        lastDecision = reason;
+        bitRate = newBitRate;
+        return bitRate;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public int getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    public int getIncreaseCount() {
+        return increaseCount;
+    }
+
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    @Override
+    public String toString() {
+        return "BitrateController{bitRate=" + bitRate
+                + ", decision=" + lastDecision
+                + ", stall=" + Math.round(lastStallRatio * 100) + "%"
+                + ", throughput=" + lastThroughput
+                + ", queueDelay=" + (lastQueueDelayMs == Long.MAX_VALUE ? "inf" : lastQueueDelayMs + "ms")
+                + ", dropped=" + lastDroppedPackets
+                + ", decreases=" + decreaseCount
+                + ", increases=" + increaseCount + '}';
+    }
+}
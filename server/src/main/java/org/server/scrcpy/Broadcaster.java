@@ -0,0 +1,150 @@
+package org.server.scrcpy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Broadcast the stream of the session to additional viewers, without encoding it again.
+ * <p/>
+ * Viewers connect on a dedicated port, with a single socket: they receive the same header and packets as the main client (so any client can
+ * be used as a viewer), but they cannot control the device (the bytes they send are read and ignored).
+ * <p/>
+ * Each viewer has its own {@link PacketMuxer} (its own bounded queues and writer thread), attached to the main muxer: it never blocks the
+ * encoder, and when it cannot keep up, it is handled according to the {@link PacketMuxer.SlowConsumerPolicy}. A viewer joining the
+ * broadcast receives the cached codec configurations, then a key frame requested on demand.
+ */
+public final class Broadcaster {
+
+    public static final int DEFAULT_VIEWER_PORT = 7008;
+
+    private final PacketMuxer muxer;
+    private final ScreenEncoder screenEncoder;
+    private final int maxViewers;
+    private final PacketMuxer.SlowConsumerPolicy policy;
+
+    private ServerSocketChannel serverSocketChannel;
+    private Thread thread;
+    private volatile boolean stopped;
+    private int viewerCount;
+
+    public Broadcaster(PacketMuxer muxer, ScreenEncoder screenEncoder, int maxViewers, PacketMuxer.SlowConsumerPolicy policy) {
+        this.muxer = muxer;
+        this.screenEncoder = screenEncoder;
+        this.maxViewers = maxViewers;
+        this.policy = policy;
+    }
+
+    public void start(int port) throws IOException {
+        serverSocketChannel = DroidConnection.listen(port);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acceptLoop();
+                } catch (IOException e) {
+                    // this is expected on stop
+                    if (!stopped) {
+                        Ln.e("Broadcaster stopped", e);
+                    }
+                }
+            }
+        }, "broadcaster");
+        thread.start();
+        Ln.i("Broadcasting to up to " + maxViewers + " viewers on port " + port);
+    }
+
+    private void acceptLoop() throws IOException {
+        while (!stopped) {
+            SocketChannel channel = serverSocketChannel.accept();
+            if (muxer.getViewerCount() >= maxViewers) {
+                Ln.w("Viewer rejected: " + maxViewers + " viewers already connected");
+                channel.close();
+                continue;
+            }
+            addViewer(channel);
+        }
+    }
+
+    private void addViewer(SocketChannel channel) {
+        final Viewer viewer = new Viewer(channel, "viewer-" + ++viewerCount);
+        try {
+            muxer.addViewer(viewer.muxer, viewer);
+        } catch (IOException e) {
+            Ln.w("Could not add " + viewer.name + ": " + e.getMessage());
+            viewer.close();
+            return;
+        }
+        // do not wait for the next periodic key frame
+        screenEncoder.requestSyncFrame();
+        viewer.startReader();
+        Ln.i(viewer.name + " connected (" + muxer.getViewerCount() + "/" + maxViewers + ")");
+    }
+
+    public void stop() {
+        stopped = true;
+        if (serverSocketChannel != null) {
+            try {
+                // unblock accept()
+                serverSocketChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private final class Viewer implements PacketMuxer.ConnectionListener {
+
+        private final SocketChannel channel;
+        private final String name;
+        private final PacketMuxer muxer;
+
+        private Viewer(SocketChannel channel, String name) {
+            this.channel = channel;
+            this.name = name;
+            muxer = new PacketMuxer(channel, channel);
+            // a slow viewer must never stall the encoder (and the other clients)
+            muxer.setVideoOfferTimeout(0);
+            muxer.setSlowConsumerPolicy(policy);
+            muxer.setSyncFrameListener(screenEncoder);
+        }
+
+        /**
+         * Read (and ignore) the bytes sent by the viewer, so that a disconnection is detected even if no packet is written.
+         */
+        private void startReader() {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[256];
+                    try {
+                        InputStream input = channel.socket().getInputStream();
+                        while (input.read(buffer) != -1) {
+                            // viewers cannot control the device
+                        }
+                        Broadcaster.this.muxer.removeViewer(muxer, new IOException("Connection closed by the viewer"));
+                    } catch (IOException e) {
+                        Broadcaster.this.muxer.removeViewer(muxer, e);
+                    }
+                }
+            }, name).start();
+        }
+
+        @Override
+        public void onDisconnected(IOException e) {
+            Ln.i(name + " disconnected: " + e.getMessage());
+            close();
+        }
+
+        private void close() {
+            try {
+                // unblock the writer thread of the viewer muxer
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            muxer.close();
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package org.server.scrcpy;
 
 import org.server.scrcpy.device.Point;
+import android.app.ActivityOptions;
+import android.content.Intent;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.view.IRotationWatcher;
 import android.view.InputEvent;
 
+import org.server.scrcpy.util.FakeContext;
+import org.server.scrcpy.wrappers.InputManager;
 import org.server.scrcpy.wrappers.ServiceManager;
 
 public final class Device {
@@ -13,9 +19,33 @@ public final class Device {
     // private final ServiceManager serviceManager = new ServiceManager();
     private ScreenInfo screenInfo;
     private RotationListener rotationListener;
+    private final int maxSize;
+    // the max size of the video, lowered to fit the client viewport
+    private int videoMaxSize;
+    // the crop rectangle in the natural orientation of the device, or null to stream the whole screen
+    private Rect crop;
+    // the streamed display, and where the events are injected
+    private final int displayId;
+    private int layerStack;
+    // the display created for an app, if any
+    private AppDisplay appDisplay;
 
     public Device(Options options) {
-        screenInfo = computeScreenInfo(options.getMaxSize());
+        maxSize = options.getMaxSize();
+        videoMaxSize = maxSize;
+        crop = options.getCrop();
+        if (options.getNewDisplay() != null) {
+            appDisplay = AppDisplay.create(options.getNewDisplay(), options.getNewDisplayDpi());
+            displayId = appDisplay.getDisplayId();
+            if (crop != null) {
+                // the app display is sized for the app, there is no need to crop it
+                Ln.w("Crop is ignored on a new display");
+                crop = null;
+            }
+        } else {
+            displayId = options.getDisplayId();
+        }
+        screenInfo = computeScreenInfo(crop, maxSize);
         registerRotationWatcher(new IRotationWatcher.Stub() {
             @Override
             public void onRotationChanged(int rotation) throws RemoteException {
@@ -28,7 +58,7 @@ public final class Device {
                     }
                 }
             }
-        });
+        }, displayId);
     }
 
     public static String getDeviceName() {
@@ -40,15 +70,41 @@ public final class Device {
     }
 
     @SuppressWarnings("checkstyle:MagicNumber")
-    private ScreenInfo computeScreenInfo(int maxSize) {
+    private ScreenInfo computeScreenInfo(Rect crop, int maxSize) {
         // Compute the video size and the padding of the content inside this video.
         // Principle:
         // - scale down the great side of the screen to maxSize (if necessary);
         // - scale down the other side so that the aspect ratio is preserved;
         // - round this value to the nearest multiple of 8 (H.264 only accepts multiples of 8)
-        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo();
+        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
+        if (displayInfo == null) {
+            throw new IllegalArgumentException("Display " + displayId + " not found\n" + ScreenEncoder.buildDisplayListMessage());
+        }
+        layerStack = displayInfo.getLayerStack();
         boolean rotated = (displayInfo.getRotation() & 1) != 0;
         Size deviceSize = displayInfo.getSize();
+        Rect contentRect = computeContentRect(deviceSize, crop, rotated);
+        Size videoSize = computeVideoSize(new Size(contentRect.width(), contentRect.height()), maxSize);
+        return new ScreenInfo(deviceSize, contentRect, videoSize, videoSize, rotated);
+    }
+
+    private static Rect computeContentRect(Size deviceSize, Rect crop, boolean rotated) {
+        Rect contentRect = deviceSize.toRect();
+        if (crop != null) {
+            if (rotated) {
+                // the crop rectangle is expressed in the natural orientation of the device
+                crop = ScreenInfo.flipRect(crop);
+            }
+            if (!contentRect.intersect(crop)) {
+                Ln.w("Crop rectangle (" + crop.toShortString() + ") does not intersect the device screen (" + deviceSize + ")");
+                contentRect = deviceSize.toRect();
+            }
+        }
+        return contentRect;
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static Size computeVideoSize(Size deviceSize, int maxSize) {
         int w = deviceSize.getWidth() & ~7; // in case it's not a multiple of 8
         int h = deviceSize.getHeight() & ~7;
         if (maxSize > 0) {
@@ -67,8 +123,54 @@ public final class Device {
             w = portrait ? minor : major;
             h = portrait ? major : minor;
         }
-        Size videoSize = new Size(w, h);
-        return new ScreenInfo(deviceSize, videoSize, rotated);
+        return new Size(w, h);
+    }
+
+    /**
+     * Adapt the video size to the viewport of the client (e.g. a small floating window), so that the device does not encode (and the
+     * client does not decode) more pixels than displayed.
+     * <p/>
+     * The video size is never larger than the one requested at startup. The client events are still expressed in the initial video size.
+     *
+     * @param width  the width of the viewport, or 0 to restore the initial video size
+     * @param height the height of the viewport
+     * @return {@code true} if the video size has changed (the encoder must be restarted)
+     */
+    public synchronized boolean setViewport(int width, int height) {
+        int viewportMaxSize = (Math.max(width, height) + 7) & ~7; // round up to a multiple of 8
+        int newMaxSize = maxSize;
+        if (width > 0 && height > 0 && (maxSize <= 0 || viewportMaxSize < maxSize)) {
+            newMaxSize = viewportMaxSize;
+        }
+        videoMaxSize = newMaxSize;
+        Size videoSize = computeVideoSize(screenInfo.getContentSize(), newMaxSize);
+        if (videoSize.equals(screenInfo.getVideoSize())) {
+            return false;
+        }
+        screenInfo = screenInfo.withVideoSize(videoSize);
+        return true;
+    }
+
+    /**
+     * Stream only a rectangle of the screen, so that the device encodes (and sends) only the pixels of this area.
+     * <p/>
+     * The video size and the coordinate space of the client events are computed from the crop size, as if the crop had been requested at
+     * startup: the client must map its events to the crop size.
+     *
+     * @param newCrop the crop rectangle in the natural orientation of the device, or {@code null} to stream the whole screen
+     * @return {@code true} if the streamed area has changed (the encoder must be restarted)
+     */
+    public synchronized boolean setCrop(Rect newCrop) {
+        Rect contentRect = computeContentRect(screenInfo.getDeviceSize(), newCrop, screenInfo.isRotated());
+        crop = newCrop;
+        if (contentRect.equals(screenInfo.getContentRect())) {
+            return false;
+        }
+        Size contentSize = new Size(contentRect.width(), contentRect.height());
+        Size inputSize = computeVideoSize(contentSize, maxSize);
+        Size videoSize = computeVideoSize(contentSize, videoMaxSize);
+        screenInfo = new ScreenInfo(screenInfo.getDeviceSize(), contentRect, videoSize, inputSize, screenInfo.isRotated());
+        return true;
     }
 
     public Point getPhysicalPoint(Position position) {
@@ -81,23 +183,69 @@ public final class Device {
             // the device may have been rotated since the event was generated, so ignore the event
             return null;
         }
-        Size deviceSize = screenInfo.getDeviceSize();
+        Rect contentRect = screenInfo.getContentRect();
         Point point = position.getPoint();
-        int scaledX = point.getX() * deviceSize.getWidth() / videoSize.getWidth();
-        int scaledY = point.getY() * deviceSize.getHeight() / videoSize.getHeight();
+        int scaledX = contentRect.left + point.getX() * contentRect.width() / videoSize.getWidth();
+        int scaledY = contentRect.top + point.getY() * contentRect.height() / videoSize.getHeight();
         return new Point(scaledX, scaledY);
     }
 
+    public int getDisplayId() {
+        return displayId;
+    }
+
+    public int getLayerStack() {
+        return layerStack;
+    }
+
+    /**
+     * @return the display created for an app, or {@code null} if an existing display is streamed
+     */
+    public AppDisplay getAppDisplay() {
+        return appDisplay;
+    }
+
     public boolean injectInputEvent(InputEvent inputEvent, int mode) {
+        if (displayId != 0 && !InputManager.setDisplayId(inputEvent, displayId)) {
+            return false;
+        }
         return ServiceManager.getInputManager().injectInputEvent(inputEvent, mode);
     }
 
+    /**
+     * Launch the main activity of an app on the streamed display.
+     */
+    public boolean startApp(String packageName) {
+        Intent intent = FakeContext.get().getPackageManager().getLaunchIntentForPackage(packageName);
+        if (intent == null) {
+            Ln.w("No launchable activity for package " + packageName);
+            return false;
+        }
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        Bundle launchOptions = null;
+        if (displayId != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ActivityOptions activityOptions = ActivityOptions.makeBasic();
+            activityOptions.setLaunchDisplayId(displayId);
+            launchOptions = activityOptions.toBundle();
+        }
+        ServiceManager.getActivityManager().startActivity(intent, launchOptions);
+        Ln.i("App " + packageName + " started on display " + displayId);
+        return true;
+    }
+
+    public void release() {
+        if (appDisplay != null) {
+            appDisplay.release();
+            appDisplay = null;
+        }
+    }
+
     public boolean isScreenOn() {
         return ServiceManager.getPowerManager().isScreenOn();
     }
 
-    public void registerRotationWatcher(IRotationWatcher rotationWatcher) {
-        ServiceManager.getWindowManager().registerRotationWatcher(rotationWatcher);
+    public void registerRotationWatcher(IRotationWatcher rotationWatcher, int displayId) {
+        ServiceManager.getWindowManager().registerRotationWatcher(rotationWatcher, displayId);
     }
 
     public synchronized void setRotationListener(RotationListener rotationListener) {
@@ -107,13 +255,15 @@ public final class Device {
     public Point NewgetPhysicalPoint(Point point) {
         @SuppressWarnings("checkstyle:HiddenField") // it hides the field on purpose, to read it with a lock
                 ScreenInfo screenInfo = getScreenInfo(); // read with synchronization
-        Size videoSize = screenInfo.getVideoSize();
+        // the client coordinates do not depend on the viewport
+        Size videoSize = screenInfo.getInputSize();
 //        Size clientVideoSize = position.getScreenSize();
 
-        Size deviceSize = screenInfo.getDeviceSize();
+        // the video shows only the content rectangle (the crop) of the screen
+        Rect contentRect = screenInfo.getContentRect();
 //        Point point = position.getPoint();
-        int scaledX = point.getX() * deviceSize.getWidth() / videoSize.getWidth();
-        int scaledY = point.getY() * deviceSize.getHeight() / videoSize.getHeight();
+        int scaledX = contentRect.left + point.getX() * contentRect.width() / videoSize.getWidth();
+        int scaledY = contentRect.top + point.getY() * contentRect.height() / videoSize.getHeight();
         return new Point(scaledX, scaledY);
     }
 
@@ -1,43 +1,124 @@
 package org.server.scrcpy;
 
+import org.server.scrcpy.control.ControlMessage;
+import org.server.scrcpy.control.ControlMessageReader;
 
 import java.io.Closeable;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public final class DroidConnection implements Closeable {
 
+    public static final int SERVER_PORT = 7007;
 
     private static Socket socket = null;
+    private final SocketChannel videoChannel;
+    private final SocketChannel audioChannel;
+    private final SocketChannel controlChannel;
     private OutputStream outputStream;
     private InputStream inputStream;
+    private final ControlMessageReader controlMessageReader;
 
-    private DroidConnection(Socket socket) throws IOException {
-        this.socket = socket;
+    private DroidConnection(SocketChannel videoChannel, SocketChannel audioChannel, SocketChannel controlChannel) throws IOException {
+        this.videoChannel = videoChannel;
+        this.audioChannel = audioChannel;
+        this.controlChannel = controlChannel;
+        this.socket = videoChannel.socket();
 
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
+        inputStream = controlChannel.socket().getInputStream();
+        outputStream = videoChannel.socket().getOutputStream();
+        controlMessageReader = new ControlMessageReader(inputStream);
     }
 
 
-    private static Socket listenAndAccept() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(7007);
-        Socket sock = null;
+    /**
+     * Open the server socket the client connects to.
+     */
+    public static ServerSocketChannel listen() throws IOException {
+        return listen(SERVER_PORT);
+    }
+
+    /**
+     * Open a server socket on the given port (e.g. for the viewers of a broadcast).
+     */
+    public static ServerSocketChannel listen(int port) throws IOException {
+        // accept channels (not plain Sockets) so that packets can be sent with gathering writes
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
         try {
-            sock = serverSocket.accept();
+            serverSocketChannel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocketChannel.close();
+            throw e;
+        }
+        return serverSocketChannel;
+    }
+
+    private static SocketChannel[] listenAndAccept(int count) throws IOException {
+        ServerSocketChannel serverSocketChannel = listen();
+        try {
+            return accept(serverSocketChannel, count);
         } finally {
-            serverSocket.close();
+            serverSocketChannel.close();
+        }
+    }
+
+    private static SocketChannel[] accept(ServerSocketChannel serverSocketChannel, int count) throws IOException {
+        SocketChannel[] channels = new SocketChannel[count];
+        try {
+            for (int i = 0; i < count; ++i) {
+                channels[i] = serverSocketChannel.accept();
+                if (count > 1) {
+                    // With "adb forward", the client connection succeeds even if the server does not listen yet: send a dummy byte so that
+                    // the client knows this socket is really accepted before it opens the next one (this guarantees the order).
+                    sendDummyByte(channels[i]);
+                }
+            }
+        } catch (IOException e) {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
         }
-        return sock;
+        return channels;
     }
 
-    public static DroidConnection open(String ip) throws IOException {
+    private static void sendDummyByte(SocketChannel channel) throws IOException {
+        ByteBuffer dummy = ByteBuffer.allocate(1);
+        while (dummy.hasRemaining()) {
+            channel.write(dummy);
+        }
+    }
 
-        socket = listenAndAccept();
+    /**
+     * Open the connection with the client.
+     *
+     * @param multiSocket if {@code true}, accept three connections in this order: video, audio and control (so that a large video frame
+     *                    never delays audio packets or control events); otherwise, a single connection carries everything
+     */
+    public static DroidConnection open(String ip, boolean multiSocket) throws IOException {
+        return create(ip, multiSocket, listenAndAccept(multiSocket ? 3 : 1));
+    }
+
+    /**
+     * Accept a connection on a server socket kept open by the caller (to accept a new connection later, to resume the session).
+     *
+     * @see #open(String, boolean)
+     */
+    public static DroidConnection accept(ServerSocketChannel serverSocketChannel, String ip, boolean multiSocket) throws IOException {
+        return create(ip, multiSocket, accept(serverSocketChannel, multiSocket ? 3 : 1));
+    }
+
+    private static DroidConnection create(String ip, boolean multiSocket, SocketChannel[] channels) throws IOException {
+        socket = channels[0].socket();
         DroidConnection connection = null;
 //        if (socket.getInetAddress().toString().equals(ip)) {
 //            connection = new DroidConnection(socket);
@@ -47,46 +128,57 @@ public final class DroidConnection implements Closeable {
         }
         // 判断 socket 有一个正确的地址
         if (!socket.getInetAddress().toString().isEmpty()) {
-            connection = new DroidConnection(socket);
+            if (multiSocket) {
+                connection = new DroidConnection(channels[0], channels[1], channels[2]);
+            } else {
+                connection = new DroidConnection(channels[0], channels[0], channels[0]);
+            }
         }
         return connection;
     }
 
     public void close() throws IOException {
-        socket.shutdownInput();
-        socket.shutdownOutput();
-        socket.close();
+        close(videoChannel);
+        if (audioChannel != videoChannel) {
+            close(audioChannel);
+        }
+        if (controlChannel != videoChannel) {
+            close(controlChannel);
+        }
+    }
+
+    private static void close(SocketChannel channel) throws IOException {
+        Socket sock = channel.socket();
+        try {
+            sock.shutdownInput();
+            sock.shutdownOutput();
+        } finally {
+            // the socket may already be shut down by the peer, it must be closed anyway
+            sock.close();
+        }
     }
 
     public OutputStream getOutputStream() {
         return outputStream;
     }
 
+    public GatheringByteChannel getVideoChannel() {
+        return videoChannel;
+    }
+
+    public GatheringByteChannel getAudioChannel() {
+        return audioChannel;
+    }
+
 
     /**
-     * TODO 需要根据原版 scrcpy 进行改造消息传送，目前仅支持 触控消息
+     * Read the next control message sent by the client.
      *
-     * @return
-     * @throws IOException
+     * @return the message, never {@code null}
+     * @throws java.io.EOFException if the control connection is closed
      */
-    public int[] NewreceiveControlEvent() throws IOException {
-
-        byte[] buf = new byte[20];
-        int n = inputStream.read(buf, 0, 20);
-        if (n == -1) {
-            throw new EOFException("Event controller socket closed");
-        }
-
-        final int[] array = new int[buf.length / 4];
-        for (int i = 0; i < array.length; i++)
-            array[i] = (((int) (buf[i * 4]) << 24) & 0xFF000000) |
-                    (((int) (buf[i * 4 + 1]) << 16) & 0xFF0000) |
-                    (((int) (buf[i * 4 + 2]) << 8) & 0xFF00) |
-                    ((int) (buf[i * 4 + 3]) & 0xFF);
-        return array;
-
-
+    public ControlMessage receiveControlMessage() throws IOException {
+        return controlMessageReader.next();
     }
 
 }
-
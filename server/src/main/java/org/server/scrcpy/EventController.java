@@ -1,5 +1,6 @@
 package org.server.scrcpy;
 
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.SystemClock;
 import android.util.Pair;
@@ -10,6 +11,7 @@ import android.view.KeyEvent;
 import android.view.MotionEvent;
 
 import org.server.scrcpy.wrappers.InputManager;
+import org.server.scrcpy.control.ControlMessage;
 import org.server.scrcpy.control.PointersState;
 import org.server.scrcpy.control.Pointer;
 import org.server.scrcpy.device.Point;
@@ -21,34 +23,31 @@ public class EventController {
 
     private final Device device;
     private final DroidConnection connection;
+    private final ScreenEncoder screenEncoder;
     private final MotionEvent.PointerProperties[] pointerProperties = new MotionEvent.PointerProperties[PointersState.MAX_POINTERS];
     private final MotionEvent.PointerCoords[] pointerCoords = new MotionEvent.PointerCoords[PointersState.MAX_POINTERS];
+    // coordinates of the historical samples of a batched motion
+    private final MotionEvent.PointerCoords[] historyCoords = new MotionEvent.PointerCoords[PointersState.MAX_POINTERS];
+    private final int[] motionPointerIndexes = new int[PointersState.MAX_POINTERS];
+    // a scroll is a mouse event, independent of the touch pointers (it may be injected during a gesture)
+    private final MotionEvent.PointerProperties[] scrollProperties = {new MotionEvent.PointerProperties()};
+    private final MotionEvent.PointerCoords[] scrollCoords = {new MotionEvent.PointerCoords()};
     private long lastMouseDown;
 
     private final PointersState pointersState = new PointersState();
+    private final KeyCharacterMap charMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
 
     private float then;
     private boolean hit = false;
     private boolean proximity = false;
 
-    public EventController(Device device, DroidConnection connection) {
+    public EventController(Device device, DroidConnection connection, ScreenEncoder screenEncoder) {
         this.device = device;
         this.connection = connection;
+        this.screenEncoder = screenEncoder;
         initPointers();
     }
 
-    private void setPointerCoords(Point point) {
-        MotionEvent.PointerCoords coords = pointerCoords[0];
-        coords.x = point.getX();
-        coords.y = point.getY();
-    }
-
-    private void setScroll(int hScroll, int vScroll) {
-        MotionEvent.PointerCoords coords = pointerCoords[0];
-        coords.setAxisValue(MotionEvent.AXIS_HSCROLL, hScroll);
-        coords.setAxisValue(MotionEvent.AXIS_VSCROLL, vScroll);
-    }
-
     private void initPointers() {
         for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
             MotionEvent.PointerProperties props = new MotionEvent.PointerProperties();
@@ -60,7 +59,11 @@ public class EventController {
 
             pointerProperties[i] = props;
             pointerCoords[i] = coords;
+            historyCoords[i] = new MotionEvent.PointerCoords();
         }
+        MotionEvent.PointerProperties props = scrollProperties[0];
+        props.id = 0;
+        props.toolType = MotionEvent.TOOL_TYPE_MOUSE;
     }
 
     public void control() throws IOException {
@@ -68,65 +71,122 @@ public class EventController {
         turnScreenOn();
 
         while (true) {
-            //           handleEvent();
-            int[] buffer = connection.NewreceiveControlEvent();
-            if (buffer != null) {
-                long now = SystemClock.uptimeMillis();
-                if (buffer[2] == 0 && buffer[3] == 0) {
-                    if (buffer[0] == 28) {
-                        proximity = true;           // Proximity event
-                    } else if (buffer[0] == 29) {
-                        proximity = false;
-                    } else {
-                        injectKeycode(buffer[0]);
-                    }
+            ControlMessage msg = connection.receiveControlMessage();
+            handleMessage(msg);
+        }
+    }
+
+    private void handleMessage(ControlMessage msg) {
+        if (isInteraction(msg.getType())) {
+            screenEncoder.onInteraction();
+        }
+        switch (msg.getType()) {
+            case ControlMessage.TYPE_TOUCH:
+                handleTouch(msg);
+                break;
+            case ControlMessage.TYPE_KEY:
+                injectKeyEvent(msg.getAction(), msg.getKeycode(), msg.getRepeat(), msg.getMetaState());
+                break;
+            case ControlMessage.TYPE_TEXT:
+                injectText(msg.getText());
+                break;
+            case ControlMessage.TYPE_SCROLL:
+                injectScroll(device.NewgetPhysicalPoint(msg.getPoint()), msg.getHScroll(), msg.getVScroll(), msg.getButtons());
+                break;
+            case ControlMessage.TYPE_COMMAND:
+                handleCommand(msg.getCommand());
+                break;
+            case ControlMessage.TYPE_MOTION:
+                injectMotion(msg);
+                break;
+            case ControlMessage.TYPE_VIEWPORT:
+                handleViewport(msg.getWidth(), msg.getHeight(), msg.getMaxFps());
+                break;
+            case ControlMessage.TYPE_CROP:
+                handleCrop(msg.getCrop());
+                break;
+            default:
+                // unreachable, unknown types are skipped by the reader
+                break;
+        }
+    }
+
+    private static boolean isInteraction(int type) {
+        switch (type) {
+            case ControlMessage.TYPE_TOUCH:
+            case ControlMessage.TYPE_KEY:
+            case ControlMessage.TYPE_TEXT:
+            case ControlMessage.TYPE_SCROLL:
+            case ControlMessage.TYPE_MOTION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void handleViewport(int width, int height, int maxFps) {
+        boolean sizeChanged = device.setViewport(width, height);
+        boolean fpsChanged = screenEncoder.setMaxFps(maxFps);
+        if (sizeChanged || fpsChanged) {
+            Ln.i("Client viewport " + width + "x" + height + "@" + maxFps + "fps, video size: " + device.getScreenInfo().getVideoSize());
+            // the session goes on, only the encoder is restarted (the client receives a new codec configuration)
+            screenEncoder.reconfigure();
+        }
+    }
+
+    private void handleCrop(Rect crop) {
+        if (device.setCrop(crop)) {
+            Ln.i("Crop " + (crop != null ? crop.toShortString() : "disabled") + ", video size: " + device.getScreenInfo().getVideoSize());
+            screenEncoder.reconfigure();
+        }
+    }
+
+    private void handleCommand(int command) {
+        switch (command) {
+            case ControlMessage.COMMAND_PROXIMITY_NEAR:
+                proximity = true;
+                break;
+            case ControlMessage.COMMAND_PROXIMITY_FAR:
+                proximity = false;
+                break;
+            case ControlMessage.COMMAND_REQUEST_KEY_FRAME:
+                screenEncoder.requestKeyFrame();
+                break;
+            default:
+                Ln.w("Unknown control command: " + command);
+                break;
+        }
+    }
+
+    private void handleTouch(ControlMessage msg) {
+        long now = SystemClock.uptimeMillis();
+        int action = msg.getAction();
+        if (action == MotionEvent.ACTION_UP && (!device.isScreenOn() || proximity)) {
+            // double tap while the screen is off (or the client proximity sensor is covered): press power
+            if (hit) {
+                if (now - then < 250) {
+                    then = 0;
+                    hit = false;
+                    injectKeycode(KeyEvent.KEYCODE_POWER);
                 } else {
-                    int action = buffer[0];
-                    if (action == MotionEvent.ACTION_UP && (!device.isScreenOn() || proximity)) {
-                        if (hit) {
-                            if (now - then < 250) {
-                                then = 0;
-                                hit = false;
-                                injectKeycode(KeyEvent.KEYCODE_POWER);
-                            } else {
-                                then = now;
-                            }
-                        } else {
-                            hit = true;
-                            then = now;
-                        }
-
-                    } else {
-//                        if (action == MotionEvent.ACTION_DOWN) {
-//                            lastMouseDown = now;
-//                        }
-//                        int button = buffer[1];
-//                        int X = buffer[2];
-//                        int Y = buffer[3];
-////                        new android.graphics.Point(point.getX(), point.getY())
-//                        Point point = new Point(X, Y);
-//                        Point newpoint = device.NewgetPhysicalPoint(point);
-//                        setPointerCoords(newpoint);
-//                        MotionEvent event = MotionEvent.obtain(lastMouseDown, now, action, 1, pointerProperties, pointerCoords, 0, button, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
-//                        injectEvent(event);
-
-                        // 为支持多点触控，新增 buffer[4] 这个字节
-                        Point point = new Point(buffer[2], buffer[3]);
-                        Point newpoint = device.NewgetPhysicalPoint(point);
-                        injectTouch(action, buffer[4], newpoint, buffer[1]);
-                    }
+                    then = now;
                 }
+            } else {
+                hit = true;
+                then = now;
             }
+        } else {
+            Point newpoint = device.NewgetPhysicalPoint(msg.getPoint());
+            injectTouch(action, msg.getPointerId(), newpoint, msg.getPressure(), msg.getButtons());
         }
     }
 
-
     /**
      * 为尽快支持多点触控，暂时去除原版 scrcpy 中的鼠标按下功能，可能导致鼠标控制出现问题
      * TODO： 后续需要参照原版 scrcpy 实现鼠标操作
      * 详情参考：scrcpy/server/src/main/java/com/genymobile/scrcpy/control/Controller.java
      */
-    private boolean injectTouch(int action, long pointerId, Point point, int button) {
+    private boolean injectTouch(int action, long pointerId, Point point, float pressure, int button) {
         long now = SystemClock.uptimeMillis();
 
         int pointerIndex = pointersState.getPointerIndex(pointerId);
@@ -136,8 +196,7 @@ public class EventController {
         }
         Pointer pointer = pointersState.get(pointerIndex);
         pointer.setPoint(point);
-//        pointer.setPressure(pressure);
-        pointer.setPressure(1.0f);
+        pointer.setPressure(pressure);
 
         int source;
 //        boolean activeSecondaryButtons = ((actionButton | buttons) & ~MotionEvent.BUTTON_PRIMARY) != 0;
@@ -246,6 +305,90 @@ public class EventController {
         return injectEvent(event);
     }
 
+    /**
+     * Inject a move of all the pointers as a single {@link MotionEvent}, with its historical samples (a single binder call, whatever the
+     * number of fingers).
+     */
+    private boolean injectMotion(ControlMessage msg) {
+        long now = SystemClock.uptimeMillis();
+        int pointerCount = msg.getPointerCount();
+        int last = msg.getSampleCount() - 1;
+
+        for (int i = 0; i < pointerCount; ++i) {
+            int pointerIndex = pointersState.getPointerIndex(msg.getPointerId(i));
+            if (pointerIndex == -1) {
+                Ln.w("Too many pointers for motion event");
+                return false;
+            }
+            Pointer pointer = pointersState.get(pointerIndex);
+            pointer.setPoint(device.NewgetPhysicalPoint(msg.getSamplePoint(last, i)));
+            pointer.setPressure(msg.getSamplePressure(last, i));
+            pointer.setUp(false);
+            pointerProperties[pointerIndex].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            motionPointerIndexes[i] = pointerIndex;
+        }
+        // no pointer is up, so the indexes are not changed by the update
+        int count = pointersState.update(pointerProperties, pointerCoords);
+
+        MotionEvent event = null;
+        long eventTime = 0;
+        for (int sample = 0; sample <= last; ++sample) {
+            MotionEvent.PointerCoords[] coords;
+            if (sample == last) {
+                coords = pointerCoords;
+            } else {
+                // the pointers absent from the message keep their current position
+                for (int j = 0; j < count; ++j) {
+                    historyCoords[j].copyFrom(pointerCoords[j]);
+                }
+                for (int i = 0; i < pointerCount; ++i) {
+                    MotionEvent.PointerCoords c = historyCoords[motionPointerIndexes[i]];
+                    Point point = device.NewgetPhysicalPoint(msg.getSamplePoint(sample, i));
+                    c.x = point.getX();
+                    c.y = point.getY();
+                    c.pressure = msg.getSamplePressure(sample, i);
+                }
+                coords = historyCoords;
+            }
+            // event times must not go backwards
+            eventTime = Math.max(eventTime, now - msg.getSampleTimeOffset(sample));
+            if (event == null) {
+                event = MotionEvent.obtain(lastMouseDown, eventTime, MotionEvent.ACTION_MOVE, count, pointerProperties, coords, 0,
+                        msg.getButtons(), 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+            } else {
+                event.addBatch(eventTime, coords, 0);
+            }
+        }
+        return injectEvent(event);
+    }
+
+    private boolean injectScroll(Point point, float hScroll, float vScroll, int buttons) {
+        long now = SystemClock.uptimeMillis();
+        MotionEvent.PointerCoords coords = scrollCoords[0];
+        coords.x = point.getX();
+        coords.y = point.getY();
+        coords.setAxisValue(MotionEvent.AXIS_HSCROLL, hScroll);
+        coords.setAxisValue(MotionEvent.AXIS_VSCROLL, vScroll);
+
+        MotionEvent event = MotionEvent.obtain(lastMouseDown, now, MotionEvent.ACTION_SCROLL, 1, scrollProperties, scrollCoords, 0, buttons, 1f,
+                1f, 0, 0, InputDevice.SOURCE_MOUSE, 0);
+        return injectEvent(event);
+    }
+
+    private boolean injectText(String text) {
+        KeyEvent[] events = charMap.getEvents(text.toCharArray());
+        if (events == null) {
+            Ln.w("Could not inject text: " + text);
+            return false;
+        }
+        for (KeyEvent event : events) {
+            if (!injectEvent(event)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean injectKeyEvent(int action, int keyCode, int repeat, int metaState) {
         long now = SystemClock.uptimeMillis();
         KeyEvent event = new KeyEvent(now, now, action, keyCode, repeat, metaState, KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0,
@@ -0,0 +1,81 @@
+package org.server.scrcpy;
+
+/**
+ * Encoding policy driven by the user interactions: full quality while the device is controlled, low bitrate and frame rate when idle.
+ * <p/>
+ * Mirrored screens are often idle dashboards, which still render animations (clocks, charts) at the display refresh rate. Once no
+ * interaction (touch, key, scroll, text) has been received for the idle timeout, the bitrate is capped (and the frame rate, if requested).
+ * The next interaction restores the normal settings immediately.
+ * <p/>
+ * The idle state is evaluated on each encoded frame: if the screen content does not change, no frames are produced anyway.
+ * <p/>
+ * This class does not depend on Android, so that it can be driven by a simulated clock on the JVM.
+ */
+public final class InteractionPolicy {
+
+    private final long idleTimeoutMs;
+    private final int idleBitRate;
+    // 0 for no frame rate cap when idle
+    private final int idleMaxFps;
+
+    private long lastInteractionTime;
+    private boolean idle;
+
+    /**
+     * @param now the current time in milliseconds, the session starts as active
+     */
+    public InteractionPolicy(long idleTimeoutMs, int idleBitRate, int idleMaxFps, long now) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.idleBitRate = idleBitRate;
+        this.idleMaxFps = idleMaxFps;
+        lastInteractionTime = now;
+    }
+
+    /**
+     * @return {@code true} if the session was idle (the normal settings must be restored)
+     */
+    public synchronized boolean onInteraction(long now) {
+        lastInteractionTime = now;
+        if (idle) {
+            idle = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the session has just become idle (the idle settings must be applied)
+     */
+    public synchronized boolean update(long now) {
+        if (!idle && now - lastInteractionTime >= idleTimeoutMs) {
+            idle = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    public synchronized int capBitRate(int bitRate) {
+        return idle ? Math.min(bitRate, idleBitRate) : bitRate;
+    }
+
+    public synchronized int capFps(int fps) {
+        return idle && idleMaxFps > 0 ? Math.min(fps, idleMaxFps) : fps;
+    }
+
+    /**
+     * @return {@code true} if the frame rate depends on the idle state (the cap of the running encoder is updated on each transition)
+     */
+    public boolean capsFps() {
+        return idleMaxFps > 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (idle ? "idle" : "active") + " (timeout " + idleTimeoutMs + " ms, idle bitrate " + idleBitRate + ", idle fps "
+                + (idleMaxFps > 0 ? idleMaxFps : "unlimited") + ")";
+    }
+}
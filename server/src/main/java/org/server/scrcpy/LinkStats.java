@@ -0,0 +1,30 @@
+package org.server.scrcpy;
+
+/**
+ * Counters of the video link, as observed by the {@link PacketMuxer} writer.
+ * <p/>
+ * Counters are cumulative since the muxer was created: the consumer computes the deltas between two reads. They are read directly rather
+ * than through a snapshot object, so that polling them does not allocate anything.
+ */
+public interface LinkStats {
+
+    /**
+     * @return total time spent blocked in socket writes (the socket send buffer was full), including the write in progress
+     */
+    long getWriteStallNanos();
+
+    /**
+     * @return total number of bytes written to the socket
+     */
+    long getWrittenBytes();
+
+    /**
+     * @return number of bytes waiting in the muxer queue (not yet written to the socket)
+     */
+    long getQueuedBytes();
+
+    /**
+     * @return total number of video packets dropped because the link could not keep up
+     */
+    long getDroppedPackets();
+}
@@ -1,9 +1,65 @@
 package org.server.scrcpy;
 
+import android.graphics.Rect;
+
+import org.server.scrcpy.audio.AudioConfig;
+import org.server.scrcpy.audio.AudioSource;
+
+import java.util.Collections;
+import java.util.List;
+
 public class Options {
+    public static final int DEFAULT_IDLE_MAX_FPS = 10;
+    public static final int DEFAULT_AUDIO_BIT_RATE = 128000;
+
     private int maxSize;
     private int bitRate;
     private boolean tunnelForward;
+    private boolean multiSocket;
+    // adaptive bitrate: the bitrate is adjusted within [bitRateMin, bitRateMax] according to the link congestion (opt-in, like the other
+    // encoder policies: without it, the requested bitrate is kept whatever the link)
+    private boolean adaptiveBitRate;
+    private int bitRateMin;
+    private int bitRateMax;
+    // maximum age of the pending video frames before they are dropped
+    private long videoLatencyBudget = PacketMuxer.DEFAULT_VIDEO_LATENCY_BUDGET_MS;
+    // if > 0, the session survives a client disconnection during this duration (ms), so that the client can resume it
+    private long resumeGrace;
+    // tune the encoder for latency (intra refresh instead of periodic key frames, CBR, realtime priority)
+    private boolean lowLatency;
+    // the video codecs the client can decode, by order of preference
+    private List<VideoCodec> videoCodecs = Collections.singletonList(VideoCodec.H264);
+    // if not null, use this encoder instead of the one selected automatically
+    private String videoEncoder;
+    // if false, no audio is captured nor encoded at all
+    private boolean audio = true;
+    private AudioSource audioSource = AudioSource.OUTPUT;
+    private int audioSampleRate = AudioConfig.DEFAULT_SAMPLE_RATE;
+    private int audioChannels = AudioConfig.DEFAULT_CHANNELS;
+    private int audioBitRate = DEFAULT_AUDIO_BIT_RATE;
+    // the audio codecs the client can decode, by order of preference
+    private List<AudioCodec> audioCodecs = Collections.singletonList(AudioCodec.AAC);
+    // duration of the audio blocks read from the capture (ms), 0 for the largest blocks (lowest overhead, highest latency)
+    private int audioFrameMs;
+    // if > 0, stop sending audio frames after this duration (ms) of silence (discontinuous transmission)
+    private long audioDtxHold;
+    // broadcast mode: if > 0, up to maxViewers additional clients may watch the stream (without control) on viewerPort
+    private int maxViewers;
+    private int viewerPort = Broadcaster.DEFAULT_VIEWER_PORT;
+    private PacketMuxer.SlowConsumerPolicy viewerPolicy = PacketMuxer.SlowConsumerPolicy.SKIP_TO_KEY_FRAME;
+    // stream only this rectangle of the screen (in the natural orientation of the device), null for the whole screen
+    private Rect crop;
+    // if > 0, lower the bitrate (and the frame rate) after this duration (ms) without user interaction
+    private long idleTimeout;
+    private int idleBitRate;
+    private int idleMaxFps = DEFAULT_IDLE_MAX_FPS;
+    // the display to stream (and to inject the events into)
+    private int displayId;
+    // if not null, create a new display of this size (instead of streaming an existing one), with this density (0 for the default)
+    private Size newDisplay;
+    private int newDisplayDpi;
+    // if not null, the package of the app to launch on the streamed display
+    private String startApp;
 
     public int getMaxSize() {
         return maxSize;
@@ -28,4 +84,234 @@ public class Options {
     public void setTunnelForward(boolean tunnelForward) {
         this.tunnelForward = tunnelForward;
     }
+
+    public boolean isMultiSocket() {
+        return multiSocket;
+    }
+
+    public void setMultiSocket(boolean multiSocket) {
+        this.multiSocket = multiSocket;
+    }
+
+    public boolean isAdaptiveBitRate() {
+        return adaptiveBitRate;
+    }
+
+    public void setAdaptiveBitRate(boolean adaptiveBitRate) {
+        this.adaptiveBitRate = adaptiveBitRate;
+    }
+
+    /**
+     * @return the minimum bitrate, or 0 if not set
+     */
+    public int getBitRateMin() {
+        return bitRateMin;
+    }
+
+    public void setBitRateMin(int bitRateMin) {
+        this.bitRateMin = bitRateMin;
+    }
+
+    /**
+     * @return the maximum bitrate, or 0 if not set
+     */
+    public int getBitRateMax() {
+        return bitRateMax;
+    }
+
+    public void setBitRateMax(int bitRateMax) {
+        this.bitRateMax = bitRateMax;
+    }
+
+    public long getVideoLatencyBudget() {
+        return videoLatencyBudget;
+    }
+
+    public void setVideoLatencyBudget(long videoLatencyBudget) {
+        this.videoLatencyBudget = videoLatencyBudget;
+    }
+
+    public long getResumeGrace() {
+        return resumeGrace;
+    }
+
+    public void setResumeGrace(long resumeGrace) {
+        this.resumeGrace = resumeGrace;
+    }
+
+    public int getMaxViewers() {
+        return maxViewers;
+    }
+
+    public void setMaxViewers(int maxViewers) {
+        this.maxViewers = maxViewers;
+    }
+
+    public int getViewerPort() {
+        return viewerPort;
+    }
+
+    public void setViewerPort(int viewerPort) {
+        this.viewerPort = viewerPort;
+    }
+
+    public PacketMuxer.SlowConsumerPolicy getViewerPolicy() {
+        return viewerPolicy;
+    }
+
+    public void setViewerPolicy(PacketMuxer.SlowConsumerPolicy viewerPolicy) {
+        this.viewerPolicy = viewerPolicy;
+    }
+
+    public List<VideoCodec> getVideoCodecs() {
+        return videoCodecs;
+    }
+
+    public void setVideoCodecs(List<VideoCodec> videoCodecs) {
+        this.videoCodecs = videoCodecs;
+    }
+
+    public String getVideoEncoder() {
+        return videoEncoder;
+    }
+
+    public void setVideoEncoder(String videoEncoder) {
+        this.videoEncoder = videoEncoder;
+    }
+
+    public boolean isAudio() {
+        return audio;
+    }
+
+    public void setAudio(boolean audio) {
+        this.audio = audio;
+    }
+
+    public AudioSource getAudioSource() {
+        return audioSource;
+    }
+
+    public void setAudioSource(AudioSource audioSource) {
+        this.audioSource = audioSource;
+    }
+
+    public int getAudioSampleRate() {
+        return audioSampleRate;
+    }
+
+    public void setAudioSampleRate(int audioSampleRate) {
+        this.audioSampleRate = audioSampleRate;
+    }
+
+    public int getAudioChannels() {
+        return audioChannels;
+    }
+
+    public void setAudioChannels(int audioChannels) {
+        this.audioChannels = audioChannels;
+    }
+
+    public int getAudioBitRate() {
+        return audioBitRate;
+    }
+
+    public void setAudioBitRate(int audioBitRate) {
+        this.audioBitRate = audioBitRate;
+    }
+
+    public List<AudioCodec> getAudioCodecs() {
+        return audioCodecs;
+    }
+
+    public void setAudioCodecs(List<AudioCodec> audioCodecs) {
+        this.audioCodecs = audioCodecs;
+    }
+
+    public int getAudioFrameMs() {
+        return audioFrameMs;
+    }
+
+    public void setAudioFrameMs(int audioFrameMs) {
+        this.audioFrameMs = audioFrameMs;
+    }
+
+    public long getAudioDtxHold() {
+        return audioDtxHold;
+    }
+
+    public void setAudioDtxHold(long audioDtxHold) {
+        this.audioDtxHold = audioDtxHold;
+    }
+
+    public Rect getCrop() {
+        return crop;
+    }
+
+    public void setCrop(Rect crop) {
+        this.crop = crop;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getIdleBitRate() {
+        return idleBitRate;
+    }
+
+    public void setIdleBitRate(int idleBitRate) {
+        this.idleBitRate = idleBitRate;
+    }
+
+    public int getIdleMaxFps() {
+        return idleMaxFps;
+    }
+
+    public void setIdleMaxFps(int idleMaxFps) {
+        this.idleMaxFps = idleMaxFps;
+    }
+
+    public int getDisplayId() {
+        return displayId;
+    }
+
+    public void setDisplayId(int displayId) {
+        this.displayId = displayId;
+    }
+
+    public Size getNewDisplay() {
+        return newDisplay;
+    }
+
+    public void setNewDisplay(Size newDisplay) {
+        this.newDisplay = newDisplay;
+    }
+
+    public int getNewDisplayDpi() {
+        return newDisplayDpi;
+    }
+
+    public void setNewDisplayDpi(int newDisplayDpi) {
+        this.newDisplayDpi = newDisplayDpi;
+    }
+
+    public String getStartApp() {
+        return startApp;
+    }
+
+    public void setStartApp(String startApp) {
+        this.startApp = startApp;
+    }
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
 }
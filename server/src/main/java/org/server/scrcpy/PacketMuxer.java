@@ -0,0 +1,866 @@
+package org.server.scrcpy;
+
+import org.server.scrcpy.model.AudioPacket;
+import org.server.scrcpy.model.MediaPacket;
+import org.server.scrcpy.model.PacketBuffer;
+import org.server.scrcpy.model.VideoPacket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer of the media socket.
+ * <p/>
+ * Video and audio encoders run on their own threads, so they must never write to the connection directly (the bytes of two packets could be
+ * interleaved). Instead, they enqueue their packets into bounded per-stream queues, and a dedicated thread drains them to the output channel,
+ * audio first (audio packets are small and latency sensitive, a large video frame must not delay them).
+ * <p/>
+ * If video and audio use separate channels (multi-socket session), each channel has its own writer thread, so that audio never waits for a
+ * video frame being written.
+ * <p/>
+ * If the pending video frames exceed a latency budget (the link cannot keep up), they are dropped, and a sync frame is requested to the
+ * encoder through the {@link SyncFrameListener}: the client always receives a valid reference chain, and recovers on the next frame
+ * (instead of displaying a corrupted picture until the next periodic key frame).
+ * <p/>
+ * A key frame is never dropped this way, since it is the frame which recovers the stream: only the frames before the newest pending key
+ * frame are dropped, and the frames queued behind a key frame being written get their full budget once it is written. While a key frame is
+ * pending or being written, the sync frame requests are deferred: on a link where a key frame takes longer than the budget to send,
+ * requesting another one would only stall the queue again.
+ * <p/>
+ * In a resumable session, a broken connection does not stop the muxer: the packets are discarded (the codec configuration is kept) until
+ * new channels are attached by {@link #reattach(GatheringByteChannel, GatheringByteChannel)}, so that the encoders keep running.
+ * <p/>
+ * In broadcast mode, viewer muxers are attached by {@link #addViewer(PacketMuxer, ConnectionListener)}: each packet is also offered to
+ * every viewer, which has its own queues and writer thread, so that a slow viewer never delays the others (nor the encoder). A viewer which
+ * cannot keep up either skips frames until the next key frame, or is disconnected, according to its {@link SlowConsumerPolicy}.
+ * <p/>
+ * Packets are copied once from the codec output buffer into a pooled {@link PacketBuffer} (so that the codec buffer can be released
+ * immediately), then written with a gathering write: no heap allocation per frame in steady state.
+ */
+public final class PacketMuxer implements Closeable {
+
+    private static final int VIDEO_QUEUE_CAPACITY = 16;
+    private static final int AUDIO_QUEUE_CAPACITY = 64;
+
+    // one more buffer than the queue capacity: the one being written
+    private static final int VIDEO_POOL_SIZE = VIDEO_QUEUE_CAPACITY + 1;
+    private static final int AUDIO_POOL_SIZE = AUDIO_QUEUE_CAPACITY + 1;
+
+    private static final int AUDIO_BUFFER_CAPACITY = 4 * 1024;
+
+    // maximum time the video encoder may be blocked by a full queue before the packet is dropped
+    private static final long VIDEO_OFFER_TIMEOUT_MS = 50;
+
+    public static final long DEFAULT_VIDEO_LATENCY_BUDGET_MS = 200;
+
+    // while waiting for a key frame, request it again if it does not come
+    private static final long SYNC_FRAME_RETRY_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * What to do when a connection cannot keep up with the video stream.
+     */
+    public enum SlowConsumerPolicy {
+        // drop the frames until the next key frame (a sync frame is requested)
+        SKIP_TO_KEY_FRAME,
+        // close the connection (the next offer fails)
+        DISCONNECT,
+    }
+
+    public interface SyncFrameListener {
+        /**
+         * Called (on the encoder thread) when video frames have been dropped, so that the encoder produces a key frame as soon as possible.
+         */
+        void onSyncFrameRequested();
+    }
+
+    private final Lane videoLane;
+    private final Lane audioLane;
+    private final LinkStats videoLinkStats = new VideoLinkStats();
+
+    private final BlockingQueue<PacketBuffer> videoQueue = new ArrayBlockingQueue<>(VIDEO_POOL_SIZE);
+    private final BlockingQueue<PacketBuffer> audioQueue = new ArrayBlockingQueue<>(AUDIO_POOL_SIZE);
+
+    private final BlockingQueue<PacketBuffer> videoPool = new ArrayBlockingQueue<>(VIDEO_POOL_SIZE);
+    private final BlockingQueue<PacketBuffer> audioPool = new ArrayBlockingQueue<>(AUDIO_POOL_SIZE);
+
+    private boolean started;
+    private volatile boolean stopped;
+    private volatile IOException failure;
+
+    // once a video frame is dropped, the following frames reference a missing frame: skip them until the next key frame
+    private boolean waitKeyFrame;
+    private final AtomicLong droppedVideoPackets = new AtomicLong();
+    // the size of the packets in the video queue, so that the link stats do not iterate over the queue
+    private final AtomicLong queuedVideoBytes = new AtomicLong();
+    private long lastSyncFrameRequestNanos;
+    // a sync frame is needed, but not requested while a key frame is pending or being written
+    private boolean syncFrameDeferred;
+
+    // written by the video writer thread
+    private volatile boolean writingKeyFrame;
+    private volatile long keyFrameWrittenNanos = System.nanoTime();
+
+    private long videoLatencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_VIDEO_LATENCY_BUDGET_MS);
+    private long videoOfferTimeoutMs = VIDEO_OFFER_TIMEOUT_MS;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.SKIP_TO_KEY_FRAME;
+    private SyncFrameListener syncFrameListener;
+
+    // the last codec configurations, to be sent again on client request and to the viewers joining the broadcast
+    // (never passed as is: filling a packet moves the position of its source, so each sender uses its own duplicate())
+    private volatile ByteBuffer videoConfig;
+    // the timestamp of a configuration packet carries the video size (see VideoPacket)
+    private volatile long videoConfigTimestamp;
+    private volatile ByteBuffer audioConfig;
+
+    // broadcast mode: the muxers receiving a copy of every packet
+    private final List<PacketMuxer> viewers = new CopyOnWriteArrayList<>();
+    // held while a configuration packet is forwarded, so that a joining viewer never misses a configuration change
+    private final Object viewersLock = new Object();
+
+    // written once before start, then rewritten on each reattach
+    private byte[] header;
+
+    private boolean resumable;
+    // protects connected and generation, and is notified on reattach
+    private final Object connectionLock = new Object();
+    private volatile boolean connected = true;
+    // incremented on each reattach, so that a lane can tell whether a write failure concerns the current connection
+    private volatile int generation;
+    private ConnectionListener connectionListener;
+
+    public interface ConnectionListener {
+        /**
+         * Called (on a writer thread) when the connection is broken in a resumable session, or (on a dedicated thread) when a viewer is
+         * removed from the broadcast.
+         */
+        void onDisconnected(IOException e);
+    }
+
+    public PacketMuxer(GatheringByteChannel videoChannel, GatheringByteChannel audioChannel) {
+        videoLane = new Lane(videoChannel, "packet-muxer-video");
+        audioLane = audioChannel == videoChannel ? videoLane : new Lane(audioChannel, "packet-muxer-audio");
+        for (int i = 0; i < VIDEO_POOL_SIZE; ++i) {
+            videoPool.add(new PacketBuffer());
+        }
+        for (int i = 0; i < AUDIO_POOL_SIZE; ++i) {
+            audioPool.add(new PacketBuffer(AUDIO_BUFFER_CAPACITY));
+        }
+    }
+
+    /**
+     * Write raw bytes to the video connection, before any packet.
+     * <p/>
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void writeHeader(byte[] header) throws IOException {
+        if (started) {
+            throw new IllegalStateException("Header must be written before the muxer is started");
+        }
+        this.header = header;
+        writeFully(videoLane.channel, header);
+    }
+
+    private static void writeFully(GatheringByteChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Keep the muxer running when the connection is broken, waiting for {@link #reattach(GatheringByteChannel, GatheringByteChannel)}.
+     * <p/>
+     * Must be called before {@link #start()}.
+     */
+    public void setResumable(boolean resumable, ConnectionListener listener) {
+        this.resumable = resumable;
+        this.connectionListener = listener;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Resume the session on new channels: the header is written again, then the packets are sent to the new channels.
+     * <p/>
+     * The pending packets (produced for the previous connection) are discarded. The caller must close the previous channels, and request a
+     * key frame to the encoder (the codec configuration is sent again before it).
+     *
+     * @throws IOException if the header could not be written (the session is still disconnected)
+     */
+    public void reattach(GatheringByteChannel videoChannel, GatheringByteChannel audioChannel) throws IOException {
+        if ((videoChannel == audioChannel) != (videoLane == audioLane)) {
+            throw new IllegalArgumentException("The resumed connection must use the same socket mode");
+        }
+        synchronized (connectionLock) {
+            // no new packet until the new channels are ready
+            connected = false;
+            synchronized (videoQueue) {
+                clearVideo();
+                waitKeyFrame = false;
+                syncFrameDeferred = false;
+            }
+            clear(audioQueue, audioPool, audioLane);
+
+            if (header != null) {
+                writeFully(videoChannel, header);
+            }
+            videoLane.channel = videoChannel;
+            audioLane.channel = audioChannel;
+            ++generation;
+            connected = true;
+            connectionLock.notifyAll();
+        }
+    }
+
+    private static void clear(BlockingQueue<PacketBuffer> queue, BlockingQueue<PacketBuffer> pool, Lane lane) {
+        PacketBuffer dropped;
+        while ((dropped = queue.poll()) != null) {
+            lane.consumePermit();
+            pool.offer(dropped);
+        }
+    }
+
+    /**
+     * Set the maximum age of the oldest pending video frame before all the pending frames are dropped.
+     * <p/>
+     * Must be called before {@link #start()}.
+     */
+    public void setVideoLatencyBudget(long budgetMs) {
+        videoLatencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+    }
+
+    public void setSyncFrameListener(SyncFrameListener listener) {
+        syncFrameListener = listener;
+    }
+
+    /**
+     * Set the maximum duration the video encoder may be blocked by a full queue (0 to never block, e.g. for a viewer).
+     * <p/>
+     * Must be called before {@link #start()}.
+     */
+    public void setVideoOfferTimeout(long timeoutMs) {
+        videoOfferTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Must be called before {@link #start()}.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        slowConsumerPolicy = policy;
+    }
+
+    /**
+     * Broadcast the stream to an additional connection.
+     * <p/>
+     * The viewer muxer (not started) receives the header, then the current codec configurations, and skips the video frames until the next
+     * key frame: the caller should request one to the encoder, so that the viewer does not wait for the next periodic key frame.
+     *
+     * @param listener called when the viewer is removed (because its connection is broken or it is too slow), so that its connection is
+     *                 closed
+     * @throws IOException if the stream has not started yet or the header could not be written to the viewer
+     */
+    public void addViewer(PacketMuxer viewer, ConnectionListener listener) throws IOException {
+        byte[] h;
+        synchronized (this) {
+            h = header;
+        }
+        if (h == null) {
+            throw new IOException("The stream is not started yet");
+        }
+        viewer.connectionListener = listener;
+        viewer.writeHeader(h);
+        viewer.start();
+        synchronized (viewersLock) {
+            ByteBuffer config = videoConfig;
+            if (config != null) {
+                viewer.offerVideo(VideoPacket.Flag.CONFIG, videoConfigTimestamp, config.duplicate());
+            }
+            config = audioConfig;
+            if (config != null) {
+                viewer.offerAudio(AudioPacket.Flag.CONFIG, 0, config.duplicate());
+            }
+            synchronized (viewer.videoQueue) {
+                // the frames produced before the next key frame reference frames the viewer never received
+                viewer.waitKeyFrame = true;
+            }
+            viewers.add(viewer);
+        }
+    }
+
+    /**
+     * Stop broadcasting to a viewer. Does nothing if the viewer has already been removed.
+     * <p/>
+     * The viewer is only marked as failed and removed from the list: its listener (which closes it, joining its writer thread, possibly
+     * blocked on a slow connection) is called on a dedicated thread, so that the caller (typically the encoder thread, possibly while a
+     * configuration is forwarded to the other viewers) is never blocked.
+     */
+    public void removeViewer(PacketMuxer viewer, final IOException cause) {
+        if (viewers.remove(viewer)) {
+            viewer.failure = cause;
+            final ConnectionListener listener = viewer.connectionListener;
+            if (listener != null) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDisconnected(cause);
+                    }
+                }, "viewer-teardown").start();
+            }
+        }
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    private void forwardVideo(VideoPacket.Flag flag, long presentationTimeUs, ByteBuffer data) {
+        if (viewers.isEmpty()) {
+            // do not allocate an iterator for each packet
+            return;
+        }
+        for (PacketMuxer viewer : viewers) {
+            try {
+                viewer.offerVideo(flag, presentationTimeUs, data);
+            } catch (IOException e) {
+                removeViewer(viewer, e);
+            }
+        }
+    }
+
+    private void forwardAudio(AudioPacket.Flag flag, long presentationTimeUs, ByteBuffer data) {
+        if (viewers.isEmpty()) {
+            return;
+        }
+        for (PacketMuxer viewer : viewers) {
+            try {
+                viewer.offerAudio(flag, presentationTimeUs, data);
+            } catch (IOException e) {
+                removeViewer(viewer, e);
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        videoLane.start();
+        if (audioLane != videoLane) {
+            audioLane.start();
+        }
+    }
+
+    /**
+     * Enqueue a video packet, copying the remaining bytes of {@code data}.
+     * <p/>
+     * If the connection cannot keep up, the caller is blocked for a bounded duration, then the packet is dropped (the encoder must never be
+     * stalled by a slow link).
+     *
+     * @return {@code true} if the packet has been enqueued
+     * @throws IOException if the connection is broken
+     */
+    public boolean offerVideo(VideoPacket.Flag flag, long presentationTimeUs, ByteBuffer data) throws IOException {
+        checkState();
+        if (flag == VideoPacket.Flag.CONFIG || flag == VideoPacket.Flag.RECONFIGURE) {
+            synchronized (viewersLock) {
+                // compared by content: a resent configuration is a duplicate of the cached one, it is not copied again
+                if (flag == VideoPacket.Flag.CONFIG && (!data.equals(videoConfig) || presentationTimeUs != videoConfigTimestamp)) {
+                    videoConfig = copy(data);
+                    videoConfigTimestamp = presentationTimeUs;
+                }
+                forwardVideo(flag, presentationTimeUs, data);
+            }
+            if (!connected) {
+                // sent again on reattach
+                return false;
+            }
+            // the codec configuration (or its announcement) must never be lost, and pending frames are useless without it
+            synchronized (videoQueue) {
+                clearVideo();
+                waitKeyFrame = false;
+                syncFrameDeferred = false;
+            }
+            PacketBuffer buffer = takeUninterruptibly(videoPool);
+            buffer.fill(MediaPacket.Type.VIDEO, flag.getFlag(), presentationTimeUs, data);
+            enqueueVideo(buffer);
+            return true;
+        }
+
+        forwardVideo(flag, presentationTimeUs, data);
+        if (!connected) {
+            return false;
+        }
+
+        boolean keyFrame = flag == VideoPacket.Flag.KEY_FRAME;
+        synchronized (videoQueue) {
+            if (isVideoLate()) {
+                // the link cannot keep up: the pending frames would only increase the latency
+                PacketBuffer pendingKeyFrame = findNewestPendingKeyFrame();
+                int count = dropPendingVideoFrames(pendingKeyFrame);
+                if (count > 0) {
+                    Ln.w("Video latency budget exceeded, " + count + " pending frames dropped");
+                    // the frames from the pending key frame are kept, so the reference chain is still valid
+                    if (!keyFrame && pendingKeyFrame == null) {
+                        startWaitingKeyFrame();
+                    }
+                }
+            }
+            if (waitKeyFrame && !keyFrame) {
+                droppedVideoPackets.incrementAndGet();
+                if ((syncFrameDeferred || System.nanoTime() - lastSyncFrameRequestNanos > SYNC_FRAME_RETRY_INTERVAL_NS)
+                        && !isKeyFrameInFlight()) {
+                    requestSyncFrame();
+                }
+                return false;
+            }
+            waitKeyFrame = false;
+            syncFrameDeferred = false;
+        }
+
+        PacketBuffer buffer;
+        try {
+            buffer = videoPool.poll(videoOfferTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            buffer = null;
+        }
+        if (buffer == null) {
+            synchronized (videoQueue) {
+                startWaitingKeyFrame();
+            }
+            droppedVideoPackets.incrementAndGet();
+            Ln.w("Video queue full, dropping frames until the next key frame");
+            return false;
+        }
+        buffer.fill(MediaPacket.Type.VIDEO, flag.getFlag(), presentationTimeUs, data);
+        enqueueVideo(buffer);
+        return true;
+    }
+
+    /**
+     * Send the last codec configuration again (the pending video frames are dropped).
+     * <p/>
+     * Must be called from the video encoder thread, just before a key frame.
+     *
+     * @return {@code false} if no configuration has been sent yet
+     */
+    public boolean resendVideoConfig() throws IOException {
+        ByteBuffer config = videoConfig;
+        if (config == null) {
+            return false;
+        }
+        return offerVideo(VideoPacket.Flag.CONFIG, videoConfigTimestamp, config.duplicate());
+    }
+
+    // must be called with the videoQueue lock held
+    private boolean isVideoLate() {
+        if (writingKeyFrame) {
+            // the frames queued behind a key frame wait for it, they are not late
+            return false;
+        }
+        PacketBuffer oldest = videoQueue.peek();
+        if (oldest == null) {
+            return false;
+        }
+        long since = oldest.getQueueTimeNanos();
+        long keyFrameWritten = keyFrameWrittenNanos;
+        if (keyFrameWritten - since > 0) {
+            // the time spent waiting for a key frame to be written does not count
+            since = keyFrameWritten;
+        }
+        return System.nanoTime() - since > videoLatencyBudgetNanos;
+    }
+
+    // must be called with the videoQueue lock held
+    private PacketBuffer findNewestPendingKeyFrame() {
+        PacketBuffer keyFrame = null;
+        for (PacketBuffer buffer : videoQueue) {
+            if (buffer.getFlag() == VideoPacket.Flag.KEY_FRAME.getFlag()) {
+                keyFrame = buffer;
+            }
+        }
+        return keyFrame;
+    }
+
+    // must be called with the videoQueue lock held
+    private boolean isKeyFrameInFlight() {
+        return writingKeyFrame || findNewestPendingKeyFrame() != null;
+    }
+
+    /**
+     * Drop the pending frames, except the codec configurations, and the frames from {@code keyFrame} (if not null).
+     * <p/>
+     * Must be called with the videoQueue lock held.
+     */
+    private int dropPendingVideoFrames(PacketBuffer keyFrame) {
+        int count = 0;
+        Iterator<PacketBuffer> it = videoQueue.iterator();
+        while (it.hasNext()) {
+            PacketBuffer buffer = it.next();
+            if (buffer == keyFrame) {
+                // the following frames reference it
+                break;
+            }
+            // the codec configuration must never be lost
+            if (buffer.getFlag() != VideoPacket.Flag.CONFIG.getFlag() && buffer.getFlag() != VideoPacket.Flag.RECONFIGURE.getFlag()) {
+                it.remove();
+                queuedVideoBytes.addAndGet(-buffer.getSize());
+                videoLane.consumePermit();
+                videoPool.offer(buffer);
+                ++count;
+            }
+        }
+        droppedVideoPackets.addAndGet(count);
+        return count;
+    }
+
+    // must be called with the videoQueue lock held
+    private void clearVideo() {
+        PacketBuffer dropped;
+        while ((dropped = pollVideo()) != null) {
+            videoLane.consumePermit();
+            videoPool.offer(dropped);
+        }
+    }
+
+    // the video queue is only modified through these methods (and dropPendingVideoFrames()), which maintain queuedVideoBytes
+    private void enqueueVideo(PacketBuffer buffer) {
+        queuedVideoBytes.addAndGet(buffer.getSize());
+        enqueue(videoQueue, videoLane, buffer);
+    }
+
+    private PacketBuffer pollVideo() {
+        PacketBuffer buffer = videoQueue.poll();
+        if (buffer != null) {
+            queuedVideoBytes.addAndGet(-buffer.getSize());
+        }
+        return buffer;
+    }
+
+    // must be called with the videoQueue lock held
+    private void startWaitingKeyFrame() {
+        if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+            // the next offer will fail, so that the connection is closed
+            failure = new IOException("Connection too slow, disconnected");
+            return;
+        }
+        if (!waitKeyFrame) {
+            waitKeyFrame = true;
+            if (isKeyFrameInFlight()) {
+                // requested once it is written (on the next offered frame)
+                syncFrameDeferred = true;
+            } else {
+                requestSyncFrame();
+            }
+        }
+    }
+
+    private void requestSyncFrame() {
+        syncFrameDeferred = false;
+        lastSyncFrameRequestNanos = System.nanoTime();
+        SyncFrameListener listener = syncFrameListener;
+        if (listener != null) {
+            listener.onSyncFrameRequested();
+        }
+    }
+
+    /**
+     * Enqueue an audio packet, copying the remaining bytes of {@code data}.
+     * <p/>
+     * Never blocks: if the queue is full, the oldest pending audio frame is dropped.
+     *
+     * @return {@code true} if the packet has been enqueued
+     * @throws IOException if the connection is broken
+     */
+    public boolean offerAudio(AudioPacket.Flag flag, long presentationTimeUs, ByteBuffer data) throws IOException {
+        checkState();
+        if (flag == AudioPacket.Flag.CONFIG) {
+            synchronized (viewersLock) {
+                audioConfig = copy(data);
+                forwardAudio(flag, presentationTimeUs, data);
+            }
+        } else {
+            forwardAudio(flag, presentationTimeUs, data);
+        }
+        if (!connected) {
+            return false;
+        }
+        PacketBuffer buffer = audioPool.poll();
+        while (buffer == null) {
+            // reuse the oldest pending frame
+            buffer = audioQueue.poll();
+            if (buffer != null) {
+                audioLane.consumePermit();
+                Ln.w("Audio queue full, frame dropped");
+            } else {
+                buffer = audioPool.poll();
+            }
+        }
+        buffer.fill(MediaPacket.Type.AUDIO, flag.getFlag(), presentationTimeUs, data);
+        enqueue(audioQueue, audioLane, buffer);
+        return true;
+    }
+
+    /**
+     * Return the counters of the link carrying the video stream (always the same instance, the values are read live).
+     * <p/>
+     * May be called from any thread.
+     */
+    public LinkStats getVideoLinkStats() {
+        return videoLinkStats;
+    }
+
+    private final class VideoLinkStats implements LinkStats {
+        @Override
+        public long getWriteStallNanos() {
+            return videoLane.getWriteStallNanos();
+        }
+
+        @Override
+        public long getWrittenBytes() {
+            return videoLane.writtenBytes.get();
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return queuedVideoBytes.get();
+        }
+
+        @Override
+        public long getDroppedPackets() {
+            return droppedVideoPackets.get();
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    private static void enqueue(BlockingQueue<PacketBuffer> queue, Lane lane, PacketBuffer buffer) {
+        buffer.setQueueTimeNanos(System.nanoTime());
+        // cannot fail: the queue capacity is the pool size
+        queue.offer(buffer);
+        lane.pending.release();
+    }
+
+    private static PacketBuffer takeUninterruptibly(BlockingQueue<PacketBuffer> pool) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return pool.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkState() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+        if (stopped) {
+            throw new IOException("Packet muxer closed");
+        }
+    }
+
+    /**
+     * Stop the muxer: the encoders will receive {@code e} on their next packet.
+     */
+    public void close(IOException e) {
+        failure = e;
+        close();
+    }
+
+    @Override
+    public void close() {
+        for (PacketMuxer viewer : viewers) {
+            removeViewer(viewer, new IOException("Broadcast stopped"));
+        }
+        stopped = true;
+        synchronized (connectionLock) {
+            connectionLock.notifyAll();
+        }
+        videoLane.stop();
+        if (audioLane != videoLane) {
+            audioLane.stop();
+        }
+    }
+
+    /**
+     * A channel and the thread writing to it.
+     */
+    private final class Lane implements Runnable {
+
+        private volatile GatheringByteChannel channel;
+        private final String name;
+
+        // one permit per queued packet, so that the writer thread can wait on several queues at once
+        private final Semaphore pending = new Semaphore(0);
+
+        // time spent in blocking writes, i.e. waiting for the socket send buffer to drain (guarded by the lane)
+        private long writeStallNanos;
+        // System.nanoTime() when the write in progress started, 0 if none (guarded by the lane), so that a write blocked for a long time is
+        // reported before it completes
+        private long writeStartNanos;
+        private final AtomicLong writtenBytes = new AtomicLong();
+
+        private Thread thread;
+
+        private Lane(GatheringByteChannel channel, String name) {
+            this.channel = channel;
+            this.name = name;
+        }
+
+        private void start() {
+            thread = new Thread(this, name);
+            thread.start();
+        }
+
+        private void stop() {
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private synchronized long getWriteStallNanos() {
+            long stall = writeStallNanos;
+            if (writeStartNanos != 0) {
+                stall += System.nanoTime() - writeStartNanos;
+            }
+            return stall;
+        }
+
+        private synchronized void onWriteStarted(long now) {
+            writeStartNanos = now;
+        }
+
+        private synchronized void onWriteEnded(long now) {
+            writeStallNanos += now - writeStartNanos;
+            writeStartNanos = 0;
+        }
+
+        private void consumePermit() {
+            // the writer thread may already have acquired the permit of a removed packet, in that case it will just find the queue empty
+            pending.tryAcquire();
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                // this is expected on close
+                failure = e;
+                Ln.d("Packet muxer stopped: " + e.getMessage());
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        private void loop() throws IOException, InterruptedException {
+            while (!stopped) {
+                pending.acquire();
+                // audio has priority over video
+                if (audioLane == this) {
+                    PacketBuffer buffer = audioQueue.poll();
+                    if (buffer != null) {
+                        write(buffer, audioPool);
+                        continue;
+                    }
+                }
+                if (videoLane == this) {
+                    PacketBuffer buffer = pollVideo();
+                    if (buffer != null) {
+                        writeVideo(buffer);
+                    }
+                }
+            }
+        }
+
+        private void writeVideo(PacketBuffer buffer) throws IOException, InterruptedException {
+            if (buffer.getFlag() != VideoPacket.Flag.KEY_FRAME.getFlag()) {
+                write(buffer, videoPool);
+                return;
+            }
+            writingKeyFrame = true;
+            try {
+                write(buffer, videoPool);
+            } finally {
+                keyFrameWrittenNanos = System.nanoTime();
+                writingKeyFrame = false;
+            }
+        }
+
+        private void write(PacketBuffer buffer, BlockingQueue<PacketBuffer> pool) throws IOException, InterruptedException {
+            int gen = generation;
+            try {
+                onWriteStarted(System.nanoTime());
+                try {
+                    buffer.writeTo(channel);
+                } finally {
+                    onWriteEnded(System.nanoTime());
+                }
+                writtenBytes.addAndGet(buffer.getSize());
+            } catch (IOException e) {
+                if (!resumable || stopped) {
+                    throw e;
+                }
+                awaitReattach(gen, e);
+            } finally {
+                pool.offer(buffer);
+            }
+        }
+
+        private void awaitReattach(int gen, IOException e) throws InterruptedException {
+            boolean notify = false;
+            synchronized (connectionLock) {
+                if (gen == generation && connected) {
+                    // first failure of the current connection
+                    connected = false;
+                    notify = true;
+                }
+            }
+            if (notify) {
+                Ln.i("Client disconnected, waiting for the session to be resumed: " + e.getMessage());
+                ConnectionListener listener = connectionListener;
+                if (listener != null) {
+                    listener.onDisconnected(e);
+                }
+            }
+            synchronized (connectionLock) {
+                // if the connection has already been replaced, the write failed on the previous channel, just continue
+                while (gen == generation && !stopped) {
+                    connectionLock.wait();
+                }
+            }
+        }
+    }
+}
@@ -24,8 +24,9 @@ public class ScreenCapture {
     public void start(Surface surface) {
         ScreenInfo screenInfo = device.getScreenInfo();
 
-        Rect deviceRect = device.getScreenInfo().getDeviceSize().toRect();
-        Rect videoRect = device.getScreenInfo().getVideoSize().toRect();
+        // the projected area: the whole screen, or only the crop rectangle
+        Rect deviceRect = screenInfo.getContentRect();
+        Rect videoRect = screenInfo.getVideoSize().toRect();
 
 
         if (display != null) {
@@ -37,14 +38,37 @@ public class ScreenCapture {
             virtualDisplay = null;
         }
 
+        AppDisplay appDisplay = device.getAppDisplay();
+        if (appDisplay != null) {
+            // the display is kept across the encoder restarts, so that the app keeps running
+            appDisplay.setSurface(surface);
+            return;
+        }
+
+        if (screenInfo.isCropped()) {
+            // a mirror virtual display always shows the whole screen, only a projection can crop it
+            try {
+                display = createDisplay();
+                setDisplaySurface(display, surface, deviceRect, videoRect, device.getLayerStack());
+                Ln.d("Display: using SurfaceControl API (crop " + deviceRect.toShortString() + ")");
+                return;
+            } catch (Exception surfaceControlException) {
+                Ln.w("Could not crop the display, streaming the whole screen: " + surfaceControlException.getMessage());
+                if (display != null) {
+                    SurfaceControl.destroyDisplay(display);
+                    display = null;
+                }
+            }
+        }
+
         try {
             virtualDisplay = ServiceManager.getDisplayManager()
-                    .createVirtualDisplay("scrcpy", videoRect.width(), videoRect.height(), 0, surface);
+                    .createVirtualDisplay("scrcpy", videoRect.width(), videoRect.height(), device.getDisplayId(), surface);
             Ln.d("Display: using DisplayManager API");
         } catch (Exception displayManagerException) {
             try {
                 display = createDisplay();
-                setDisplaySurface(display, surface, deviceRect, videoRect);
+                setDisplaySurface(display, surface, deviceRect, videoRect, device.getLayerStack());
             } catch (Exception surfaceControlException) {
                 throw new AssertionError("Could not create display");
             }
@@ -53,6 +77,10 @@ public class ScreenCapture {
 
     public void release() {
         device.setRotationListener(null);
+        if (device.getAppDisplay() != null) {
+            // the display itself is released with the device
+            device.getAppDisplay().setSurface(null);
+        }
         if (display != null) {
             SurfaceControl.destroyDisplay(display);
             display = null;
@@ -71,12 +99,12 @@ public class ScreenCapture {
         return SurfaceControl.createDisplay("scrcpy", secure);
     }
 
-    private static void setDisplaySurface(IBinder display, Surface surface, Rect deviceRect, Rect displayRect) {
+    private static void setDisplaySurface(IBinder display, Surface surface, Rect deviceRect, Rect displayRect, int layerStack) {
         SurfaceControl.openTransaction();
         try {
             SurfaceControl.setDisplaySurface(display, surface);
             SurfaceControl.setDisplayProjection(display, 0, deviceRect, displayRect);
-            SurfaceControl.setDisplayLayerStack(display, 0);
+            SurfaceControl.setDisplayLayerStack(display, layerStack);
         } finally {
             SurfaceControl.closeTransaction();
         }
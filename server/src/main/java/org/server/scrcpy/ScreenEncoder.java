@@ -1,42 +1,87 @@
 package org.server.scrcpy;
 
-import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
 import org.server.scrcpy.audio.AudioCaptureException;
-import org.server.scrcpy.model.MediaPacket;
 import org.server.scrcpy.model.VideoPacket;
 import org.server.scrcpy.wrappers.DisplayManager;
 import org.server.scrcpy.wrappers.ServiceManager;
 import org.server.scrcpy.wrappers.SurfaceControl;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ScreenEncoder implements Device.RotationListener {
+public class ScreenEncoder implements Device.RotationListener, PacketMuxer.SyncFrameListener {
 
     private static final int DEFAULT_FRAME_RATE = 60; // fps
     private static final int DEFAULT_I_FRAME_INTERVAL = 10; // seconds
 
     private static final int REPEAT_FRAME_DELAY = 6; // repeat after 6 frames
 
+    // low-latency profile: all the blocks are intra-coded once per refresh period, full key frames are only produced on demand
+    private static final int INTRA_REFRESH_PERIOD_SECONDS = 1;
+    private static final int LOW_LATENCY_I_FRAME_INTERVAL = 3600; // seconds
+
     private static final int MICROSECONDS_IN_ONE_SECOND = 1_000_000;
 
-    private final AtomicBoolean rotationChanged = new AtomicBoolean();
+    // key frames requested by the client are expensive, do not let it request them continuously
+    private static final long KEY_FRAME_REQUEST_MIN_INTERVAL_MS = 500;
+
+    // the encoder must be restarted with the current settings (e.g. after a rotation)
+    private final AtomicBoolean restartRequested = new AtomicBoolean();
+    // uptime of the first pending restart request, to measure the gap until the first frame of the restarted encoder
+    private final AtomicLong restartRequestTime = new AtomicLong();
+    // set when the restarted encoder starts, reset by its first frame
+    private volatile long restartPendingSince;
+    private final AtomicBoolean syncFrameRequested = new AtomicBoolean();
+    private final AtomicBoolean configResendRequested = new AtomicBoolean();
+    private long lastKeyFrameRequest;
+
+    // the running codec, to request key frames from other threads
+    private volatile MediaCodec currentCodec;
+    private volatile boolean stopRequested;
 
-    private int bitRate;
+    // notified when the streaming thread must restart or stop the encoder (callback mode)
+    private final Object eventLock = new Object();
+
+    // updated by the encoder callbacks, read on restart
+    private volatile int bitRate;
     private int frameRate;
     private int iFrameInterval;
 
+    private BitrateController bitrateController;
+    private AudioEncoder audioEncoder;
+    private InteractionPolicy interactionPolicy;
+    // the bitrate of the running encoder: bitRate, capped when idle
+    private int appliedBitRate;
+    // the frame rate the running encoder has been configured with, and its runtime cap (lowered when idle)
+    private int configuredFps;
+    private int appliedMaxFps;
+
+    private boolean lowLatency;
+    // 0 for no limit
+    private volatile int maxFps;
+    // the size of the running encoder, sent with its configuration
+    private volatile long packedVideoSize;
+
+    private VideoCodec videoCodec = VideoCodec.H264;
+    // if null, the default encoder for the codec
+    private String encoderName;
+
     public ScreenEncoder(int bitRate, int frameRate, int iFrameInterval) {
         this.bitRate = bitRate;
         this.frameRate = frameRate;
@@ -47,13 +92,98 @@ public class ScreenEncoder implements Device.RotationListener {
         this(bitRate, DEFAULT_FRAME_RATE, DEFAULT_I_FRAME_INTERVAL);
     }
 
-    private static MediaCodec createCodec() throws IOException {
-        return MediaCodec.createEncoderByType("video/avc");
+    /**
+     * Enable the adaptive bitrate: the bitrate of the running encoder is adjusted according to the congestion of the link.
+     */
+    public void setBitrateController(BitrateController bitrateController) {
+        this.bitrateController = bitrateController;
+    }
+
+    /**
+     * Must be called before {@link #streamScreen(Device, PacketMuxer)}: the audio codec is announced in the stream header.
+     *
+     * @param audioEncoder the audio encoder, {@code null} to stream the video only (no capture, no audio thread)
+     */
+    public void setAudioEncoder(AudioEncoder audioEncoder) {
+        this.audioEncoder = audioEncoder;
+    }
+
+    /**
+     * Lower the bitrate (and the frame rate) when the device is not controlled, see {@link #onInteraction()}.
+     */
+    public void setInteractionPolicy(InteractionPolicy interactionPolicy) {
+        this.interactionPolicy = interactionPolicy;
+    }
+
+    /**
+     * Report a user interaction (touch, key, scroll, text): if the session was idle, the normal bitrate and frame rate are restored
+     * immediately, by updating the parameters of the running encoder (it is never restarted).
+     * <p/>
+     * May be called from any thread.
+     */
+    public void onInteraction() {
+        InteractionPolicy policy = interactionPolicy;
+        if (policy != null && policy.onInteraction(SystemClock.uptimeMillis())) {
+            Ln.i("Interaction, leaving idle mode");
+            MediaCodec codec = currentCodec;
+            if (codec != null) {
+                try {
+                    applyParameters(codec);
+                } catch (IllegalStateException e) {
+                    // the codec is being restarted, it will use the new settings
+                }
+            }
+        }
+    }
+
+    private static boolean capsIdleFps(InteractionPolicy policy) {
+        // the frame rate of a surface input can only be capped on Android 10
+        return policy != null && policy.capsFps() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    /**
+     * Must be called before {@link #streamScreen(Device, PacketMuxer)}.
+     *
+     * @param encoderName the encoder to use, or {@code null} for the default encoder of the codec
+     */
+    public void setVideoCodec(VideoCodec videoCodec, String encoderName) {
+        this.videoCodec = videoCodec;
+        this.encoderName = encoderName;
+    }
+
+    /**
+     * Enable the low-latency profile (see {@link #applyLowLatency(MediaFormat, MediaCodecInfo.CodecCapabilities, int)}).
+     * <p/>
+     * Must be called before {@link #streamScreen(Device, PacketMuxer)}.
+     */
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
     }
 
-    private static MediaFormat createFormat(int bitRate, int frameRate, int iFrameInterval) throws IOException {
+    /**
+     * Limit the frame rate (e.g. for a small floating window on the client). Applied on the next encoder restart.
+     *
+     * @param maxFps the maximum frame rate, or 0 for no limit
+     * @return {@code true} if the value has changed
+     */
+    public boolean setMaxFps(int maxFps) {
+        if (this.maxFps == maxFps) {
+            return false;
+        }
+        this.maxFps = maxFps;
+        return true;
+    }
+
+    private MediaCodec createCodec() throws IOException {
+        if (encoderName != null) {
+            return MediaCodec.createByCodecName(encoderName);
+        }
+        return MediaCodec.createEncoderByType(videoCodec.getMimeType());
+    }
+
+    private static MediaFormat createFormat(VideoCodec videoCodec, int bitRate, int frameRate, int iFrameInterval) throws IOException {
         MediaFormat format = new MediaFormat();
-        format.setString(MediaFormat.KEY_MIME, "video/avc");
+        format.setString(MediaFormat.KEY_MIME, videoCodec.getMimeType());
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -72,6 +202,40 @@ public class ScreenEncoder implements Device.RotationListener {
         return SurfaceControl.createDisplay("scrcpy", secure);
     }
 
+    /**
+     * Tune the encoder for latency rather than compression efficiency, with the keys supported by the encoder and the Android version.
+     * <p/>
+     * If the encoder supports intra refresh, the periodic key frames are replaced by a gradual decoder refresh: the intra-coded blocks are
+     * spread over the frames of a refresh period, so that the frame size stays flat (a large key frame every few seconds is a latency
+     * spike on a constrained link). Key frames are still produced on demand (sync frame requests).
+     */
+    private static void applyLowLatency(MediaFormat format, MediaCodecInfo.CodecCapabilities capabilities, int frameRate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // output each frame as soon as it is encoded
+            format.setInteger(MediaFormat.KEY_LATENCY, 1);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // 0 is realtime
+            format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, frameRate);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // B-frames are reordered, so they delay the output
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+        }
+        MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+        if (encoderCapabilities != null && encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, frameRate * INTRA_REFRESH_PERIOD_SECONDS);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, LOW_LATENCY_I_FRAME_INTERVAL);
+        } else {
+            Ln.i("Intra refresh not supported by the encoder, keeping periodic key frames");
+        }
+    }
+
     private static void configure(MediaCodec codec, MediaFormat format) {
         codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     }
@@ -98,25 +262,121 @@ public class ScreenEncoder implements Device.RotationListener {
 
     @Override
     public void onRotationChanged(int rotation) {
-        rotationChanged.set(true);
+        reconfigure();
+    }
+
+    /**
+     * Restart the encoder, so that the current settings (e.g. the video size) are applied.
+     * <p/>
+     * May be called from any thread. In callback mode, the restart is immediate, even if the screen content does not change.
+     */
+    public void reconfigure() {
+        restartRequestTime.compareAndSet(0, SystemClock.uptimeMillis());
+        restartRequested.set(true);
+        signalEvent();
     }
 
-    public boolean consumeRotationChange() {
-        return rotationChanged.getAndSet(false);
+    public boolean consumeRestartRequest() {
+        return restartRequested.getAndSet(false);
+    }
+
+    private void signalEvent() {
+        synchronized (eventLock) {
+            eventLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onSyncFrameRequested() {
+        // applied by the encoding loop
+        syncFrameRequested.set(true);
+    }
+
+    /**
+     * Request a key frame, preceded by the codec configuration, on client request.
+     * <p/>
+     * May be called from any thread. The requests are rate-limited.
+     *
+     * @return {@code false} if the request has been ignored
+     */
+    public synchronized boolean requestKeyFrame() {
+        long now = SystemClock.uptimeMillis();
+        if (lastKeyFrameRequest != 0 && now - lastKeyFrameRequest < KEY_FRAME_REQUEST_MIN_INTERVAL_MS) {
+            Ln.d("Key frame request ignored (rate limited)");
+            return false;
+        }
+        lastKeyFrameRequest = now;
+        forceKeyFrame();
+        return true;
+    }
+
+    /**
+     * Request a key frame, preceded by the codec configuration, without rate limiting (e.g. when a session is resumed).
+     * <p/>
+     * May be called from any thread.
+     */
+    public void forceKeyFrame() {
+        configResendRequested.set(true);
+        requestSyncFrame();
+    }
+
+    /**
+     * Request a key frame, without sending the codec configuration again (e.g. for a viewer joining the broadcast, which already received it).
+     * <p/>
+     * May be called from any thread.
+     */
+    public void requestSyncFrame() {
+        MediaCodec codec = currentCodec;
+        if (codec != null) {
+            // not deferred to the encoding loop: it may be blocked waiting for an output buffer if the screen content does not change
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                codec.setParameters(params);
+            } catch (IllegalStateException e) {
+                // the codec is being restarted, it will produce a key frame anyway
+            }
+        }
+    }
+
+    /**
+     * Stop streaming, even if the encoder is waiting for a new frame (the screen content does not change).
+     * <p/>
+     * May be called from any thread.
+     */
+    public void stop() {
+        stopRequested = true;
+        signalEvent();
+        MediaCodec codec = currentCodec;
+        if (codec != null) {
+            try {
+                // the encoder will output an end-of-stream buffer, which terminates the encoding loop
+                codec.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                // the codec is being restarted, the loop will check stopRequested
+            }
+        }
+    }
+
+    private void requestSyncFrameIfNeeded(MediaCodec codec) {
+        if (syncFrameRequested.getAndSet(false)) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            codec.setParameters(params);
+        }
     }
 
     /**
      * 开启音频流转发
      *
-     * @param outputStream
+     * @param muxer
      */
-    private void startAudioCapture(OutputStream outputStream) {
+    private void startAudioCapture(PacketMuxer muxer) {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                AudioEncoder audioEncoder = new AudioEncoder(128000);
                 try {
-                    audioEncoder.streamScreen(outputStream);
+                    audioEncoder.streamScreen(muxer);
                 } catch (IOException e) {
                     Ln.e("audio capture IOException", e);
                 } catch (AudioCaptureException e) {
@@ -128,9 +388,14 @@ public class ScreenEncoder implements Device.RotationListener {
         }).start();
     }
 
-    public void streamScreen(Device device, OutputStream outputStream) throws IOException {
+    public void streamScreen(Device device, PacketMuxer muxer) throws IOException {
         // Log.d("ScreenCapture", buildDisplayListMessage());
-        int[] buf = new int[]{device.getScreenInfo().getDeviceSize().getWidth(), device.getScreenInfo().getDeviceSize().getHeight()};
+        // the size of the streamed area (the crop rectangle if any), the client maps its events to it
+        // then the codec ids, which tell the client which decoders to create, and the audio format (0 for both if there is no audio)
+        Size contentSize = device.getScreenInfo().getContentSize();
+        int audioCodecId = audioEncoder != null ? audioEncoder.getAudioCodec().getId() : 0;
+        int audioFormat = audioEncoder != null ? audioEncoder.getAudioConfig().packFormat() : 0;
+        int[] buf = new int[]{contentSize.getWidth(), contentSize.getHeight(), videoCodec.getId(), audioCodecId, audioFormat};
         final byte[] array = new byte[buf.length * 4];   // https://stackoverflow.com/questions/2183240/java-integer-to-byte-array
         for (int j = 0; j < buf.length; j++) {
             final int c = buf[j];
@@ -139,34 +404,92 @@ public class ScreenEncoder implements Device.RotationListener {
             array[j * 4 + 2] = (byte) ((c & 0xFF00) >> 8);
             array[j * 4 + 3] = (byte) (c & 0xFF);
         }
-        outputStream.write(array, 0, array.length);   // Sending device resolution
+        muxer.writeHeader(array);   // Sending device resolution
+        muxer.setSyncFrameListener(this);
+        muxer.start();
 
-        startAudioCapture(outputStream);  // start audio capture
+        if (audioEncoder != null) {
+            startAudioCapture(muxer);  // start audio capture
+        }
 
-        MediaFormat format = createFormat(bitRate, frameRate, iFrameInterval);
         device.setRotationListener(this);
         boolean alive;
         int errorCount = 0;
         ScreenCapture capture = new ScreenCapture(device);
+        // the encoder callbacks run on a dedicated thread, so that the streaming thread can react to events immediately
+        HandlerThread encoderThread = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            encoderThread = new HandlerThread("video-encoder");
+            encoderThread.start();
+        }
+        // the codec instance is reused across the restarts (stop() then configure()), allocating a hardware encoder is slow
+        MediaCodec codec = null;
         try {
             do {
-                MediaCodec codec = createCodec();
+                if (codec == null) {
+                    codec = createCodec();
+                }
+                EncoderCallback callback = null;
+                if (encoderThread != null) {
+                    callback = new EncoderCallback(muxer);
+                    codec.setCallback(callback, new Handler(encoderThread.getLooper()));
+                }
 //                IBinder display = createDisplay();
 //                Rect deviceRect = device.getScreenInfo().getDeviceSize().toRect();
                 Rect videoRect = device.getScreenInfo().getVideoSize().toRect();
+                // the idle cap is not part of the configuration, it is applied at runtime (see applyParameters())
+                int fps = maxFps > 0 ? Math.min(maxFps, frameRate) : frameRate;
+                // on restart, keep the bitrate chosen by the controller
+                int targetBitRate = getTargetBitRate();
+                MediaFormat format = createFormat(videoCodec, targetBitRate, fps, iFrameInterval);
+                synchronized (this) {
+                    appliedBitRate = targetBitRate;
+                    configuredFps = fps;
+                    appliedMaxFps = fps;
+                }
                 setSize(format, videoRect.width(), videoRect.height());
-                configure(codec, format);
+                if ((fps < frameRate || capsIdleFps(interactionPolicy)) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    // the frames produced faster are dropped by the encoder input; also set when only the idle cap will change it at runtime
+                    format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, fps);
+                }
+                if (lowLatency) {
+                    applyLowLatency(format, codec.getCodecInfo().getCapabilitiesForType(videoCodec.getMimeType()), fps);
+                }
+                packedVideoSize = VideoPacket.packVideoSize(videoRect.width(), videoRect.height());
+                try {
+                    configure(codec, format);
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    codec.release();
+                    codec = null;
+                    if (!lowLatency) {
+                        throw e;
+                    }
+                    // some encoders advertise the keys but reject the combination
+                    Ln.w("Low-latency encoder settings rejected, using the default settings: " + e.getMessage());
+                    lowLatency = false;
+                    alive = true;
+                    continue;
+                }
                 Surface surface = null;
+                // after an error, the codec state is unknown: create a new one
+                boolean reusable = false;
 
                 // setDisplaySurface(display, surface, deviceRect, videoRect);
 
                 try {
                     surface = codec.createInputSurface();
                     capture.start(surface);
+                    restartPendingSince = restartRequestTime.getAndSet(0);
                     codec.start();
+                    currentCodec = codec;
 
-                    alive = encode(codec, outputStream);
+                    alive = callback != null ? awaitEvent(callback) : encode(codec, muxer);
                     errorCount = 0;
+                    reusable = true;
+                    if (alive && !stopRequested) {
+                        // the client prepares for the new size while the encoder is restarted
+                        announceReconfigure(device, muxer);
+                    }
                 } catch (IllegalStateException | IllegalArgumentException e) {
                     Ln.e("Encoding error: " + e.getClass().getName(), e);
                     if (errorCount > 3) {
@@ -178,21 +501,50 @@ public class ScreenEncoder implements Device.RotationListener {
                     alive = true;
                 } finally {
                     Log.d("ScreenCapture", "帧处理 finally 退出了");
+                    if (callback != null) {
+                        // ignore the callbacks already posted for this codec
+                        callback.active = false;
+                    }
+                    currentCodec = null;
                     codec.stop();
                     // destroyDisplay(display);
-                    codec.release();
+                    if (!reusable) {
+                        codec.release();
+                        codec = null;
+                    }
                     if (surface != null) {
                         surface.release();
                     }
                 }
-            } while (alive);
+            } while (alive && !stopRequested);
         } finally {
             Log.d("ScreenCapture", "streamScreen 退出了");
+            if (codec != null) {
+                codec.release();
+            }
+            if (encoderThread != null) {
+                encoderThread.quitSafely();
+                try {
+                    encoderThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             capture.release();
             // device.setRotationListener(null);
         }
     }
 
+    /**
+     * Tell the client the size of the next video, before the encoder is restarted: it can prepare its display (e.g. rotate it) meanwhile,
+     * instead of waiting for the new codec configuration.
+     */
+    private static void announceReconfigure(Device device, PacketMuxer muxer) throws IOException {
+        Size videoSize = device.getScreenInfo().getVideoSize();
+        long packedSize = VideoPacket.packVideoSize(videoSize.getWidth(), videoSize.getHeight());
+        muxer.offerVideo(VideoPacket.Flag.RECONFIGURE, packedSize, ByteBuffer.allocate(0));
+    }
+
     public static String buildDisplayListMessage() {
         StringBuilder builder = new StringBuilder("List of displays:");
         DisplayManager displayManager = ServiceManager.getDisplayManager();
@@ -201,7 +553,7 @@ public class ScreenEncoder implements Device.RotationListener {
             builder.append("\n    (none)");
         } else {
             for (int id : displayIds) {
-                builder.append("\n    --display-id=").append(id).append("    (");
+                builder.append("\n    display_id=").append(id).append("    (");
                 DisplayInfo displayInfo = displayManager.getDisplayInfo(id);
                 if (displayInfo != null) {
                     Size size = displayInfo.getSize();
@@ -215,45 +567,106 @@ public class ScreenEncoder implements Device.RotationListener {
         return builder.toString();
     }
 
-    @SuppressLint("NewApi")
-    private boolean encode(MediaCodec codec, OutputStream outputStream) throws IOException {
-        @SuppressWarnings("checkstyle:MagicNumber")
-//        byte[] buf = new byte[bitRate / 8]; // may contain up to 1 second of video
+    private void adaptBitRate(MediaCodec codec, PacketMuxer muxer) {
+        long now = SystemClock.uptimeMillis();
+        // the interval is checked first: the link counters are only read twice per second, not on every frame
+        if (bitrateController != null && bitrateController.isDue(now)) {
+            int newBitRate = bitrateController.update(now, muxer.getVideoLinkStats());
+            if (newBitRate != bitRate) {
+                Ln.i("Bitrate " + bitRate + " -> " + newBitRate + ": " + bitrateController);
+                bitRate = newBitRate;
+            }
+        }
+        if (interactionPolicy != null && interactionPolicy.update(now)) {
+            Ln.i("No interaction, entering idle mode: " + interactionPolicy);
+        }
+        applyParameters(codec);
+    }
+
+    private int getTargetBitRate() {
+        return interactionPolicy != null ? interactionPolicy.capBitRate(bitRate) : bitRate;
+    }
+
+    private int getTargetMaxFps() {
+        return capsIdleFps(interactionPolicy) ? interactionPolicy.capFps(configuredFps) : configuredFps;
+    }
+
+    /**
+     * Update the bitrate and the frame rate cap of the running encoder, without restarting it (a restart costs a key frame and a visible
+     * pause, so it must never be caused by the first tap after an idle period).
+     * <p/>
+     * The frame rate cap is updated with the same key as at configuration: the encoders which ignore it at runtime keep their configured
+     * frame rate, and only the bitrate is lowered when idle.
+     * <p/>
+     * Called from the encoder thread and on interaction.
+     */
+    private synchronized void applyParameters(MediaCodec codec) {
+        int targetBitRate = getTargetBitRate();
+        int targetMaxFps = getTargetMaxFps();
+        if (targetBitRate == appliedBitRate && targetMaxFps == appliedMaxFps) {
+            return;
+        }
+        Bundle params = new Bundle();
+        if (targetBitRate != appliedBitRate) {
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, targetBitRate);
+        }
+        if (targetMaxFps != appliedMaxFps) {
+            // capsIdleFps() guarantees Android 10
+            params.putFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, targetMaxFps);
+        }
+        codec.setParameters(params);
+        appliedBitRate = targetBitRate;
+        appliedMaxFps = targetMaxFps;
+    }
+
+    /**
+     * Wait until the encoder must be restarted or stopped, while the output buffers are handled by the {@link EncoderCallback}.
+     *
+     * @return {@code true} if the encoder must be restarted
+     */
+    private boolean awaitEvent(EncoderCallback callback) throws IOException {
+        synchronized (eventLock) {
+            while (!stopRequested && !restartRequested.get() && !callback.ended && callback.ioError == null && callback.codecError == null) {
+                try {
+                    eventLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        if (callback.ioError != null) {
+            throw callback.ioError;
+        }
+        if (callback.codecError != null) {
+            // handled like an error in synchronous mode: the encoder is restarted a few times
+            throw callback.codecError;
+        }
+        if (stopRequested || callback.ended) {
+            return false;
+        }
+        restartRequested.set(false);
+        return true;
+    }
+
+    /**
+     * Encoding loop in synchronous mode (before Android 6, the callbacks cannot be run on a specific thread).
+     *
+     * @return {@code false} if the end of stream is reached
+     */
+    private boolean encode(MediaCodec codec, PacketMuxer muxer) throws IOException {
         boolean eof = false;
         MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        while (!consumeRotationChange() && !eof) {
+        while (!consumeRestartRequest() && !eof) {
             int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, -1);
             eof = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
             try {
-                if (consumeRotationChange()) {
+                if (consumeRestartRequest()) {
                     // must restart encoding with new size
                     break;
                 }
                 if (outputBufferId >= 0) {
-                    ByteBuffer outputBuffer;
-
-                    outputBuffer = codec.getOutputBuffer(outputBufferId);
-
-                    if (bufferInfo.size > 0 && outputBuffer != null) {
-                        outputBuffer.position(bufferInfo.offset);
-                        outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
-                        byte[] b = new byte[outputBuffer.remaining()];
-                        outputBuffer.get(b);
-
-                        MediaPacket.Type type = MediaPacket.Type.VIDEO;
-                        VideoPacket.Flag flag = VideoPacket.Flag.CONFIG;
-
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                            flag = VideoPacket.Flag.END;
-                        } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
-                            flag = VideoPacket.Flag.KEY_FRAME;
-                        } else if (bufferInfo.flags == 0) {
-                            flag = VideoPacket.Flag.FRAME;
-                        }
-                        VideoPacket packet = new VideoPacket(type, flag, bufferInfo.presentationTimeUs, b);
-                        outputStream.write(packet.toByteArray());
-                    }
-
+                    sendOutput(codec, muxer, codec.getOutputBuffer(outputBufferId), bufferInfo);
                 }
             } finally {
                 if (outputBufferId >= 0) {
@@ -264,4 +677,103 @@ public class ScreenEncoder implements Device.RotationListener {
 
         return !eof;
     }
+
+    /**
+     * Hand an output buffer of the encoder to the muxer, then apply the pending encoder adjustments.
+     */
+    private void sendOutput(MediaCodec codec, PacketMuxer muxer, ByteBuffer outputBuffer, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        if (bufferInfo.size > 0 && outputBuffer != null) {
+            outputBuffer.position(bufferInfo.offset);
+            outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+
+            VideoPacket.Flag flag = VideoPacket.Flag.CONFIG;
+
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+                flag = VideoPacket.Flag.END;
+            } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
+                flag = VideoPacket.Flag.KEY_FRAME;
+            } else if (bufferInfo.flags == 0) {
+                flag = VideoPacket.Flag.FRAME;
+            }
+            if (flag == VideoPacket.Flag.CONFIG) {
+                // a new configuration is sent anyway
+                configResendRequested.set(false);
+            } else if (flag == VideoPacket.Flag.KEY_FRAME && configResendRequested.getAndSet(false)) {
+                // the client requested a key frame: the configuration must precede it
+                muxer.resendVideoConfig();
+            }
+            if (flag != VideoPacket.Flag.CONFIG && restartPendingSince != 0) {
+                Ln.i("Encoder restarted: first frame " + (SystemClock.uptimeMillis() - restartPendingSince) + " ms after the request");
+                restartPendingSince = 0;
+            }
+            long timestamp = flag == VideoPacket.Flag.CONFIG ? packedVideoSize : bufferInfo.presentationTimeUs;
+            muxer.offerVideo(flag, timestamp, outputBuffer);
+        }
+        requestSyncFrameIfNeeded(codec);
+        adaptBitRate(codec, muxer);
+    }
+
+    /**
+     * Send the output buffers to the muxer as soon as they are available, and report the events to the streaming thread.
+     * <p/>
+     * One instance per codec: once the codec is stopped, its pending callbacks are ignored.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private final class EncoderCallback extends MediaCodec.Callback {
+
+        private final PacketMuxer muxer;
+
+        private volatile boolean active = true;
+        private volatile boolean ended;
+        private volatile IOException ioError;
+        private volatile IllegalStateException codecError;
+
+        private EncoderCallback(PacketMuxer muxer) {
+            this.muxer = muxer;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // the input is a surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+            if (!active) {
+                return;
+            }
+            try {
+                try {
+                    sendOutput(codec, muxer, codec.getOutputBuffer(index), bufferInfo);
+                } finally {
+                    codec.releaseOutputBuffer(index, false);
+                }
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    ended = true;
+                    signalEvent();
+                }
+            } catch (IOException e) {
+                ioError = e;
+                signalEvent();
+            } catch (IllegalStateException e) {
+                // if the codec is being stopped by the streaming thread, this is expected
+                if (active) {
+                    codecError = e;
+                    signalEvent();
+                }
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Ln.e("MediaCodec error", e);
+            codecError = e;
+            signalEvent();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // the codec configuration is also provided as an output buffer
+        }
+    }
 }
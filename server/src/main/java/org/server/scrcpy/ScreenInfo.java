@@ -1,13 +1,25 @@
 package org.server.scrcpy;
 
+import android.graphics.Rect;
+
 public final class ScreenInfo {
     private final Size deviceSize;
+    // the area of the device screen which is streamed (the whole screen, or the crop rectangle), in the current orientation
+    private final Rect contentRect;
     private final Size videoSize;
+    // the coordinate space of the client events: the video size requested at startup, not affected by the client viewport
+    private final Size inputSize;
     private final boolean rotated;
 
     public ScreenInfo(Size deviceSize, Size videoSize, boolean rotated) {
+        this(deviceSize, deviceSize.toRect(), videoSize, videoSize, rotated);
+    }
+
+    public ScreenInfo(Size deviceSize, Rect contentRect, Size videoSize, Size inputSize, boolean rotated) {
         this.deviceSize = deviceSize;
+        this.contentRect = contentRect;
         this.videoSize = videoSize;
+        this.inputSize = inputSize;
         this.rotated = rotated;
     }
 
@@ -15,15 +27,46 @@ public final class ScreenInfo {
         return deviceSize;
     }
 
+    public Rect getContentRect() {
+        return contentRect;
+    }
+
+    public Size getContentSize() {
+        return new Size(contentRect.width(), contentRect.height());
+    }
+
+    /**
+     * @return {@code true} if only a part of the screen is streamed
+     */
+    public boolean isCropped() {
+        return !contentRect.equals(deviceSize.toRect());
+    }
+
     public Size getVideoSize() {
         return videoSize;
     }
 
+    public Size getInputSize() {
+        return inputSize;
+    }
+
+    public boolean isRotated() {
+        return rotated;
+    }
+
+    public ScreenInfo withVideoSize(Size newVideoSize) {
+        return new ScreenInfo(deviceSize, contentRect, newVideoSize, inputSize, rotated);
+    }
+
     public ScreenInfo withRotation(int rotation) {
         boolean newRotated = (rotation & 1) != 0;
         if (rotated == newRotated) {
             return this;
         }
-        return new ScreenInfo(deviceSize.rotate(), videoSize.rotate(), newRotated);
+        return new ScreenInfo(deviceSize.rotate(), flipRect(contentRect), videoSize.rotate(), inputSize.rotate(), newRotated);
+    }
+
+    public static Rect flipRect(Rect rect) {
+        return new Rect(rect.top, rect.left, rect.bottom, rect.right);
     }
 }
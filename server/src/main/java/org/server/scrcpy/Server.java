@@ -1,8 +1,18 @@
 package org.server.scrcpy;
 
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import org.server.scrcpy.audio.AudioCaptureException;
+import org.server.scrcpy.audio.AudioConfig;
+import org.server.scrcpy.audio.AudioSource;
+import org.server.scrcpy.audio.SilenceDetector;
 import org.server.scrcpy.util.Workarounds;
 
 import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class Server {
 
@@ -15,31 +25,126 @@ public final class Server {
     private static void scrcpy(Options options) throws IOException {
         Workarounds.apply();  // init content
 
+        Ln.d(ScreenEncoder.buildDisplayListMessage());
         final Device device = new Device(options);
-        try (DroidConnection connection = DroidConnection.open(ip)) {
+        if (options.getStartApp() != null) {
+            device.startApp(options.getStartApp());
+        }
+        boolean resumable = options.getResumeGrace() > 0;
+        ServerSocketChannel serverSocketChannel = DroidConnection.listen();
+        DroidConnection connection = null;
+        SessionResumer resumer = null;
+        Broadcaster broadcaster = null;
+        try {
+            connection = DroidConnection.accept(serverSocketChannel, ip, options.isMultiSocket());
+            if (!resumable) {
+                // no other client will be accepted
+                serverSocketChannel.close();
+            }
             ScreenEncoder screenEncoder = new ScreenEncoder(options.getBitRate());
+            VideoEncoderSelector.Selection selection = VideoEncoderSelector.select(options.getVideoCodecs(), options.getVideoEncoder());
+            Ln.i("Video codec: " + selection);
+            screenEncoder.setVideoCodec(selection.getCodec(), selection.getEncoderName());
+            screenEncoder.setLowLatency(options.isLowLatency());
+            screenEncoder.setAudioEncoder(createAudioEncoder(options));
+            if (options.isAdaptiveBitRate()) {
+                screenEncoder.setBitrateController(createBitrateController(options));
+            }
+            if (options.getIdleTimeout() > 0) {
+                screenEncoder.setInteractionPolicy(createInteractionPolicy(options));
+            }
+            PacketMuxer muxer = new PacketMuxer(connection.getVideoChannel(), connection.getAudioChannel());
+            muxer.setVideoLatencyBudget(options.getVideoLatencyBudget());
 
             // asynchronous
-            startEventController(device, connection);
+            startEventController(device, connection, screenEncoder);
+
+            if (resumable) {
+                // the client may reconnect after a network failure without restarting the server
+                resumer = new SessionResumer(serverSocketChannel, ip, options.isMultiSocket(), options.getResumeGrace(), device, muxer,
+                        screenEncoder);
+                muxer.setResumable(true, resumer);
+                resumer.start(connection);
+            }
+
+            if (options.getMaxViewers() > 0) {
+                // the same encoded stream is sent to the viewers, only the main client controls the device
+                broadcaster = new Broadcaster(muxer, screenEncoder, options.getMaxViewers(), options.getViewerPolicy());
+                broadcaster.start(options.getViewerPort());
+            }
 
             try {
                 // synchronous
-                screenEncoder.streamScreen(device, connection.getOutputStream());
+                screenEncoder.streamScreen(device, muxer);
             } catch (IOException e) {
                 e.printStackTrace();
                 // this is expected on close
                 Ln.d("Screen streaming stopped");
 
+            } finally {
+                muxer.close();
+            }
+        } finally {
+            if (broadcaster != null) {
+                broadcaster.stop();
+            }
+            if (resumer != null) {
+                // close the current connection, which may not be the initial one
+                resumer.stop();
+            } else if (connection != null) {
+                connection.close();
             }
+            serverSocketChannel.close();
+            device.release();
         }
     }
 
-    private static void startEventController(final Device device, final DroidConnection connection) {
+    /**
+     * @return the audio encoder, or {@code null} if the audio is disabled (or not supported on this device)
+     */
+    private static AudioEncoder createAudioEncoder(Options options) {
+        if (!options.isAudio()) {
+            Ln.i("Audio disabled");
+            return null;
+        }
+        AudioConfig audioConfig = new AudioConfig(options.getAudioSource(), options.getAudioSampleRate(), options.getAudioChannels());
+        AudioCodec audioCodec = AudioCodec.select(options.getAudioCodecs(), audioConfig.getSampleRate());
+        int audioReadSize = audioConfig.getReadSize(options.getAudioFrameMs());
+        // the client must handle the SILENCE packets, so the discontinuous transmission is enabled on request only
+        SilenceDetector silenceDetector = options.getAudioDtxHold() > 0 ? new SilenceDetector(options.getAudioDtxHold() * 1000) : null;
+        AudioEncoder audioEncoder = new AudioEncoder(audioCodec, audioConfig, options.getAudioBitRate(), audioReadSize, silenceDetector);
+        try {
+            audioEncoder.checkCompatibility();
+        } catch (AudioCaptureException e) {
+            // announce no audio to the client rather than failing in the background
+            return null;
+        }
+        Ln.i("Audio: " + audioCodec.getName() + ", " + audioConfig + ", " + options.getAudioBitRate() + " bps (" + audioReadSize
+                + " bytes per read)");
+        return audioEncoder;
+    }
+
+    private static BitrateController createBitrateController(Options options) {
+        int bitRate = options.getBitRate();
+        // by default, the requested bitrate is the maximum, and the encoder may go down to 1/8 of it
+        int max = options.getBitRateMax() > 0 ? options.getBitRateMax() : bitRate;
+        int min = options.getBitRateMin() > 0 ? options.getBitRateMin() : Math.max(max / 8, 250_000);
+        min = Math.min(min, max);
+        return new BitrateController(min, max, bitRate);
+    }
+
+    private static InteractionPolicy createInteractionPolicy(Options options) {
+        // by default, 1/4 of the requested bitrate when idle
+        int idleBitRate = options.getIdleBitRate() > 0 ? options.getIdleBitRate() : Math.max(options.getBitRate() / 4, 250_000);
+        return new InteractionPolicy(options.getIdleTimeout(), idleBitRate, options.getIdleMaxFps(), SystemClock.uptimeMillis());
+    }
+
+    static void startEventController(final Device device, final DroidConnection connection, final ScreenEncoder screenEncoder) {
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    new EventController(device, connection).control();
+                    new EventController(device, connection, screenEncoder).control();
                 } catch (IOException e) {
                     // this is expected on close
                     Ln.d("Event controller stopped");
@@ -52,25 +157,34 @@ public final class Server {
     private static Options createOptions(String... args) {
         Options options = new Options();
 
-        if (args.length < 1) {
+        // positional arguments first, then optional "key=value" arguments
+        int positionalCount = 0;
+        while (positionalCount < args.length && args[positionalCount].indexOf('=') == -1) {
+            ++positionalCount;
+        }
+        for (int i = positionalCount; i < args.length; ++i) {
+            parseOption(options, args[i]);
+        }
+
+        if (positionalCount < 1) {
             return options;
         }
         ip = String.valueOf(args[0]);
 
 
-        if (args.length < 2) {
+        if (positionalCount < 2) {
             return options;
         }
         int maxSize = Integer.parseInt(args[1]) & ~7; // multiple of 8
         options.setMaxSize(maxSize);
 
-        if (args.length < 3) {
+        if (positionalCount < 3) {
             return options;
         }
         int bitRate = Integer.parseInt(args[2]);
         options.setBitRate(bitRate);
 
-        if (args.length < 4) {
+        if (positionalCount < 4) {
             return options;
         }
         // use "adb forward" instead of "adb tunnel"? (so the server must listen)
@@ -79,6 +193,176 @@ public final class Server {
         return options;
     }
 
+    private static void parseOption(Options options, String arg) {
+        int equalIndex = arg.indexOf('=');
+        String key = arg.substring(0, equalIndex);
+        String value = arg.substring(equalIndex + 1);
+        switch (key) {
+            case "multi_socket":
+                options.setMultiSocket(Boolean.parseBoolean(value));
+                break;
+            case "abr":
+                options.setAdaptiveBitRate(Boolean.parseBoolean(value));
+                break;
+            case "bit_rate_min":
+                options.setBitRateMin(Integer.parseInt(value));
+                break;
+            case "bit_rate_max":
+                options.setBitRateMax(Integer.parseInt(value));
+                break;
+            case "resume_grace":
+                options.setResumeGrace(Long.parseLong(value));
+                break;
+            case "low_latency":
+                options.setLowLatency(Boolean.parseBoolean(value));
+                break;
+            case "video_codecs":
+                options.setVideoCodecs(parseVideoCodecs(value));
+                break;
+            case "audio":
+                options.setAudio(Boolean.parseBoolean(value));
+                break;
+            case "audio_source":
+                AudioSource audioSource = AudioSource.findByName(value);
+                if (audioSource == null || !audioSource.isDirect()) {
+                    throw new IllegalArgumentException("Unsupported audio source: \"" + value + "\" (expected output or mic)");
+                }
+                options.setAudioSource(audioSource);
+                break;
+            case "audio_sample_rate":
+                options.setAudioSampleRate(Integer.parseInt(value));
+                break;
+            case "audio_channels":
+                options.setAudioChannels(Integer.parseInt(value));
+                break;
+            case "audio_bit_rate":
+                options.setAudioBitRate(Integer.parseInt(value));
+                break;
+            case "audio_codecs":
+                options.setAudioCodecs(parseAudioCodecs(value));
+                break;
+            case "audio_frame_ms":
+                options.setAudioFrameMs(Integer.parseInt(value));
+                break;
+            case "audio_dtx_hold":
+                options.setAudioDtxHold(Long.parseLong(value));
+                break;
+            case "video_encoder":
+                options.setVideoEncoder(value.isEmpty() ? null : value);
+                break;
+            case "max_viewers":
+                options.setMaxViewers(Integer.parseInt(value));
+                break;
+            case "viewer_port":
+                options.setViewerPort(Integer.parseInt(value));
+                break;
+            case "viewer_policy":
+                // "skip" (skip frames until the next key frame) or "disconnect"
+                options.setViewerPolicy("disconnect".equals(value)
+                        ? PacketMuxer.SlowConsumerPolicy.DISCONNECT : PacketMuxer.SlowConsumerPolicy.SKIP_TO_KEY_FRAME);
+                break;
+            case "crop":
+                options.setCrop(parseCrop(value));
+                break;
+            case "idle_timeout":
+                options.setIdleTimeout(Long.parseLong(value));
+                break;
+            case "idle_bit_rate":
+                options.setIdleBitRate(Integer.parseInt(value));
+                break;
+            case "idle_max_fps":
+                // 0 to keep the frame rate when idle (only the bitrate is lowered)
+                options.setIdleMaxFps(Integer.parseInt(value));
+                break;
+            case "display_id":
+                options.setDisplayId(Integer.parseInt(value));
+                break;
+            case "new_display":
+                parseNewDisplay(options, value);
+                break;
+            case "start_app":
+                options.setStartApp(value.isEmpty() ? null : value);
+                break;
+            case "video_latency_budget":
+                options.setVideoLatencyBudget(Long.parseLong(value));
+                break;
+            default:
+                Ln.w("Unknown server option: " + key);
+                break;
+        }
+    }
+
+    /**
+     * @param value "width:height:x:y", or an empty string for the whole screen
+     */
+    private static Rect parseCrop(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        String[] tokens = value.split(":");
+        if (tokens.length != 4) {
+            throw new IllegalArgumentException("Crop must contain 4 values separated by colons: \"" + value + "\"");
+        }
+        int width = Integer.parseInt(tokens[0]);
+        int height = Integer.parseInt(tokens[1]);
+        int x = Integer.parseInt(tokens[2]);
+        int y = Integer.parseInt(tokens[3]);
+        return new Rect(x, y, x + width, y + height);
+    }
+
+    /**
+     * @param value "widthxheight" or "widthxheight/dpi"
+     */
+    private static void parseNewDisplay(Options options, String value) {
+        String size = value;
+        int slashIndex = value.indexOf('/');
+        if (slashIndex != -1) {
+            size = value.substring(0, slashIndex);
+            options.setNewDisplayDpi(Integer.parseInt(value.substring(slashIndex + 1)));
+        }
+        int xIndex = size.indexOf('x');
+        if (xIndex == -1) {
+            throw new IllegalArgumentException("Invalid new display size: \"" + value + "\" (expected widthxheight[/dpi])");
+        }
+        int width = Integer.parseInt(size.substring(0, xIndex));
+        int height = Integer.parseInt(size.substring(xIndex + 1));
+        options.setNewDisplay(new Size(width, height));
+    }
+
+    private static List<VideoCodec> parseVideoCodecs(String value) {
+        List<VideoCodec> codecs = new ArrayList<>();
+        for (String name : value.split(",")) {
+            VideoCodec codec = VideoCodec.findByName(name.trim());
+            if (codec == null) {
+                Ln.w("Unknown video codec: " + name);
+            } else {
+                codecs.add(codec);
+            }
+        }
+        if (!codecs.contains(VideoCodec.H264)) {
+            // always possible fallback
+            codecs.add(VideoCodec.H264);
+        }
+        return codecs;
+    }
+
+    private static List<AudioCodec> parseAudioCodecs(String value) {
+        List<AudioCodec> codecs = new ArrayList<>();
+        for (String name : value.split(",")) {
+            AudioCodec codec = AudioCodec.findByName(name.trim());
+            if (codec == null) {
+                Ln.w("Unknown audio codec: " + name);
+            } else {
+                codecs.add(codec);
+            }
+        }
+        if (!codecs.contains(AudioCodec.AAC)) {
+            // always possible fallback
+            codecs.add(AudioCodec.AAC);
+        }
+        return codecs;
+    }
+
     public static void main(String... args) throws Exception {
         Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
             @Override
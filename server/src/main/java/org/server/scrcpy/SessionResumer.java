@@ -0,0 +1,148 @@
+package org.server.scrcpy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Keep accepting client connections during a session, so that a client can resume it without restarting the server.
+ * <p/>
+ * The encoders keep running while the client is disconnected (the {@link PacketMuxer} discards their packets). When a client connects again,
+ * the new connection replaces the previous one: the muxer writes the header again, the codec configuration and a key frame are sent, and a
+ * new event controller is started. If no client connects within the grace period, the session is stopped.
+ * <p/>
+ * A new connection also replaces a connection which is not detected as broken yet (the socket of a client which disappeared may stay open
+ * for a long time).
+ */
+public final class SessionResumer implements PacketMuxer.ConnectionListener {
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final String ip;
+    private final boolean multiSocket;
+    private final long graceMs;
+    private final Device device;
+    private final PacketMuxer muxer;
+    private final ScreenEncoder screenEncoder;
+
+    private DroidConnection connection;
+    private int disconnectionCount;
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    public SessionResumer(ServerSocketChannel serverSocketChannel, String ip, boolean multiSocket, long graceMs, Device device,
+                          PacketMuxer muxer, ScreenEncoder screenEncoder) {
+        this.serverSocketChannel = serverSocketChannel;
+        this.ip = ip;
+        this.multiSocket = multiSocket;
+        this.graceMs = graceMs;
+        this.device = device;
+        this.muxer = muxer;
+        this.screenEncoder = screenEncoder;
+    }
+
+    /**
+     * Start accepting new connections.
+     *
+     * @param initialConnection the current connection, closed by this class when it is replaced or on {@link #stop()}
+     */
+    public void start(DroidConnection initialConnection) {
+        connection = initialConnection;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acceptLoop();
+                } catch (IOException e) {
+                    // this is expected on stop
+                    if (!stopped) {
+                        Ln.e("Session resumer stopped", e);
+                    }
+                }
+            }
+        }, "session-resumer");
+        thread.start();
+    }
+
+    private void acceptLoop() throws IOException {
+        while (!stopped) {
+            DroidConnection newConnection = DroidConnection.accept(serverSocketChannel, ip, multiSocket);
+            if (newConnection != null) {
+                resume(newConnection);
+            }
+        }
+    }
+
+    private void resume(DroidConnection newConnection) {
+        DroidConnection oldConnection;
+        synchronized (this) {
+            oldConnection = connection;
+            connection = newConnection;
+        }
+        // unblock the writers still using the previous connection
+        closeQuietly(oldConnection);
+        try {
+            muxer.reattach(newConnection.getVideoChannel(), newConnection.getAudioChannel());
+        } catch (IOException | IllegalArgumentException e) {
+            Ln.w("Could not resume the session: " + e.getMessage());
+            closeQuietly(newConnection);
+            return;
+        }
+        Server.startEventController(device, newConnection, screenEncoder);
+        screenEncoder.forceKeyFrame();
+        Ln.i("Session resumed");
+    }
+
+    @Override
+    public void onDisconnected(IOException e) {
+        final int count;
+        synchronized (this) {
+            count = ++disconnectionCount;
+        }
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(graceMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                boolean expired;
+                synchronized (SessionResumer.this) {
+                    // not expired if the session has been resumed meanwhile (even if it has been disconnected again since)
+                    expired = !stopped && !muxer.isConnected() && count == disconnectionCount;
+                }
+                if (expired) {
+                    Ln.i("Session not resumed within " + graceMs + " ms, stopping");
+                    muxer.close(new IOException("Session expired"));
+                    screenEncoder.stop();
+                    stop();
+                }
+            }
+        }, "session-grace");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        // unblock accept()
+        closeQuietly(serverSocketChannel);
+        DroidConnection current;
+        synchronized (this) {
+            current = connection;
+            connection = null;
+        }
+        closeQuietly(current);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
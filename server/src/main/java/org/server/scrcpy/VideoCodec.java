@@ -0,0 +1,48 @@
+package org.server.scrcpy;
+
+import android.media.MediaFormat;
+
+/**
+ * The video codecs which may be negotiated with the client.
+ * <p/>
+ * The id is sent to the client in the stream header, so that it creates the matching decoder.
+ */
+public enum VideoCodec {
+    H264(0x68_32_36_34, "h264", MediaFormat.MIMETYPE_VIDEO_AVC), // "h264" in ASCII
+    H265(0x68_32_36_35, "h265", MediaFormat.MIMETYPE_VIDEO_HEVC), // "h265" in ASCII
+    AV1(0x00_61_76_31, "av1", "video/av01"); // "av1" in ASCII (MediaFormat.MIMETYPE_VIDEO_AV1 requires API 29)
+
+    private final int id;
+    private final String name;
+    private final String mimeType;
+
+    VideoCodec(int id, String name, String mimeType) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return the codec, or {@code null} if the name is unknown
+     */
+    public static VideoCodec findByName(String name) {
+        for (VideoCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
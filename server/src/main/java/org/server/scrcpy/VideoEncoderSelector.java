@@ -0,0 +1,139 @@
+package org.server.scrcpy;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Choose the video codec and encoder, among the codecs supported by the client and the encoders available on the device.
+ * <p/>
+ * The codecs are tried in the order of the client preference: the first one having a hardware encoder is selected (a software encoder
+ * cannot encode the screen in real time). H.264 is the fallback, it is always supported.
+ * <p/>
+ * An explicit encoder name overrides the selection, to work around buggy vendor encoders (its codec must still be supported by the client).
+ */
+public final class VideoEncoderSelector {
+
+    /**
+     * The selected codec, and the name of the encoder to use ({@code null} to let {@link android.media.MediaCodec} choose the default
+     * encoder for the codec).
+     */
+    public static final class Selection {
+        private final VideoCodec codec;
+        private final String encoderName;
+
+        private Selection(VideoCodec codec, String encoderName) {
+            this.codec = codec;
+            this.encoderName = encoderName;
+        }
+
+        public VideoCodec getCodec() {
+            return codec;
+        }
+
+        public String getEncoderName() {
+            return encoderName;
+        }
+
+        @Override
+        public String toString() {
+            return codec.getName() + " (" + (encoderName != null ? encoderName : "default encoder") + ")";
+        }
+    }
+
+    private VideoEncoderSelector() {
+        // not instantiable
+    }
+
+    /**
+     * @param clientCodecs the codecs the client can decode, by order of preference
+     * @param encoderName  the encoder to use, or {@code null} to select it automatically
+     */
+    public static Selection select(List<VideoCodec> clientCodecs, String encoderName) {
+        List<MediaCodecInfo> encoders = listVideoEncoders();
+        Ln.d(buildEncoderListMessage(encoders));
+
+        if (encoderName != null) {
+            MediaCodecInfo info = findByName(encoders, encoderName);
+            if (info == null) {
+                Ln.w("Video encoder " + encoderName + " not found, ignored");
+            } else {
+                for (VideoCodec codec : clientCodecs) {
+                    if (supports(info, codec)) {
+                        return new Selection(codec, encoderName);
+                    }
+                }
+                Ln.w("Video encoder " + encoderName + " does not support any codec of the client, ignored");
+            }
+        }
+
+        for (VideoCodec codec : clientCodecs) {
+            for (MediaCodecInfo info : encoders) {
+                if (supports(info, codec) && isHardware(info)) {
+                    return new Selection(codec, info.getName());
+                }
+            }
+        }
+        return new Selection(VideoCodec.H264, null);
+    }
+
+    private static List<MediaCodecInfo> listVideoEncoders() {
+        List<MediaCodecInfo> result = new ArrayList<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.startsWith("video/")) {
+                    result.add(info);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static MediaCodecInfo findByName(List<MediaCodecInfo> encoders, String name) {
+        for (MediaCodecInfo info : encoders) {
+            if (info.getName().equals(name)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private static boolean supports(MediaCodecInfo info, VideoCodec codec) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(codec.getMimeType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        // the software codecs of the platform
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+
+    private static String buildEncoderListMessage(List<MediaCodecInfo> encoders) {
+        StringBuilder builder = new StringBuilder("List of video encoders:");
+        for (MediaCodecInfo info : encoders) {
+            builder.append("\n    ").append(info.getName()).append(isHardware(info) ? " (hw)" : " (sw)");
+            for (String type : info.getSupportedTypes()) {
+                builder.append("\n        ").append(type).append(", profiles:");
+                for (MediaCodecInfo.CodecProfileLevel profileLevel : info.getCapabilitiesForType(type).profileLevels) {
+                    builder.append(' ').append(profileLevel.profile);
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
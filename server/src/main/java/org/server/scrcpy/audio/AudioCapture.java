@@ -10,7 +10,7 @@ public interface AudioCapture {
     void stop();
 
     /**
-     * Read a chunk of {@link AudioConfig#MAX_READ_SIZE} samples.
+     * Read a chunk of samples, at most the read size of the capture ({@link AudioConfig#MAX_READ_SIZE} by default).
      *
      * @param outDirectBuffer The target buffer
      * @param outBufferInfo The info to provide to MediaCodec
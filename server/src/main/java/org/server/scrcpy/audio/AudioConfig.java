@@ -2,28 +2,110 @@ package org.server.scrcpy.audio;
 
 import android.media.AudioFormat;
 
+/**
+ * The parameters of the audio capture: source, sample rate and channel count (always 16-bit PCM).
+ * <p/>
+ * They are negotiated in the session options, so that for example a voice-only session captures the microphone in mono at 16 kHz.
+ */
 public final class AudioConfig {
-    public static final int SAMPLE_RATE = 48000;
-    public static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_STEREO;
-    public static final int CHANNELS = 2;
-    public static final int CHANNEL_MASK = AudioFormat.CHANNEL_IN_LEFT | AudioFormat.CHANNEL_IN_RIGHT;
+    public static final int DEFAULT_SAMPLE_RATE = 48000;
+    public static final int DEFAULT_CHANNELS = 2;
     public static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
     public static final int BYTES_PER_SAMPLE = 2;
 
     // Never read more than 1024 samples, even if the buffer is bigger (that would increase latency).
     // A lower value is useless, since the system captures audio samples by blocks of 1024 (so for example if we read by blocks of 256 samples, we
     // receive 4 successive blocks without waiting, then we wait for the 4 next ones).
-    public static final int MAX_READ_SIZE = 1024 * CHANNELS * BYTES_PER_SAMPLE;
+    public static final int MAX_READ_SAMPLES = 1024;
 
-    private AudioConfig() {
-        // Not instantiable
+    public static final AudioConfig DEFAULT = new AudioConfig(AudioSource.OUTPUT, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNELS);
+
+    private final AudioSource source;
+    private final int sampleRate;
+    private final int channels;
+
+    public AudioConfig(AudioSource source, int sampleRate, int channels) {
+        if (!source.isDirect()) {
+            throw new IllegalArgumentException("Unsupported audio source: " + source);
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Invalid audio sample rate: " + sampleRate);
+        }
+        if (channels != 1 && channels != 2) {
+            throw new IllegalArgumentException("Invalid audio channel count: " + channels + " (expected 1 or 2)");
+        }
+        this.source = source;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    public AudioSource getSource() {
+        return source;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getChannelConfig() {
+        return channels == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+    }
+
+    public int getChannelMask() {
+        return channels == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_LEFT | AudioFormat.CHANNEL_IN_RIGHT;
     }
 
-    public static AudioFormat createAudioFormat() {
+    public int getBytesPerFrame() {
+        return channels * BYTES_PER_SAMPLE;
+    }
+
+    public int getMaxReadSize() {
+        return MAX_READ_SAMPLES * getBytesPerFrame();
+    }
+
+    /**
+     * The number of bytes to read at once for a given frame duration.
+     * <p/>
+     * A duration shorter than the capture block (1024 samples) does not reduce the capture latency, but it reduces the duration of each raw
+     * packet, and the delay before a block is handed to the encoder.
+     *
+     * @param frameMs the frame duration in milliseconds, or 0 for {@link #getMaxReadSize()}
+     */
+    public int getReadSize(int frameMs) {
+        if (frameMs <= 0) {
+            return getMaxReadSize();
+        }
+        return Math.min(sampleRate * frameMs / 1000 * getBytesPerFrame(), getMaxReadSize());
+    }
+
+    /**
+     * @return the duration of {@code size} bytes of samples, in microseconds
+     */
+    public long getDurationUs(long size) {
+        return size * 1_000_000L / ((long) getBytesPerFrame() * sampleRate);
+    }
+
+    /**
+     * Pack the format for the stream header: the sample rate in the 24 high bits, the channel count in the 8 low bits.
+     */
+    public int packFormat() {
+        return (sampleRate << 8) | channels;
+    }
+
+    public AudioFormat createAudioFormat() {
         AudioFormat.Builder builder = new AudioFormat.Builder();
         builder.setEncoding(ENCODING);
-        builder.setSampleRate(SAMPLE_RATE);
-        builder.setChannelMask(CHANNEL_CONFIG);
+        builder.setSampleRate(sampleRate);
+        builder.setChannelMask(getChannelConfig());
         return builder.build();
     }
+
+    @Override
+    public String toString() {
+        return source.name().toLowerCase() + ", " + sampleRate + " Hz, " + (channels == 1 ? "mono" : "stereo");
+    }
 }
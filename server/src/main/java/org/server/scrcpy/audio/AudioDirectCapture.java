@@ -20,19 +20,31 @@ import java.nio.ByteBuffer;
 
 public class AudioDirectCapture implements AudioCapture {
 
-    private static final int SAMPLE_RATE = AudioConfig.SAMPLE_RATE;
-    private static final int CHANNEL_CONFIG = AudioConfig.CHANNEL_CONFIG;
-    private static final int CHANNELS = AudioConfig.CHANNELS;
-    private static final int CHANNEL_MASK = AudioConfig.CHANNEL_MASK;
     private static final int ENCODING = AudioConfig.ENCODING;
 
+    private final AudioConfig config;
+
     private final int audioSource;
+    private final int readSize;
+    private final SilenceDetector silenceDetector;
 
     private AudioRecord recorder;
     private AudioRecordReader reader;
 
     public AudioDirectCapture(AudioSource audioSource) {
-        this.audioSource = getAudioSourceValue(audioSource);
+        this(new AudioConfig(audioSource, AudioConfig.DEFAULT_SAMPLE_RATE, AudioConfig.DEFAULT_CHANNELS), 0, null);
+    }
+
+    /**
+     * @param readSize        the maximum number of bytes returned by a single read (see {@link AudioConfig#getReadSize(int)}), 0 for
+     *                        {@link AudioConfig#getMaxReadSize()}
+     * @param silenceDetector if not {@code null}, receives every block of captured samples
+     */
+    public AudioDirectCapture(AudioConfig config, int readSize, SilenceDetector silenceDetector) {
+        this.config = config;
+        this.audioSource = getAudioSourceValue(config.getSource());
+        this.readSize = readSize > 0 ? readSize : config.getMaxReadSize();
+        this.silenceDetector = silenceDetector;
     }
 
     private static int getAudioSourceValue(AudioSource audioSource) {
@@ -48,15 +60,15 @@ public class AudioDirectCapture implements AudioCapture {
 
     @TargetApi(Build.VERSION_CODES.M)
     @SuppressLint({"WrongConstant", "MissingPermission"})
-    private static AudioRecord createAudioRecord(int audioSource) {
+    private static AudioRecord createAudioRecord(int audioSource, AudioConfig config) {
         AudioRecord.Builder builder = new AudioRecord.Builder();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             // On older APIs, Workarounds.fillAppInfo() must be called beforehand
             builder.setContext(FakeContext.get());
         }
         builder.setAudioSource(audioSource);
-        builder.setAudioFormat(AudioConfig.createAudioFormat());
-        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, ENCODING);
+        builder.setAudioFormat(config.createAudioFormat());
+        int minBufferSize = AudioRecord.getMinBufferSize(config.getSampleRate(), config.getChannelConfig(), ENCODING);
         if (minBufferSize > 0) {
             // This buffer size does not impact latency
             builder.setBufferSizeInBytes(8 * minBufferSize);
@@ -105,15 +117,16 @@ public class AudioDirectCapture implements AudioCapture {
 
     private void startRecording() throws AudioCaptureException {
         try {
-            recorder = createAudioRecord(audioSource);
+            recorder = createAudioRecord(audioSource, config);
         } catch (NullPointerException e) {
             // Creating an AudioRecord using an AudioRecord.Builder does not work on Vivo phones:
             // - <https://github.com/Genymobile/scrcpy/issues/3805>
             // - <https://github.com/Genymobile/scrcpy/pull/3862>
-            recorder = Workarounds.createAudioRecord(audioSource, SAMPLE_RATE, CHANNEL_CONFIG, CHANNELS, CHANNEL_MASK, ENCODING);
+            recorder = Workarounds.createAudioRecord(audioSource, config.getSampleRate(), config.getChannelConfig(), config.getChannels(),
+                    config.getChannelMask(), ENCODING);
         }
         recorder.startRecording();
-        reader = new AudioRecordReader(recorder);
+        reader = new AudioRecordReader(recorder, config, readSize, silenceDetector);
     }
 
     @Override
@@ -13,23 +13,32 @@ import java.nio.ByteBuffer;
 
 public class AudioRecordReader {
 
-    private static final long ONE_SAMPLE_US =
-            (1000000 + AudioConfig.SAMPLE_RATE - 1) / AudioConfig.SAMPLE_RATE; // 1 sample in microseconds (used for fixing PTS)
-
     private final AudioRecord recorder;
+    private final AudioConfig config;
+    private final int readSize;
+    private final long oneSampleUs; // 1 sample in microseconds (used for fixing PTS)
+    private final SilenceDetector silenceDetector;
 
     private final AudioTimestamp timestamp = new AudioTimestamp();
     private long previousRecorderTimestamp = -1;
     private long previousPts = 0;
     private long nextPts = 0;
 
-    public AudioRecordReader(AudioRecord recorder) {
+    public AudioRecordReader(AudioRecord recorder, AudioConfig config, int readSize) {
+        this(recorder, config, readSize, null);
+    }
+
+    public AudioRecordReader(AudioRecord recorder, AudioConfig config, int readSize, SilenceDetector silenceDetector) {
         this.recorder = recorder;
+        this.config = config;
+        this.readSize = readSize;
+        oneSampleUs = (1000000 + config.getSampleRate() - 1) / config.getSampleRate();
+        this.silenceDetector = silenceDetector;
     }
 
     @TargetApi(Build.VERSION_CODES.N)
     public int read(ByteBuffer outDirectBuffer, MediaCodec.BufferInfo outBufferInfo) {
-        int r = recorder.read(outDirectBuffer, AudioConfig.MAX_READ_SIZE);
+        int r = recorder.read(outDirectBuffer, Math.min(readSize, outDirectBuffer.remaining()));
         if (r <= 0) {
             return r;
         }
@@ -49,19 +58,24 @@ public class AudioRecordReader {
             pts = nextPts;
         }
 
-        long durationUs = r * 1000000L / (AudioConfig.CHANNELS * AudioConfig.BYTES_PER_SAMPLE * AudioConfig.SAMPLE_RATE);
+        long durationUs = config.getDurationUs(r);
         nextPts = pts + durationUs;
 
-        if (previousPts != 0 && pts < previousPts + ONE_SAMPLE_US) {
+        if (previousPts != 0 && pts < previousPts + oneSampleUs) {
             // Audio PTS may come from two sources:
             //  - recorder.getTimestamp() if the call works;
             //  - an estimation from the previous PTS and the packet size as a fallback.
             //
             // Therefore, the property that PTS are monotonically increasing is no guaranteed in corner cases, so enforce it.
-            pts = previousPts + ONE_SAMPLE_US;
+            pts = previousPts + oneSampleUs;
         }
         previousPts = pts;
 
+        if (silenceDetector != null) {
+            // the read does not move the position of the buffer
+            silenceDetector.onSamples(outDirectBuffer, outDirectBuffer.position(), r, pts);
+        }
+
         outBufferInfo.set(0, r, pts, 0);
         return r;
     }
@@ -0,0 +1,109 @@
+package org.server.scrcpy.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detect the silence in the captured samples, for discontinuous transmission (DTX): the mirrored screen is silent most of the time, there is
+ * no need to send a continuous stream of silent frames.
+ * <p/>
+ * A block of samples is silent if all its samples are within the threshold. Once the capture has been silent for the hold time, the frames
+ * are suppressed; they are sent again as soon as a non-silent block is captured.
+ * <p/>
+ * The encoder output lags behind the capture, so the decision is made on the timestamps: {@link #onSamples} is called on capture, and
+ * {@link #shouldSend(long)} when a frame is output.
+ */
+public final class SilenceDetector {
+
+    // about -66 dBFS, to tolerate the dithering noise of some devices
+    public static final int DEFAULT_THRESHOLD = 16;
+
+    // the hold time must exceed the encoder delay, so that a suppression never starts before the previous one has ended on the output side
+    private static final long MIN_HOLD_US = 100_000;
+
+    private final long holdUs;
+    private final int threshold;
+    // the frames encoded from the samples just before the sound are sent too (they may contain its start): the duration of a codec frame
+    // plus the encoder delay, 0 for raw PCM (see setResumeMargin())
+    private long resumeMarginUs;
+
+    // the timestamp of the first block of the current silence, -1 while there is sound
+    private long silentSinceUs = -1;
+    // the frames in [suppressedFromUs, resumedAtUs) are not sent
+    private long suppressedFromUs = Long.MAX_VALUE;
+    private long resumedAtUs = Long.MAX_VALUE;
+
+    public SilenceDetector(long holdUs) {
+        this(holdUs, DEFAULT_THRESHOLD);
+    }
+
+    public SilenceDetector(long holdUs, int threshold) {
+        this.holdUs = Math.max(holdUs, MIN_HOLD_US);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Set by the encoder, which knows its codec: the frames having a timestamp up to this margin before the sound are sent too.
+     *
+     * @param resumeMarginUs the duration of a codec frame plus the encoder delay, 0 if the samples are not encoded
+     */
+    public synchronized void setResumeMargin(long resumeMarginUs) {
+        this.resumeMarginUs = resumeMarginUs;
+    }
+
+    /**
+     * Analyze a block of captured samples (16-bit PCM, in native byte order).
+     *
+     * @param buffer the buffer containing the samples (its position is not modified)
+     * @param offset the position of the first sample in the buffer
+     * @param size   the number of bytes
+     * @param ptsUs  the timestamp of the block
+     */
+    public synchronized void onSamples(ByteBuffer buffer, int offset, int size, long ptsUs) {
+        if (isSilent(buffer, offset, size)) {
+            if (silentSinceUs == -1) {
+                silentSinceUs = ptsUs;
+            }
+            if (suppressedFromUs == Long.MAX_VALUE && ptsUs - silentSinceUs >= holdUs) {
+                suppressedFromUs = ptsUs;
+                resumedAtUs = Long.MAX_VALUE;
+            }
+        } else {
+            silentSinceUs = -1;
+            if (suppressedFromUs != Long.MAX_VALUE && resumedAtUs == Long.MAX_VALUE) {
+                resumedAtUs = ptsUs;
+            }
+        }
+    }
+
+    private boolean isSilent(ByteBuffer buffer, int offset, int size) {
+        int end = offset + size - 1;
+        for (int i = offset; i < end; i += 2) {
+            // little endian (the native byte order of all Android ABIs)
+            int sample = (short) ((buffer.get(i + 1) << 8) | (buffer.get(i) & 0xFF));
+            if (sample > threshold || sample < -threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tell whether the frame having this timestamp must be sent.
+     * <p/>
+     * Must be called with increasing timestamps.
+     */
+    public synchronized boolean shouldSend(long ptsUs) {
+        if (ptsUs < suppressedFromUs) {
+            return true;
+        }
+        if (resumedAtUs != Long.MAX_VALUE && ptsUs >= resumedAtUs - resumeMarginUs) {
+            if (ptsUs >= resumedAtUs) {
+                // the output has caught up with the capture, the silence is over
+                suppressedFromUs = Long.MAX_VALUE;
+                resumedAtUs = Long.MAX_VALUE;
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,257 @@
+package org.server.scrcpy.control;
+
+import android.graphics.Rect;
+import android.view.MotionEvent;
+
+import org.server.scrcpy.device.Point;
+
+/**
+ * Union of all supported control messages, as decoded by {@link ControlMessageReader}.
+ * <p/>
+ * Wire format (big-endian), after a single version byte sent once at the beginning of the control stream:
+ * <pre>
+ * 1 byte type | 2 bytes payload length | payload
+ *
+ * TOUCH   : 1 action | 8 pointer id | 4 x | 4 y | 2 pressure (fixed point, 0xffff = 1.0) | 4 buttons
+ * KEY     : 1 action | 4 keycode | 4 repeat | 4 meta state
+ * TEXT    : UTF-8 text
+ * SCROLL  : 4 x | 4 y | 4 hscroll (float) | 4 vscroll (float) | 4 buttons
+ * COMMAND : 1 command
+ * MOTION  : 4 buttons | 1 pointer count (n) | 1 history size (h)
+ *           | n * (8 pointer id | 4 x | 4 y | 2 pressure)
+ *           | h * (2 time offset in ms before the event | n * (2 dx | 2 dy | 2 pressure)), oldest first
+ * VIEWPORT: 2 width | 2 height | 1 max fps (0 = unlimited)
+ * CROP    : 2 width | 2 height | 2 x | 2 y (0x0 = whole screen)
+ * </pre>
+ * A MOTION message carries a move of all the pointers at once, with the historical samples batched by the client since the previous event
+ * (their coordinates are deltas relative to the current position of the pointer).
+ * <p/>
+ * A VIEWPORT message reports the size of the view displaying the stream on the client (0x0 to restore the initial video size), so that the
+ * video is not encoded at a higher resolution (nor frame rate) than displayed.
+ * <p/>
+ * A CROP message changes the streamed rectangle of the screen (in the natural orientation of the device). The following events are
+ * expressed relative to the new crop.
+ * <p/>
+ * The payload length makes the stream self-delimiting: a message with an unknown type is skipped, and a known message may be extended by
+ * appending fields (the trailing bytes are ignored by older readers).
+ */
+public final class ControlMessage {
+
+    public static final byte VERSION = 2;
+
+    public static final int TYPE_TOUCH = 0;
+    public static final int TYPE_KEY = 1;
+    public static final int TYPE_TEXT = 2;
+    public static final int TYPE_SCROLL = 3;
+    public static final int TYPE_COMMAND = 4;
+    public static final int TYPE_MOTION = 5;
+    public static final int TYPE_VIEWPORT = 6;
+    public static final int TYPE_CROP = 7;
+
+    // the proximity sensor of the client is covered / uncovered
+    public static final int COMMAND_PROXIMITY_NEAR = 0;
+    public static final int COMMAND_PROXIMITY_FAR = 1;
+    // the client needs a key frame (and the codec configuration) to display a clean picture, e.g. after its decoder has been reset
+    public static final int COMMAND_REQUEST_KEY_FRAME = 2;
+
+    private int type;
+    private int action;
+    private int keycode;
+    private int repeat;
+    private int metaState;
+    private int buttons;
+    private long pointerId;
+    private Point point;
+    private float pressure;
+    private float hScroll;
+    private float vScroll;
+    private String text;
+    private int command;
+    private int width;
+    private int height;
+    private int maxFps;
+    private Rect crop;
+    // MOTION: samples in chronological order, the last one is the current position
+    private long[] pointerIds;
+    private Point[][] samplePoints;
+    private float[][] samplePressures;
+    private int[] sampleTimeOffsets;
+
+    private ControlMessage() {
+    }
+
+    public static ControlMessage createTouch(int action, long pointerId, Point point, float pressure, int buttons) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_TOUCH;
+        msg.action = action;
+        msg.pointerId = pointerId;
+        msg.point = point;
+        msg.pressure = pressure;
+        msg.buttons = buttons;
+        return msg;
+    }
+
+    public static ControlMessage createKey(int action, int keycode, int repeat, int metaState) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_KEY;
+        msg.action = action;
+        msg.keycode = keycode;
+        msg.repeat = repeat;
+        msg.metaState = metaState;
+        return msg;
+    }
+
+    public static ControlMessage createText(String text) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_TEXT;
+        msg.text = text;
+        return msg;
+    }
+
+    public static ControlMessage createScroll(Point point, float hScroll, float vScroll, int buttons) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_SCROLL;
+        msg.point = point;
+        msg.hScroll = hScroll;
+        msg.vScroll = vScroll;
+        msg.buttons = buttons;
+        return msg;
+    }
+
+    public static ControlMessage createCommand(int command) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_COMMAND;
+        msg.command = command;
+        return msg;
+    }
+
+    public static ControlMessage createViewport(int width, int height, int maxFps) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_VIEWPORT;
+        msg.width = width;
+        msg.height = height;
+        msg.maxFps = maxFps;
+        return msg;
+    }
+
+    /**
+     * @param crop the crop rectangle, or {@code null} to stream the whole screen
+     */
+    public static ControlMessage createCrop(Rect crop) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_CROP;
+        msg.crop = crop;
+        return msg;
+    }
+
+    /**
+     * @param pointerIds        the ids of the pointers
+     * @param samplePoints      the positions of each pointer ({@code samplePoints[sample][pointer]}), oldest sample first
+     * @param samplePressures   the pressures of each pointer, indexed like {@code samplePoints}
+     * @param sampleTimeOffsets for each sample, the time in milliseconds before the current sample (so the last value is 0)
+     */
+    public static ControlMessage createMotion(int buttons, long[] pointerIds, Point[][] samplePoints, float[][] samplePressures,
+                                              int[] sampleTimeOffsets) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_MOTION;
+        msg.action = MotionEvent.ACTION_MOVE;
+        msg.buttons = buttons;
+        msg.pointerIds = pointerIds;
+        msg.samplePoints = samplePoints;
+        msg.samplePressures = samplePressures;
+        msg.sampleTimeOffsets = sampleTimeOffsets;
+        return msg;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    public int getKeycode() {
+        return keycode;
+    }
+
+    public int getRepeat() {
+        return repeat;
+    }
+
+    public int getMetaState() {
+        return metaState;
+    }
+
+    public int getButtons() {
+        return buttons;
+    }
+
+    public long getPointerId() {
+        return pointerId;
+    }
+
+    public Point getPoint() {
+        return point;
+    }
+
+    public float getPressure() {
+        return pressure;
+    }
+
+    public float getHScroll() {
+        return hScroll;
+    }
+
+    public float getVScroll() {
+        return vScroll;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getCommand() {
+        return command;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public Rect getCrop() {
+        return crop;
+    }
+
+    public int getPointerCount() {
+        return pointerIds.length;
+    }
+
+    public long getPointerId(int pointer) {
+        return pointerIds[pointer];
+    }
+
+    public int getSampleCount() {
+        return sampleTimeOffsets.length;
+    }
+
+    public Point getSamplePoint(int sample, int pointer) {
+        return samplePoints[sample][pointer];
+    }
+
+    public float getSamplePressure(int sample, int pointer) {
+        return samplePressures[sample][pointer];
+    }
+
+    public int getSampleTimeOffset(int sample) {
+        return sampleTimeOffsets[sample];
+    }
+}
@@ -0,0 +1,203 @@
+package org.server.scrcpy.control;
+
+import android.graphics.Rect;
+
+import org.server.scrcpy.Ln;
+import org.server.scrcpy.device.Point;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decode the control messages sent by the client (see {@link ControlMessage} for the wire format).
+ * <p/>
+ * Every read is a {@code readFully()}, so a message split across several TCP segments (or several messages in a single segment) is
+ * decoded correctly.
+ */
+public class ControlMessageReader {
+
+    private static final int HEADER_LENGTH = 3; // 1 type + 2 payload length
+    private static final int MAX_PAYLOAD_LENGTH = 0xffff;
+
+    private static final int TOUCH_PAYLOAD_LENGTH = 23;
+    private static final int KEY_PAYLOAD_LENGTH = 13;
+    private static final int SCROLL_PAYLOAD_LENGTH = 20;
+    private static final int COMMAND_PAYLOAD_LENGTH = 1;
+    private static final int MOTION_HEADER_LENGTH = 6;
+    private static final int MOTION_POINTER_LENGTH = 18;
+    private static final int MOTION_HISTORY_POINTER_LENGTH = 6;
+    private static final int VIEWPORT_PAYLOAD_LENGTH = 5;
+    private static final int CROP_PAYLOAD_LENGTH = 8;
+
+    private final DataInputStream input;
+    private final byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+    private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+
+    private boolean versionChecked;
+
+    public ControlMessageReader(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+    }
+
+    private void checkVersion() throws IOException {
+        int version = input.readUnsignedByte();
+        if (version != ControlMessage.VERSION) {
+            throw new IOException("Unsupported control protocol version: " + version + " (expected " + ControlMessage.VERSION + ")");
+        }
+        versionChecked = true;
+    }
+
+    /**
+     * Read the next control message, blocking until it is fully received.
+     *
+     * @throws java.io.EOFException if the control stream is closed
+     */
+    public ControlMessage next() throws IOException {
+        if (!versionChecked) {
+            checkVersion();
+        }
+        while (true) {
+            int type = input.readUnsignedByte();
+            int length = input.readUnsignedShort();
+            input.readFully(payload, 0, length);
+            payloadBuffer.clear();
+            payloadBuffer.limit(length);
+
+            ControlMessage msg = parse(type, length);
+            if (msg != null) {
+                return msg;
+            }
+            // unknown type: the payload has been consumed, read the next message
+            Ln.w("Unknown control message type: " + type + " (" + (HEADER_LENGTH + length) + " bytes skipped)");
+        }
+    }
+
+    private ControlMessage parse(int type, int length) throws IOException {
+        switch (type) {
+            case ControlMessage.TYPE_TOUCH:
+                checkLength(type, length, TOUCH_PAYLOAD_LENGTH);
+                return parseTouch();
+            case ControlMessage.TYPE_KEY:
+                checkLength(type, length, KEY_PAYLOAD_LENGTH);
+                return parseKey();
+            case ControlMessage.TYPE_TEXT:
+                return ControlMessage.createText(new String(payload, 0, length, StandardCharsets.UTF_8));
+            case ControlMessage.TYPE_SCROLL:
+                checkLength(type, length, SCROLL_PAYLOAD_LENGTH);
+                return parseScroll();
+            case ControlMessage.TYPE_COMMAND:
+                checkLength(type, length, COMMAND_PAYLOAD_LENGTH);
+                return ControlMessage.createCommand(payloadBuffer.get() & 0xff);
+            case ControlMessage.TYPE_MOTION:
+                checkLength(type, length, MOTION_HEADER_LENGTH);
+                return parseMotion(type, length);
+            case ControlMessage.TYPE_VIEWPORT:
+                checkLength(type, length, VIEWPORT_PAYLOAD_LENGTH);
+                return parseViewport();
+            case ControlMessage.TYPE_CROP:
+                checkLength(type, length, CROP_PAYLOAD_LENGTH);
+                return parseCrop();
+            default:
+                return null;
+        }
+    }
+
+    private static void checkLength(int type, int length, int expected) throws IOException {
+        // a longer payload is accepted: newer clients may append fields
+        if (length < expected) {
+            throw new IOException("Control message too short: type=" + type + ", length=" + length + " (expected " + expected + ")");
+        }
+    }
+
+    private ControlMessage parseTouch() {
+        int action = payloadBuffer.get() & 0xff;
+        long pointerId = payloadBuffer.getLong();
+        Point point = readPoint();
+        float pressure = readPressure();
+        int buttons = payloadBuffer.getInt();
+        return ControlMessage.createTouch(action, pointerId, point, pressure, buttons);
+    }
+
+    private ControlMessage parseKey() {
+        int action = payloadBuffer.get() & 0xff;
+        int keycode = payloadBuffer.getInt();
+        int repeat = payloadBuffer.getInt();
+        int metaState = payloadBuffer.getInt();
+        return ControlMessage.createKey(action, keycode, repeat, metaState);
+    }
+
+    private ControlMessage parseScroll() {
+        Point point = readPoint();
+        float hScroll = payloadBuffer.getFloat();
+        float vScroll = payloadBuffer.getFloat();
+        int buttons = payloadBuffer.getInt();
+        return ControlMessage.createScroll(point, hScroll, vScroll, buttons);
+    }
+
+    private ControlMessage parseViewport() {
+        int width = payloadBuffer.getShort() & 0xffff;
+        int height = payloadBuffer.getShort() & 0xffff;
+        int maxFps = payloadBuffer.get() & 0xff;
+        return ControlMessage.createViewport(width, height, maxFps);
+    }
+
+    private ControlMessage parseCrop() {
+        int width = payloadBuffer.getShort() & 0xffff;
+        int height = payloadBuffer.getShort() & 0xffff;
+        int x = payloadBuffer.getShort() & 0xffff;
+        int y = payloadBuffer.getShort() & 0xffff;
+        Rect crop = width == 0 || height == 0 ? null : new Rect(x, y, x + width, y + height);
+        return ControlMessage.createCrop(crop);
+    }
+
+    private ControlMessage parseMotion(int type, int length) throws IOException {
+        int buttons = payloadBuffer.getInt();
+        int pointerCount = payloadBuffer.get() & 0xff;
+        int historySize = payloadBuffer.get() & 0xff;
+        if (pointerCount == 0 || pointerCount > PointersState.MAX_POINTERS) {
+            throw new IOException("Invalid pointer count in motion message: " + pointerCount);
+        }
+        checkLength(type, length, MOTION_HEADER_LENGTH + pointerCount * MOTION_POINTER_LENGTH
+                + historySize * (2 + pointerCount * MOTION_HISTORY_POINTER_LENGTH));
+
+        int sampleCount = historySize + 1;
+        long[] pointerIds = new long[pointerCount];
+        Point[][] points = new Point[sampleCount][pointerCount];
+        float[][] pressures = new float[sampleCount][pointerCount];
+        int[] timeOffsets = new int[sampleCount];
+
+        // the current sample is sent first, but it is the last one in chronological order
+        for (int i = 0; i < pointerCount; ++i) {
+            // same id space as TOUCH
+            pointerIds[i] = payloadBuffer.getLong();
+            points[historySize][i] = readPoint();
+            pressures[historySize][i] = readPressure();
+        }
+        for (int h = 0; h < historySize; ++h) {
+            timeOffsets[h] = payloadBuffer.getShort() & 0xffff;
+            for (int i = 0; i < pointerCount; ++i) {
+                Point current = points[historySize][i];
+                int x = current.getX() + payloadBuffer.getShort();
+                int y = current.getY() + payloadBuffer.getShort();
+                points[h][i] = new Point(x, y);
+                pressures[h][i] = readPressure();
+            }
+        }
+        return ControlMessage.createMotion(buttons, pointerIds, points, pressures, timeOffsets);
+    }
+
+    private float readPressure() {
+        // fixed point, 0xffff = 1.0
+        return (payloadBuffer.getShort() & 0xffff) / (float) 0xffff;
+    }
+
+    private Point readPoint() {
+        int x = payloadBuffer.getInt();
+        int y = payloadBuffer.getInt();
+        return new Point(x, y);
+    }
+}
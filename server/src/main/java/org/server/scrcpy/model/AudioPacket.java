@@ -117,7 +117,8 @@ public class AudioPacket extends MediaPacket {
 
     public enum Flag {
 
-        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4);
+        // SILENCE: no frame will be sent until the sound returns (the next frame is preceded by a CONFIG)
+        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4), SILENCE((byte) 8);
 
         private byte type;
 
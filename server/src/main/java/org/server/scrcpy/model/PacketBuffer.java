@@ -0,0 +1,116 @@
+package org.server.scrcpy.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Reusable framed packet: a preallocated header followed by the payload, written with a single gathering write.
+ * <p/>
+ * The wire format is the same as {@link VideoPacket#toArray(MediaPacket.Type, VideoPacket.Flag, long, byte[])}:
+ * 4 bytes inner packet size, 1 byte type, 1 byte flag, 8 bytes timestamp, then the data.
+ * <p/>
+ * Instances are meant to be pooled: once the payload buffer has grown to the largest frame size, filling and writing a packet does not
+ * allocate anything.
+ */
+public final class PacketBuffer {
+
+    public static final int HEADER_SIZE = 14;
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private ByteBuffer payload;
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+
+    private MediaPacket.Type type;
+    private byte flag;
+    private long presentationTimeStamp;
+    // System.nanoTime() when the packet has been queued for sending
+    private long queueTimeNanos;
+
+    public PacketBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PacketBuffer(int capacity) {
+        payload = ByteBuffer.allocateDirect(capacity);
+        buffers[0] = header;
+        buffers[1] = payload;
+    }
+
+    /**
+     * Copy the remaining bytes of {@code data} (typically a codec output buffer) and fill the header.
+     * <p/>
+     * The position of {@code data} is not modified.
+     */
+    public void fill(MediaPacket.Type type, byte flag, long presentationTimeStamp, ByteBuffer data) {
+        int size = data.remaining();
+        ensureCapacity(size);
+
+        this.type = type;
+        this.flag = flag;
+        this.presentationTimeStamp = presentationTimeStamp;
+
+        payload.clear();
+        // restore the position rather than copying from a duplicate, which would be allocated for each packet
+        int position = data.position();
+        payload.put(data);
+        data.position(position);
+        payload.flip();
+
+        header.clear();
+        header.putInt(0, 10 + size); // inner packet size: 1 - type + 1 - flag + 8 - timeStamp + data
+        header.put(4, type.getType());
+        header.put(5, flag);
+        header.putLong(6, presentationTimeStamp);
+    }
+
+    private void ensureCapacity(int size) {
+        if (payload.capacity() < size) {
+            // round up to limit reallocations for slowly growing frames
+            int capacity = Math.max(size, payload.capacity() * 2);
+            payload = ByteBuffer.allocateDirect(capacity);
+            buffers[1] = payload;
+        }
+    }
+
+    /**
+     * Write the whole packet (header and payload) to the channel.
+     */
+    public void writeTo(GatheringByteChannel channel) throws IOException {
+        header.rewind();
+        payload.rewind();
+        while (payload.hasRemaining()) {
+            channel.write(buffers);
+        }
+        // the payload may be empty
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    public MediaPacket.Type getType() {
+        return type;
+    }
+
+    public byte getFlag() {
+        return flag;
+    }
+
+    public long getPresentationTimeStamp() {
+        return presentationTimeStamp;
+    }
+
+    public long getQueueTimeNanos() {
+        return queueTimeNanos;
+    }
+
+    public void setQueueTimeNanos(long queueTimeNanos) {
+        this.queueTimeNanos = queueTimeNanos;
+    }
+
+    public int getSize() {
+        return HEADER_SIZE + payload.limit();
+    }
+}
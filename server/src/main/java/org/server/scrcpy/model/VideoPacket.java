@@ -114,9 +114,20 @@ public class VideoPacket extends MediaPacket {
         return toArray(type, flag, presentationTimeStamp, data);
     }
 
+    /**
+     * A {@link Flag#RECONFIGURE} packet has no data: it announces that the encoder is restarted with the size packed in its timestamp (see
+     * {@link #packVideoSize(int, int)}), the new codec configuration follows.
+     * <p/>
+     * A codec configuration has no presentation time: the timestamp field of a {@link Flag#CONFIG} packet carries the size of the video
+     * instead, so that the client can tell a rotation from a resizing.
+     */
+    public static long packVideoSize(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
     public enum Flag {
 
-        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4);
+        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4), RECONFIGURE((byte) 8);
 
         private byte type;
 
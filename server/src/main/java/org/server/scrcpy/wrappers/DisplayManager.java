@@ -1,5 +1,6 @@
 package org.server.scrcpy.wrappers;
 
+import android.content.Context;
 import android.hardware.display.VirtualDisplay;
 import android.os.IInterface;
 import android.view.Display;
@@ -9,6 +10,7 @@ import org.server.scrcpy.DisplayInfo;
 import org.server.scrcpy.Ln;
 import org.server.scrcpy.Size;
 import org.server.scrcpy.util.Command;
+import org.server.scrcpy.util.FakeContext;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -125,4 +127,15 @@ public final class DisplayManager {
         Method method = getCreateVirtualDisplayMethod();
         return (VirtualDisplay) method.invoke(null, name, width, height, displayIdToMirror, surface);
     }
+
+    /**
+     * Create a virtual display with its own content (not a mirror), owned by the server.
+     */
+    public static VirtualDisplay createNewVirtualDisplay(String name, int width, int height, int dpi, Surface surface, int flags)
+            throws Exception {
+        // the constructor is hidden
+        android.hardware.display.DisplayManager displayManager = android.hardware.display.DisplayManager.class
+                .getDeclaredConstructor(Context.class).newInstance(FakeContext.get());
+        return displayManager.createVirtualDisplay(name, width, height, dpi, surface, flags);
+    }
 }
@@ -3,6 +3,8 @@ package org.server.scrcpy.wrappers;
 import android.os.IInterface;
 import android.view.InputEvent;
 
+import org.server.scrcpy.Ln;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
@@ -15,6 +17,8 @@ public final class InputManager {
     private final IInterface manager;
     private final Method injectInputEventMethod;
 
+    private static Method setDisplayIdMethod;
+
     public InputManager(IInterface manager) {
         this.manager = manager;
         try {
@@ -32,4 +36,25 @@ public final class InputManager {
             return false;
         }
     }
+
+    private static Method getSetDisplayIdMethod() throws NoSuchMethodException {
+        if (setDisplayIdMethod == null) {
+            setDisplayIdMethod = InputEvent.class.getMethod("setDisplayId", int.class);
+        }
+        return setDisplayIdMethod;
+    }
+
+    /**
+     * Route an event to a secondary display (by default, the events are injected into the default display).
+     */
+    public static boolean setDisplayId(InputEvent inputEvent, int displayId) {
+        try {
+            Method method = getSetDisplayIdMethod();
+            method.invoke(inputEvent, displayId);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            Ln.e("Cannot associate a display id to the input event", e);
+            return false;
+        }
+    }
 }
@@ -0,0 +1,314 @@
+package org.server.scrcpy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+
+    private static final int MIN = 500_000;
+    private static final int MAX = 20_000_000;
+
+    /**
+     * Counters set directly by the test, to check each decision in isolation.
+     */
+    private static final class FakeLink implements LinkStats {
+
+        private long writeStallNanos;
+        private long writtenBytes;
+        private long queuedBytes;
+        private long droppedPackets;
+
+        /**
+         * Account for an interval of {@code durationMs}.
+         *
+         * @param stallRatio the fraction of the interval blocked in socket writes
+         * @param throughput the bitrate actually written to the socket
+         */
+        void advance(long durationMs, float stallRatio, long throughput) {
+            writeStallNanos += (long) (durationMs * 1_000_000L * stallRatio);
+            writtenBytes += throughput * durationMs / 8 / 1000;
+        }
+
+        @Override
+        public long getWriteStallNanos() {
+            return writeStallNanos;
+        }
+
+        @Override
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        @Override
+        public long getDroppedPackets() {
+            return droppedPackets;
+        }
+    }
+
+    /**
+     * A link of limited capacity, fed by an encoder producing exactly the requested bitrate.
+     * <p/>
+     * The writer is blocked (stall) whenever bytes remain to be sent at the end of a step, and the queue is dropped when its delay exceeds the
+     * latency budget, like in {@link PacketMuxer}.
+     */
+    private static final class SimulatedLink implements LinkStats {
+
+        private static final long STEP_MS = 10;
+        private static final long LATENCY_BUDGET_MS = 200;
+
+        private long capacity;
+        private long nowMs;
+
+        private long writeStallNanos;
+        private long writtenBytes;
+        private long queuedBytes;
+        private long droppedPackets;
+
+        SimulatedLink(long capacity) {
+            this.capacity = capacity;
+        }
+
+        void setCapacity(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Run the encoder and the link for {@code durationMs}, feeding the controller on each step (like on each encoded frame).
+         *
+         * @return the number of packets dropped during this period
+         */
+        long run(BitrateController controller, long durationMs) {
+            long dropped = droppedPackets;
+            for (long end = nowMs + durationMs; nowMs < end; nowMs += STEP_MS) {
+                queuedBytes += (long) controller.getBitRate() * STEP_MS / 8 / 1000;
+                long sent = Math.min(queuedBytes, capacity * STEP_MS / 8 / 1000);
+                queuedBytes -= sent;
+                writtenBytes += sent;
+                if (queuedBytes > 0) {
+                    writeStallNanos += STEP_MS * 1_000_000L;
+                    if (queuedBytes * 8 * 1000 / capacity > LATENCY_BUDGET_MS) {
+                        queuedBytes = 0;
+                        ++droppedPackets;
+                    }
+                }
+                if (controller.isDue(nowMs)) {
+                    controller.update(nowMs, this);
+                }
+            }
+            return droppedPackets - dropped;
+        }
+
+        @Override
+        public long getWriteStallNanos() {
+            return writeStallNanos;
+        }
+
+        @Override
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        @Override
+        public long getDroppedPackets() {
+            return droppedPackets;
+        }
+    }
+
+    private static int evaluate(BitrateController controller, FakeLink link, long nowMs) {
+        assertTrue(controller.isDue(nowMs));
+        return controller.update(nowMs, link);
+    }
+
+    @Test
+    public void testIntervalNotElapsed() {
+        BitrateController controller = new BitrateController(MIN, MAX, 8_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        link.advance(400, 1f, 1_000_000);
+        assertFalse(controller.isDue(400));
+        assertEquals(8_000_000, controller.update(400, link));
+        assertEquals("initial", controller.getLastDecision());
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOnStall() {
+        BitrateController controller = new BitrateController(MIN, MAX, 8_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        // blocked most of the time, but the measured throughput does not limit the decrease
+        link.advance(500, 0.8f, 16_000_000);
+        assertEquals(5_600_000, evaluate(controller, link, 500));
+        assertEquals("congested", controller.getLastDecision());
+        assertEquals(1, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void testDecreaseOnDroppedPackets() {
+        BitrateController controller = new BitrateController(MIN, MAX, 8_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        link.advance(500, 0f, 16_000_000);
+        link.droppedPackets = 3;
+        assertEquals(5_600_000, evaluate(controller, link, 500));
+        assertEquals("congested", controller.getLastDecision());
+    }
+
+    @Test
+    public void testDecreaseCappedByThroughput() {
+        BitrateController controller = new BitrateController(MIN, MAX, 8_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        // the link carried only 4 Mbps: never request more than 90% of it
+        link.advance(500, 0.8f, 4_000_000);
+        assertEquals(3_600_000, evaluate(controller, link, 500));
+    }
+
+    @Test
+    public void testHoldAfterDecrease() {
+        BitrateController controller = new BitrateController(MIN, MAX, 8_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        link.advance(500, 0.8f, 16_000_000);
+        assertEquals(5_600_000, evaluate(controller, link, 500));
+
+        // clean link, but the 2 s hold is not over
+        for (long now = 1000; now < 2500; now += 500) {
+            link.advance(500, 0f, 5_600_000);
+            assertEquals(5_600_000, evaluate(controller, link, now));
+            assertEquals("hold", controller.getLastDecision());
+        }
+
+        // the hold is over: probing requires two clean intervals
+        link.advance(500, 0f, 5_600_000);
+        assertEquals(5_600_000, evaluate(controller, link, 2500));
+        assertEquals("clean", controller.getLastDecision());
+
+        link.advance(500, 0f, 5_600_000);
+        assertEquals(5_880_000, evaluate(controller, link, 3000));
+        assertEquals("probe", controller.getLastDecision());
+    }
+
+    @Test
+    public void testProbeAfterCleanIntervals() {
+        BitrateController controller = new BitrateController(MIN, MAX, 4_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        link.advance(500, 0f, 4_000_000);
+        assertEquals(4_000_000, evaluate(controller, link, 500));
+        assertEquals("clean", controller.getLastDecision());
+
+        // +5%
+        link.advance(500, 0f, 4_000_000);
+        assertEquals(4_200_000, evaluate(controller, link, 1000));
+        assertEquals(1, controller.getIncreaseCount());
+
+        // a single interval which is neither clean nor congested resets the count
+        link.advance(500, 0.3f, 4_200_000);
+        assertEquals(4_200_000, evaluate(controller, link, 1500));
+        assertEquals("steady", controller.getLastDecision());
+        link.advance(500, 0f, 4_200_000);
+        assertEquals(4_200_000, evaluate(controller, link, 2000));
+        link.advance(500, 0f, 4_200_000);
+        assertEquals(4_410_000, evaluate(controller, link, 2500));
+    }
+
+    @Test
+    public void testMinimumIncreaseStep() {
+        BitrateController controller = new BitrateController(MIN, MAX, 1_000_000);
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+
+        link.advance(500, 0f, 1_000_000);
+        evaluate(controller, link, 500);
+        link.advance(500, 0f, 1_000_000);
+        // 5% would be 50 kbps
+        assertEquals(1_100_000, evaluate(controller, link, 1000));
+    }
+
+    @Test
+    public void testBounds() {
+        BitrateController controller = new BitrateController(MIN, MAX, 40_000_000);
+        assertEquals(MAX, controller.getBitRate());
+
+        FakeLink link = new FakeLink();
+        evaluate(controller, link, 0);
+        long now = 0;
+        for (int i = 0; i < 20; ++i) {
+            now += 500;
+            // nothing can be written
+            link.advance(500, 1f, 0);
+            link.queuedBytes = 100_000;
+            evaluate(controller, link, now);
+            assertTrue(controller.getBitRate() >= MIN);
+        }
+        assertEquals(MIN, controller.getBitRate());
+
+        link.queuedBytes = 0;
+        for (int i = 0; i < 1000; ++i) {
+            now += 500;
+            link.advance(500, 0f, controller.getBitRate());
+            evaluate(controller, link, now);
+            assertTrue(controller.getBitRate() <= MAX);
+        }
+        assertEquals(MAX, controller.getBitRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new BitrateController(2_000_000, 1_000_000, 1_500_000);
+    }
+
+    @Test
+    public void testConvergeOnSimulatedLink() {
+        BitrateController controller = new BitrateController(MIN, MAX, 16_000_000);
+        SimulatedLink link = new SimulatedLink(4_000_000);
+
+        // the initial bitrate is far above the capacity
+        link.run(controller, 5_000);
+        assertTrue("Bitrate not decreased: " + controller, controller.getBitRate() <= 4_000_000);
+
+        // steady state: close to the capacity, without drops
+        link.run(controller, 30_000);
+        long dropped = link.run(controller, 30_000);
+        assertEquals("Dropped packets in steady state: " + controller, 0, dropped);
+        assertTrue("Bitrate too low: " + controller, controller.getBitRate() >= 2_000_000);
+        assertTrue("Bitrate too high: " + controller, controller.getBitRate() <= 4_400_000);
+    }
+
+    @Test
+    public void testFollowCapacityChanges() {
+        BitrateController controller = new BitrateController(MIN, MAX, 8_000_000);
+        SimulatedLink link = new SimulatedLink(10_000_000);
+        link.run(controller, 20_000);
+        int before = controller.getBitRate();
+
+        // the link degrades (e.g. Wi-Fi interference)
+        link.setCapacity(2_000_000);
+        link.run(controller, 3_000);
+        assertTrue("Bitrate not decreased: " + controller, controller.getBitRate() <= 2_000_000);
+
+        // the link recovers: the bitrate is probed up again
+        link.setCapacity(10_000_000);
+        link.run(controller, 60_000);
+        assertTrue("Bitrate not increased: " + controller, controller.getBitRate() >= before);
+    }
+}
@@ -0,0 +1,185 @@
+package org.server.scrcpy;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.server.scrcpy.model.AudioPacket;
+import org.server.scrcpy.model.MediaPacket;
+import org.server.scrcpy.model.PacketBuffer;
+import org.server.scrcpy.model.VideoPacket;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that framing and sending a packet does not allocate anything once the pools are warmed up.
+ * <p/>
+ * The allocations are measured on the calling thread (the encoder thread in the server), with the HotSpot per-thread allocation counter. The
+ * encoder thread also feeds the adaptive bitrate controller on each frame, so it is part of the measured path.
+ */
+public class PacketMuxerAllocationTest {
+
+    private static final int VIDEO_FRAME_SIZE = 20 * 1024;
+    private static final int AUDIO_FRAME_SIZE = 256;
+
+    // enough to fill the pools, but not for the optimizing JIT: its escape analysis would hide short-lived allocations, which ART does not
+    // eliminate
+    private static final int WARM_UP_FRAMES = 100;
+    private static final int MEASURED_FRAMES = 1000;
+
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private static final long DRAIN_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    private final ByteBuffer videoFrame = ByteBuffer.allocateDirect(VIDEO_FRAME_SIZE);
+    private final ByteBuffer audioFrame = ByteBuffer.allocateDirect(AUDIO_FRAME_SIZE);
+
+    /**
+     * Discard the written bytes, like a socket which is never congested.
+     */
+    private static final class NullChannel implements GatheringByteChannel {
+
+        private final AtomicLong writtenBytes = new AtomicLong();
+
+        long getWrittenBytes() {
+            return writtenBytes.get();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                total += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            writtenBytes.addAndGet(total);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int size = src.remaining();
+            src.position(src.limit());
+            writtenBytes.addAndGet(size);
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing to do
+        }
+    }
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Per-thread allocation counter not available", bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue("Per-thread allocation counter not supported", threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private long getAllocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testPacketBufferDoesNotAllocate() throws IOException {
+        NullChannel channel = new NullChannel();
+        PacketBuffer buffer = new PacketBuffer();
+
+        for (int i = 0; i < WARM_UP_FRAMES; ++i) {
+            buffer.fill(MediaPacket.Type.VIDEO, VideoPacket.Flag.FRAME.getFlag(), i, videoFrame);
+            buffer.writeTo(channel);
+        }
+
+        long before = getAllocatedBytes();
+        for (int i = 0; i < MEASURED_FRAMES; ++i) {
+            buffer.fill(MediaPacket.Type.VIDEO, VideoPacket.Flag.FRAME.getFlag(), i, videoFrame);
+            buffer.writeTo(channel);
+        }
+        long allocated = getAllocatedBytes() - before;
+
+        assertEquals("Bytes allocated per packet", 0, allocated / MEASURED_FRAMES);
+        assertEquals((long) (WARM_UP_FRAMES + MEASURED_FRAMES) * (PacketBuffer.HEADER_SIZE + VIDEO_FRAME_SIZE), channel.getWrittenBytes());
+    }
+
+    @Test
+    public void testMuxerDoesNotAllocate() throws IOException {
+        NullChannel channel = new NullChannel();
+        PacketMuxer muxer = new PacketMuxer(channel, channel);
+        BitrateController controller = new BitrateController(1_000_000, 8_000_000, 8_000_000);
+        try {
+            muxer.writeHeader(new byte[20]);
+            muxer.start();
+            long expected = 20;
+
+            muxer.offerVideo(VideoPacket.Flag.CONFIG, 0, ByteBuffer.allocate(32));
+            expected += PacketBuffer.HEADER_SIZE + 32;
+            muxer.offerAudio(AudioPacket.Flag.CONFIG, 0, ByteBuffer.allocate(2));
+            expected += PacketBuffer.HEADER_SIZE + 2;
+            awaitWritten(channel, expected);
+
+            for (int i = 0; i < WARM_UP_FRAMES; ++i) {
+                expected = sendFrame(muxer, controller, channel, i, expected);
+            }
+
+            long before = getAllocatedBytes();
+            for (int i = 0; i < MEASURED_FRAMES; ++i) {
+                expected = sendFrame(muxer, controller, channel, WARM_UP_FRAMES + i, expected);
+            }
+            long allocated = getAllocatedBytes() - before;
+
+            assertEquals("Bytes allocated per frame", 0, allocated / MEASURED_FRAMES);
+        } finally {
+            muxer.close();
+        }
+    }
+
+    private long sendFrame(PacketMuxer muxer, BitrateController controller, NullChannel channel, int index, long expected)
+            throws IOException {
+        VideoPacket.Flag flag = index % 60 == 0 ? VideoPacket.Flag.KEY_FRAME : VideoPacket.Flag.FRAME;
+        if (!muxer.offerVideo(flag, index * 16_666L, videoFrame)) {
+            fail("Video frame " + index + " dropped");
+        }
+        muxer.offerAudio(AudioPacket.Flag.FRAME, index * 16_666L, audioFrame);
+        // like ScreenEncoder, on a simulated clock: the link is evaluated every few frames
+        long now = index * FRAME_INTERVAL_MS;
+        if (controller.isDue(now)) {
+            controller.update(now, muxer.getVideoLinkStats());
+        }
+        expected += 2 * PacketBuffer.HEADER_SIZE + VIDEO_FRAME_SIZE + AUDIO_FRAME_SIZE;
+        // wait for the writer thread, so that the pools never run dry (the steady state of a link which keeps up)
+        awaitWritten(channel, expected);
+        return expected;
+    }
+
+    private static void awaitWritten(NullChannel channel, long expected) {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NS;
+        while (channel.getWrittenBytes() < expected) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("The muxer did not write the packets");
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.server.scrcpy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.server.scrcpy.model.VideoPacket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check the dropping of late video frames and the removal of slow viewers, on channels which can be blocked to simulate a congested link.
+ */
+public class PacketMuxerTest {
+
+    private static final long LATENCY_BUDGET_MS = 30;
+    private static final long TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int HEADER_SIZE = 20;
+
+    private final ByteBuffer frame = ByteBuffer.allocate(1000);
+
+    private GatedChannel channel;
+    private PacketMuxer muxer;
+    private final AtomicInteger syncFrameRequests = new AtomicInteger();
+
+    /**
+     * Record the timestamp of each written packet. While closed, writes block, like on a full socket send buffer.
+     */
+    private static final class GatedChannel implements GatheringByteChannel {
+
+        private final List<Long> timestamps = new ArrayList<>();
+        private boolean open = true;
+        private boolean blocked;
+
+        synchronized void setOpen(boolean open) {
+            this.open = open;
+            notifyAll();
+        }
+
+        synchronized boolean isBlocked() {
+            return blocked;
+        }
+
+        synchronized List<Long> getTimestamps() {
+            return new ArrayList<>(timestamps);
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            ByteBuffer header = srcs[offset];
+            if (header.position() == 0 && header.remaining() >= 14) {
+                // a new packet: 4 size | 1 type | 1 flag | 8 timestamp
+                timestamps.add(header.getLong(6));
+            }
+            while (!open) {
+                blocked = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            blocked = false;
+            long total = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                total += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) {
+            int size = src.remaining();
+            src.position(src.limit());
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing to do
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        channel = new GatedChannel();
+        muxer = new PacketMuxer(channel, channel);
+        muxer.setVideoLatencyBudget(LATENCY_BUDGET_MS);
+        muxer.setSyncFrameListener(new PacketMuxer.SyncFrameListener() {
+            @Override
+            public void onSyncFrameRequested() {
+                syncFrameRequests.incrementAndGet();
+            }
+        });
+        muxer.writeHeader(new byte[HEADER_SIZE]);
+        muxer.start();
+    }
+
+    @After
+    public void tearDown() {
+        channel.setOpen(true);
+        muxer.close();
+    }
+
+    private boolean offer(VideoPacket.Flag flag, long timestamp) throws IOException {
+        return muxer.offerVideo(flag, timestamp, frame);
+    }
+
+    private void awaitBlocked() {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (!channel.isBlocked()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("The writer is not blocked");
+            }
+            Thread.yield();
+        }
+    }
+
+    private void awaitWritten(Long... timestamps) {
+        List<Long> expected = Arrays.asList(timestamps);
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (channel.getTimestamps().size() < expected.size()) {
+            if (System.nanoTime() - deadline > 0) {
+                break;
+            }
+            Thread.yield();
+        }
+        assertEquals(expected, channel.getTimestamps());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private long getDroppedPackets() {
+        return muxer.getVideoLinkStats().getDroppedPackets();
+    }
+
+    @Test
+    public void testFramesBehindKeyFrameBeingWrittenAreNotLate() throws IOException {
+        channel.setOpen(false);
+        assertTrue(offer(VideoPacket.Flag.KEY_FRAME, 0));
+        awaitBlocked();
+
+        // the key frame takes much longer than the budget to send
+        for (long i = 1; i <= 5; ++i) {
+            sleep(LATENCY_BUDGET_MS / 2);
+            assertTrue(offer(VideoPacket.Flag.FRAME, i));
+        }
+        assertEquals(0, getDroppedPackets());
+        assertEquals(0, syncFrameRequests.get());
+
+        channel.setOpen(true);
+        awaitWritten(0L, 1L, 2L, 3L, 4L, 5L);
+    }
+
+    @Test
+    public void testNewestPendingKeyFrameIsKept() throws IOException {
+        channel.setOpen(false);
+        assertTrue(offer(VideoPacket.Flag.FRAME, 0));
+        awaitBlocked();
+        assertTrue(offer(VideoPacket.Flag.FRAME, 1));
+        assertTrue(offer(VideoPacket.Flag.KEY_FRAME, 2));
+        assertTrue(offer(VideoPacket.Flag.FRAME, 3));
+        sleep(2 * LATENCY_BUDGET_MS);
+
+        // late: only the frame before the key frame is dropped, the chain from the key frame is still valid
+        assertTrue(offer(VideoPacket.Flag.FRAME, 4));
+        assertEquals(1, getDroppedPackets());
+        assertEquals(0, syncFrameRequests.get());
+
+        channel.setOpen(true);
+        awaitWritten(0L, 2L, 3L, 4L);
+    }
+
+    @Test
+    public void testSyncFrameRequestedWhenNoKeyFramePending() throws IOException {
+        channel.setOpen(false);
+        assertTrue(offer(VideoPacket.Flag.FRAME, 0));
+        awaitBlocked();
+        assertTrue(offer(VideoPacket.Flag.FRAME, 1));
+        assertTrue(offer(VideoPacket.Flag.FRAME, 2));
+        sleep(2 * LATENCY_BUDGET_MS);
+
+        assertFalse(offer(VideoPacket.Flag.FRAME, 3));
+        assertEquals(1, syncFrameRequests.get());
+        // skipped until the key frame, without requesting it again immediately
+        assertFalse(offer(VideoPacket.Flag.FRAME, 4));
+        assertEquals(1, syncFrameRequests.get());
+        assertEquals(4, getDroppedPackets());
+
+        assertTrue(offer(VideoPacket.Flag.KEY_FRAME, 5));
+        assertTrue(offer(VideoPacket.Flag.FRAME, 6));
+
+        channel.setOpen(true);
+        awaitWritten(0L, 5L, 6L);
+    }
+
+    @Test
+    public void testSyncFrameDeferredWhileKeyFrameWritten() throws IOException {
+        muxer.close();
+        channel = new GatedChannel();
+        muxer = new PacketMuxer(channel, channel);
+        muxer.setVideoLatencyBudget(LATENCY_BUDGET_MS);
+        // never block the caller: a full queue drops the frame immediately
+        muxer.setVideoOfferTimeout(0);
+        muxer.setSyncFrameListener(new PacketMuxer.SyncFrameListener() {
+            @Override
+            public void onSyncFrameRequested() {
+                syncFrameRequests.incrementAndGet();
+            }
+        });
+        muxer.writeHeader(new byte[HEADER_SIZE]);
+        muxer.start();
+
+        channel.setOpen(false);
+        assertTrue(offer(VideoPacket.Flag.KEY_FRAME, 0));
+        awaitBlocked();
+        long timestamp = 1;
+        while (offer(VideoPacket.Flag.FRAME, timestamp)) {
+            ++timestamp;
+        }
+        // the queue is full, but the key frame being written is not followed by another request
+        assertEquals(0, syncFrameRequests.get());
+
+        channel.setOpen(true);
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (channel.getTimestamps().size() < timestamp) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("The queued frames were not written");
+            }
+            Thread.yield();
+        }
+
+        // the key frame is written: the deferred request is sent on the next frame
+        assertFalse(offer(VideoPacket.Flag.FRAME, timestamp + 1));
+        assertEquals(1, syncFrameRequests.get());
+    }
+
+    @Test
+    public void testSlowViewerRemovedWithoutBlockingTheStream() throws Exception {
+        GatedChannel viewerChannel = new GatedChannel();
+        final PacketMuxer viewer = new PacketMuxer(viewerChannel, viewerChannel);
+        viewer.setVideoOfferTimeout(0);
+        viewer.setSlowConsumerPolicy(PacketMuxer.SlowConsumerPolicy.DISCONNECT);
+        final CountDownLatch removed = new CountDownLatch(1);
+        final AtomicReference<String> listenerThread = new AtomicReference<>();
+        muxer.addViewer(viewer, new PacketMuxer.ConnectionListener() {
+            @Override
+            public void onDisconnected(IOException e) {
+                listenerThread.set(Thread.currentThread().getName());
+                // joins the writer thread of the viewer, blocked on its connection
+                viewer.close();
+                removed.countDown();
+            }
+        });
+
+        try {
+            viewerChannel.setOpen(false);
+            for (long i = 0; i < 40; ++i) {
+                VideoPacket.Flag flag = i == 0 ? VideoPacket.Flag.KEY_FRAME : VideoPacket.Flag.FRAME;
+                // the stream goes on, whatever the state of the viewer
+                assertTrue(offer(flag, i));
+            }
+            assertTrue("The viewer has not been removed", removed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, muxer.getViewerCount());
+            assertFalse(Thread.currentThread().getName().equals(listenerThread.get()));
+        } finally {
+            viewerChannel.setOpen(true);
+            viewer.close();
+        }
+    }
+}